@@ -10,6 +10,9 @@ public class AnonymousFunctionAdapter {
     public static TinyLangCallable adapt(Expr.Function expr, Environment env) {
         String functionName = "<anonymous$" + counter + ">";
         Stmt.Function functionStmt = new Stmt.Function(functionName, expr.params, expr.body, false);
+        functionStmt.frameSize = expr.frameSize;
+        functionStmt.captures = expr.captures;
+        functionStmt.boxedParams = expr.boxedParams;
         counter++;
         return new TinyLangFunction(functionStmt, env, false);
     }
@@ -0,0 +1,40 @@
+package com.tinylang;
+
+import com.tinylang.ast.Stmt;
+import com.tinylang.jit.CompiledCode;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * How many times the interpreter has called each function declaration in a
+ * run, and the bytecode the JIT compiled for the hot ones. Every closure made
+ * from a declaration shares its counter, so the counters are kept here,
+ * keyed on the declaration, rather than on the functions or in the syntax
+ * tree. A declaration the REPL no longer refers to drops its counter.
+ */
+public final class CallCounts {
+
+    /** The count of one declaration, which its functions look up on their first call. */
+    static final class Counter {
+        int calls;
+        CompiledCode compiled;
+    }
+
+    private final Map<Stmt.Function, Counter> counters = new WeakHashMap<>();
+
+    Counter counter(Stmt.Function function) {
+        return counters.computeIfAbsent(function, key -> new Counter());
+    }
+
+    /** The calls made to the declaration so far. */
+    public int calls(Stmt.Function function) {
+        Counter counter = counters.get(function);
+        return counter == null ? 0 : counter.calls;
+    }
+
+    /** Counts calls made to the declaration before this run, as a profile tells. */
+    public void add(Stmt.Function function, int calls) {
+        counter(function).calls += calls;
+    }
+}
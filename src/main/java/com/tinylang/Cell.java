@@ -0,0 +1,15 @@
+package com.tinylang;
+
+/**
+ * A variable that closures capture. The frame that declares the variable and
+ * every closure that captures it hold the same cell, so an assignment by any
+ * of them is seen by all.
+ */
+public final class Cell {
+
+    public Object value;
+
+    public Cell(Object value) {
+        this.value = value;
+    }
+}
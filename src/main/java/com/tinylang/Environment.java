@@ -1,30 +1,53 @@
 package com.tinylang;
 
+import com.tinylang.ast.Capture;
+import com.tinylang.ast.Expr;
 import com.tinylang.error.RuntimeError;
 import com.tinylang.token.Token;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class Environment {
 
+    private static final Object[] NO_SLOTS = new Object[0];
+    private static final Environment NO_CAPTURES = new Environment(null, 0);
+
     private final Environment enclosing;
-    private final HashMap<String, Object> values = new HashMap<>();
+    private final Object[] slots;
+    // The global environment's variables, by name; frames only have slots.
+    private final HashMap<String, Global> values;
+    // The global each variable expression that has run is linked to, by node.
+    private final Map<Expr.Resolvable, Global> links;
 
     public Environment() {
         this.enclosing = null;
+        this.slots = NO_SLOTS;
+        this.values = new HashMap<>();
+        this.links = new IdentityHashMap<>();
     }
 
-    public Environment(Environment enclosing) {
+    public Environment(Environment enclosing, int size) {
         this.enclosing = enclosing;
+        this.slots = size == 0 ? NO_SLOTS : new Object[size];
+        this.values = null;
+        this.links = null;
     }
 
     public void define(String name, Object value) {
-        values.put(name, value);
+        global(name).define(value);
+    }
+
+    public void define(int slot, Object value) {
+        slots[slot] = value;
     }
 
     public void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme())) {
-            values.put(name.lexeme(), value);
+        if (values != null) {
+            global(name.lexeme()).assign(name, value);
             return;
         }
         if (enclosing != null) {
@@ -34,9 +57,9 @@ public class Environment {
         throw new RuntimeError(name, "Undefined variable '" + name.lexeme() + "'.");
     }
 
-    Object get(Token name) {
-        if (values.containsKey(name.lexeme())) {
-            return values.get(name.lexeme());
+    public Object get(Token name) {
+        if (values != null) {
+            return global(name.lexeme()).get(name);
         }
         if (enclosing != null) {
             return enclosing.get(name);
@@ -44,16 +67,35 @@ public class Environment {
         throw new RuntimeError(name, "Undefined variable '" + name.lexeme() + "'.");
     }
 
+    /** The cell of a global variable, created undefined the first time the name is used. */
+    public Global global(String name) {
+        return values.computeIfAbsent(name, key -> new Global());
+    }
+
+    /**
+     * The cell of the global a variable refers to, looked up by name on its
+     * first use only. The link is kept here rather than on the node, so
+     * another global environment running the same tree gets its own cells.
+     */
+    public Global global(Expr.Resolvable expr, Token name) {
+        Global global = links.get(expr);
+        if (global == null) {
+            global = global(name.lexeme());
+            links.put(expr, global);
+        }
+        return global;
+    }
+
     @Override
     public String toString() {
-        return values.toString();
+        return values != null ? values.toString() : Arrays.toString(slots);
     }
 
-    public Object getAt(Integer distance, String name) {
-        return ancestor(distance).values.get(name);
+    public Object getAt(int distance, int slot) {
+        return ancestor(distance).slots[slot];
     }
 
-    private Environment ancestor(Integer distance) {
+    private Environment ancestor(int distance) {
         Environment current = this;
         for (int i = 0; i < distance; i++) {
             current = current.enclosing;
@@ -61,8 +103,38 @@ public class Environment {
         return current;
     }
 
-    public void assignAt(Integer distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme(), value);
+    public void assignAt(int distance, int slot, Object value) {
+        ancestor(distance).slots[slot] = value;
+    }
+
+    /** Reads a boxed variable: one whose slot holds the {@link Cell} closures share. */
+    public Object getBoxedAt(int distance, int slot) {
+        return ((Cell) ancestor(distance).slots[slot]).value;
+    }
+
+    public void assignBoxedAt(int distance, int slot, Object value) {
+        ((Cell) ancestor(distance).slots[slot]).value = value;
+    }
+
+    /** Moves the value in a slot into a new cell, such as a parameter that closures capture. */
+    public void box(int slot) {
+        slots[slot] = new Cell(slots[slot]);
+    }
+
+    /**
+     * Creates the frame of a closure made in {@code frame}: it holds what
+     * each captured slot holds, and no other variable of the frames around.
+     */
+    public static Environment capture(Environment frame, List<Capture> captures) {
+        if (captures.isEmpty()) {
+            return NO_CAPTURES;
+        }
+        Environment closure = new Environment(null, captures.size());
+        for (int i = 0; i < captures.size(); i++) {
+            Capture capture = captures.get(i);
+            closure.slots[i] = frame.getAt(capture.depth(), capture.slot());
+        }
+        return closure;
     }
 
     public Environment enclosing() {
@@ -0,0 +1,45 @@
+package com.tinylang;
+
+import com.tinylang.error.RuntimeError;
+import com.tinylang.token.Token;
+
+/**
+ * A global variable. The global environment creates the cell the first time
+ * the name is used, defined or not, and every use links to it once instead
+ * of looking the name up on each access. Until the variable is defined, such
+ * as a function referring to one declared after it, using it fails.
+ */
+public final class Global {
+
+    private Object value;
+    private boolean isDefined;
+
+    public Object get(Token name) {
+        if (!isDefined) {
+            throw undefined(name);
+        }
+        return value;
+    }
+
+    public void assign(Token name, Object value) {
+        if (!isDefined) {
+            throw undefined(name);
+        }
+        this.value = value;
+    }
+
+    /** Defines the variable, or gives it a new value if it already is, as in the REPL. */
+    public void define(Object value) {
+        this.value = value;
+        this.isDefined = true;
+    }
+
+    private static RuntimeError undefined(Token name) {
+        return new RuntimeError(name, "Undefined variable '" + name.lexeme() + "'.");
+    }
+
+    @Override
+    public String toString() {
+        return isDefined ? String.valueOf(value) : "<undefined>";
+    }
+}
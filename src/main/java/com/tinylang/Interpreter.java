@@ -2,68 +2,109 @@ package com.tinylang;
 
 import com.tinylang.ast.Expr;
 import com.tinylang.ast.Stmt;
-import com.tinylang.error.Return;
 import com.tinylang.error.RuntimeError;
+import com.tinylang.jit.Jit;
 import com.tinylang.token.Token;
 import com.tinylang.token.TokenType;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import static com.tinylang.util.Values.isEqual;
+import static com.tinylang.util.Values.isTruthy;
+import static com.tinylang.util.Values.stringify;
+
 public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
-    private final Environment globals = new Environment();
+    final Environment globals = new Environment();
     private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
+    // Set by a return statement. Blocks and loops stop as soon as it is, and
+    // the call that started the function body takes the value and clears it.
+    private boolean returning = false;
+    private Object returnValue = null;
+    // A call in tail position leaves its callee and frame here for the
+    // trampoline in TinyLangFunction.execute instead of running it.
+    private TinyLangFunction tailCallee = null;
+    private Environment tailFrame = null;
+    private Jit jit;
+    private PropertyCache.Sites propertyCaches = new PropertyCache.Sites(false);
+    private Memo.Registry memos = new Memo.Registry(false);
+    private CallCounts callCounts;
 
     @Override
     public Object visitBinaryExpr(Expr.BinaryExpr expr) {
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
+        if (expr.hasNumberOperands()) {
+            return numberBinary(expr.operator, (Double) left, (Double) right);
+        }
+        return binary(expr.operator, left, right);
+    }
+
+    /** {@link #binary} on operands the optimizer proved to be numbers, which are not checked again. */
+    static Object numberBinary(Token operator, double left, double right) {
+        return switch (operator.type()) {
+            case PLUS -> left + right;
+            case MINUS -> left - right;
+            case STAR -> left * right;
+            case SLASH -> {
+                if (right == 0) {
+                    throw new RuntimeError(operator, "Division by zero.");
+                }
+                yield left / right;
+            }
+            case STAR_STAR -> Math.pow(left, right);
+            case GREATER -> left > right;
+            case GREATER_EQUAL -> left >= right;
+            case LESS -> left < right;
+            case LESS_EQUAL -> left <= right;
+            default -> binary(operator, left, right);
+        };
+    }
 
-        switch (expr.operator.type()) {
+    public static Object binary(Token operator, Object left, Object right) {
+        switch (operator.type()) {
             case PLUS -> {
                 if (left instanceof String || right instanceof String) {
                     return String.valueOf(left) + String.valueOf(right);
                 }
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (Double) left + (Double) right;
             }
             case MINUS -> {
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (Double) left - (Double) right;
             }
             case STAR -> {
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (Double) left * (Double) right;
             }
             case SLASH -> {
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 if ((Double) right == 0) {
-                    throw new RuntimeError(expr.operator, "Division by zero.");
+                    throw new RuntimeError(operator, "Division by zero.");
                 }
                 return (Double) left / (Double) right;
             }
             case STAR_STAR -> {
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return Math.pow((Double) left, (Double) right);
             }
             case GREATER -> {
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (Double) left > (Double) right;
             }
             case GREATER_EQUAL -> {
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (Double) left >= (Double) right;
             }
             case LESS -> {
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (Double) left < (Double) right;
             }
             case LESS_EQUAL -> {
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (Double) left <= (Double) right;
             }
             case EQUAL_EQUAL -> {
@@ -76,18 +117,19 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return null;
     }
 
-    private boolean isEqual(Object left, Object right) {
-        if (left == null && right == null) return true;
-        if (left == null) return false;
-        return left.equals(right);
-    }
-
     @Override
     public Object visitUnaryExpr(Expr.UnaryExpr expr) {
         Object right = evaluate(expr.right);
-        switch (expr.operator.type()) {
+        if (expr.hasNumberOperand() && expr.operator.type() == TokenType.MINUS) {
+            return -(Double) right;
+        }
+        return unary(expr.operator, right);
+    }
+
+    public static Object unary(Token operator, Object right) {
+        switch (operator.type()) {
             case MINUS -> {
-                checkNumberOperand(expr.operator, right);
+                checkNumberOperand(operator, right);
                 return -(Double) right;
             }
             case BANG -> {
@@ -105,11 +147,10 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Object visitAssignExpr(Expr.AssignExpr expr) {
         Object value = evaluate(expr.value);
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, value);
+        if (expr.isLocal()) {
+            assignLocal(environment, expr, value);
         } else {
-            globals.assign(expr.name, value);
+            globals.global(expr, expr.name).assign(expr.name, value);
         }
 
         return value;
@@ -117,30 +158,76 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitCallExpr(Expr.CallExpr expr) {
-        Object callee = evaluate(expr.callee);
-        List<Object> arguments = new ArrayList<>();
-        for (Expr argument : expr.arguments) {
-            arguments.add(evaluate(argument));
+        if (expr.callee instanceof Expr.GetExpr get) {
+            Object object = evaluate(get.object);
+            if (object instanceof TinyLangInstance instance) {
+                TinyLangFunction method = propertyCaches.get(get).method(instance);
+                if (method != null) {
+                    return invoke(method, instance, expr, expr.isTailCall);
+                }
+            }
+            return call(getProperty(object, get), expr);
         }
+        if (expr.callee instanceof Expr.Super superExpr) {
+            return invoke(superMethod(environment, superExpr), superReceiver(environment, superExpr), expr, expr.isTailCall);
+        }
+        return call(evaluate(expr.callee), expr);
+    }
 
+    private Object call(Object callee, Expr.CallExpr expr) {
+        if (callee instanceof TinyLangFunction function) {
+            return invoke(function, function.receiver(), expr, expr.isTailCall);
+        }
         if (callee instanceof TinyLangClass klass) {
             TinyLangInstance instance = new TinyLangInstance(klass);
-            TinyLangFunction initializer = klass.findMethod("init");
+            TinyLangFunction initializer = klass.initializer();
             if (initializer != null) {
-                initializer.bind(instance).call(this, arguments);
-            } else if (!arguments.isEmpty()) {
-                throw new RuntimeError(expr.paren, "Expected 0 arguments but got " + arguments.size() + ".");
+                invoke(initializer, instance, expr, false);
+            } else if (!expr.arguments.isEmpty()) {
+                evaluateArguments(expr);
+                throw new RuntimeError(expr.paren, "Expected 0 arguments but got " + expr.arguments.size() + ".");
             }
             return instance;
         }
 
+        Object[] arguments = evaluateArguments(expr);
         if (!(callee instanceof TinyLangCallable function)) {
             throw new RuntimeError(expr.paren, "Can only call functions and classes.");
         }
+        if (arguments.length != function.arity()) {
+            throw new RuntimeError(expr.paren, "Expected " + function.arity() + " arguments but got " + arguments.length + ".");
+        }
+        return function.call(this, arguments);
+    }
+
+    /**
+     * Calls a TinyLang function with {@code receiver} as {@code this},
+     * evaluating the arguments straight into the callee's frame. A tail call
+     * only prepares the frame and hands it to the caller's trampoline.
+     */
+    private Object invoke(TinyLangFunction function, TinyLangInstance receiver, Expr.CallExpr expr, boolean tail) {
+        List<Expr> arguments = expr.arguments;
         if (arguments.size() != function.arity()) {
+            evaluateArguments(expr);
             throw new RuntimeError(expr.paren, "Expected " + function.arity() + " arguments but got " + arguments.size() + ".");
         }
-        return function.call(this, arguments);
+        Environment frame = function.newFrame(receiver);
+        for (int i = 0; i < arguments.size(); i++) {
+            frame.define(i, evaluate(arguments.get(i)));
+        }
+        if (tail) {
+            tailCall(function, frame);
+            return null;
+        }
+        return function.execute(this, frame);
+    }
+
+    private Object[] evaluateArguments(Expr.CallExpr expr) {
+        Object[] arguments = new Object[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = evaluate(expr.arguments.get(i));
+        }
+        return arguments;
     }
 
     @Override
@@ -171,9 +258,12 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitGetExpr(Expr.GetExpr expr) {
-        Object object = evaluate(expr.object);
+        return getProperty(evaluate(expr.object), expr);
+    }
+
+    Object getProperty(Object object, Expr.GetExpr expr) {
         if (object instanceof TinyLangInstance instance) {
-            return instance.get(expr.name);
+            return propertyCaches.get(expr).get(instance);
         }
         if (object instanceof TinyLangClass klass) {
             return klass.findMethod(expr.name.lexeme());
@@ -188,7 +278,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             throw new RuntimeError(setExpr.name, "Only instances have fields.");
         }
         Object value = evaluate(setExpr.value);
-        instance.set(setExpr.name.lexeme(), value);
+        propertyCaches.set(setExpr).set(instance, value);
         return value;
     }
 
@@ -199,23 +289,54 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitSuperExpr(Expr.Super superExpr) {
-        int distance = locals.get(superExpr);
-        TinyLangClass superclass = (TinyLangClass) environment.getAt(distance, "super");
-        TinyLangInstance instance = (TinyLangInstance) environment.getAt(distance - 1, "this");
+        return superMethod(environment, superExpr).bind(superReceiver(environment, superExpr));
+    }
+
+    @Override
+    public Object visitInlineExpr(Expr.Inline expr) {
+        Object callee = evaluate(expr.call.callee);
+        if (!inlines(expr, callee)) {
+            return call(callee, expr.call);
+        }
+        List<Expr> arguments = expr.call.arguments;
+        for (int i = 0; i < arguments.size(); i++) {
+            environment.define(expr.slots[i], evaluate(arguments.get(i)));
+        }
+        return evaluate(expr.body);
+    }
+
+    /** Whether the body of {@code inline} may be evaluated in place of calling {@code callee}. */
+    static boolean inlines(Expr.Inline inline, Object callee) {
+        return callee instanceof TinyLangFunction function && function.declaration() == inline.function;
+    }
+
+    static TinyLangFunction superMethod(Environment environment, Expr.Super superExpr) {
+        TinyLangClass superclass = (TinyLangClass) local(environment, superExpr);
         TinyLangFunction method = superclass.findMethod(superExpr.method.lexeme());
         if (method == null) {
             throw new RuntimeError(superExpr.method, "Undefined superclass method '" + superExpr.method.lexeme() + "'.");
         }
-        return method.bind(instance);
+        return method;
+    }
+
+    static TinyLangInstance superReceiver(Environment environment, Expr.Super superExpr) {
+        return (TinyLangInstance) local(environment, superExpr.receiver);
     }
 
     @Override
     public Void visitLetStmt(Stmt.Let stmt) {
+        if (stmt.isBoxed) {
+            Cell cell = newCell(environment, stmt.slot);
+            if (stmt.initializer != null) {
+                cell.value = evaluate(stmt.initializer);
+            }
+            return null;
+        }
         Object value = null;
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
-        environment.define(stmt.name, value);
+        define(stmt.slot, stmt.name, value);
         return null;
     }
 
@@ -237,50 +358,121 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitWhileStmt(Stmt.While stmt) {
+        if (stmt instanceof Stmt.CountedLoop loop && isCounted(loop)) {
+            count(loop);
+            return null;
+        }
         while (isTruthy(evaluate(stmt.condition))) {
             execute(stmt.body);
+            if (returning) break;
         }
         return null;
     }
 
+    private void count(Stmt.CountedLoop loop) {
+        Expr.VarExpr counter = loop.counter;
+        Expr.AssignExpr increment = loop.increment;
+        while (isCounting(loop, environment.getAt(counter.depth, counter.slot), evaluate(loop.limit))) {
+            for (Stmt statement : loop.statements) {
+                execute(statement);
+                if (returning) return;
+            }
+            if (environment.getAt(increment.depth, increment.slot) instanceof Double value) {
+                environment.assignAt(increment.depth, increment.slot, value + loop.step);
+            } else {
+                evaluate(increment);
+            }
+        }
+    }
+
+    /**
+     * Whether a counted loop can test and step its counter in place: the
+     * counter is an unboxed local and the loop's block runs in the current
+     * frame.
+     */
+    static boolean isCounted(Stmt.CountedLoop loop) {
+        return loop.counter.isLocal() && !loop.counter.isBoxed && loop.increment.isLocal()
+                && !((Stmt.Block) loop.body).hasFrame();
+    }
+
+    /** What the loop's condition evaluates to for these operands. */
+    static boolean isCounting(Stmt.CountedLoop loop, Object counter, Object limit) {
+        if (counter instanceof Double value && limit instanceof Double bound) {
+            return switch (loop.operator.type()) {
+                case LESS -> value < bound;
+                case LESS_EQUAL -> value <= bound;
+                case GREATER -> value > bound;
+                default -> value >= bound;
+            };
+        }
+        return isTruthy(binary(loop.operator, counter, limit));
+    }
+
     @Override
     public Void visitReturnStmt(Stmt.Return stmt) {
         Object value = null;
         if (stmt.value != null) {
             value = evaluate(stmt.value);
         }
-        throw new Return(value);
+        returnValue = value;
+        returning = true;
+        return null;
     }
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
+        if (!stmt.hasFrame()) {
+            for (Stmt statement : stmt.statements) {
+                execute(statement);
+                if (returning) break;
+            }
+            return null;
+        }
+        executeBlock(stmt.statements, new Environment(environment, stmt.slotCount));
         return null;
     }
 
     @Override
     public Void visitClassStmt(Stmt.Class stmt) {
-        environment.define(stmt.name.lexeme(), null);
+        if (stmt.isBoxed) {
+            Cell cell = newCell(environment, stmt.slot);
+            Object superclass = stmt.superclass != null ? evaluate(stmt.superclass) : null;
+            cell.value = createClass(stmt, superclass, environment);
+            return null;
+        }
+        define(stmt.slot, stmt.name.lexeme(), null);
+        Object superclass = stmt.superclass != null ? evaluate(stmt.superclass) : null;
+        TinyLangClass klass = createClass(stmt, superclass, environment);
+        if (stmt.slot >= 0) {
+            environment.define(stmt.slot, klass);
+        } else {
+            globals.assign(stmt.name, klass);
+        }
+        return null;
+    }
+
+    /**
+     * Creates the class a declaration describes. Its methods close over
+     * {@code enclosing}, with a frame holding the superclass in between if
+     * there is one.
+     */
+    static TinyLangClass createClass(Stmt.Class stmt, Object superclass, Environment enclosing) {
         Map<String, TinyLangFunction> methods = new HashMap<>();
         Map<String, TinyLangFunction> staticMethods = new HashMap<>();
-        Object superclass = null;
 
         if (stmt.superclass != null) {
-            superclass = evaluate(stmt.superclass);
             if (!(superclass instanceof TinyLangClass)) {
                 throw new RuntimeError(stmt.superclass.name, "Superclass must be a class.");
             }
-        }
-
-        if (stmt.superclass != null) {
             if (stmt.name.lexeme().equals(stmt.superclass.name.lexeme())) {
                 throw new RuntimeError(stmt.superclass.name, "A class can't inherit from itself.");
             }
         }
 
+        Environment environment = enclosing;
         if (superclass != null) {
-            environment = new Environment(environment);
-            environment.define("super", superclass);
+            environment = new Environment(enclosing, 1);
+            environment.define(0, superclass);
         }
 
         for (Stmt.Function method : stmt.methods) {
@@ -291,21 +483,31 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 methods.put(method.name, function);
             }
         }
-        TinyLangClass klass = new TinyLangClass(stmt.name.lexeme(), superclass, methods, staticMethods);
-        if (superclass != null) {
-            environment = environment.enclosing();
-        }
-        environment.assign(stmt.name, klass);
-        return null;
+        return new TinyLangClass(stmt.name.lexeme(), superclass, methods, staticMethods);
     }
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
+        if (stmt.isBoxed) {
+            Cell cell = newCell(environment, stmt.slot);
+            cell.value = new TinyLangFunction(stmt, environment, false);
+            return null;
+        }
         TinyLangFunction function = new TinyLangFunction(stmt, environment, false);
-        environment.define(stmt.name, function);
+        define(stmt.slot, stmt.name, function);
         return null;
     }
 
+    /**
+     * Stores a new cell in the slot of a boxed variable before its value is
+     * computed, so that closures created meanwhile capture the variable.
+     */
+    static Cell newCell(Environment environment, int slot) {
+        Cell cell = new Cell(null);
+        environment.define(slot, cell);
+        return cell;
+    }
+
     @Override
     public Void visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression);
@@ -313,18 +515,12 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return null;
     }
 
-    private boolean isTruthy(Object right) {
-        if (right == null) return false;
-        if (right instanceof Boolean b) return b;
-        return true;
-    }
-
-    private void checkNumberOperand(Token operator, Object operand) {
+    private static void checkNumberOperand(Token operator, Object operand) {
         if (operand instanceof Double) return;
         throw new RuntimeError(operator, "Operand of '" + operator + "' must be a number.");
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right) {
+    private static void checkNumberOperands(Token operator, Object left, Object right) {
         if (left instanceof Double && right instanceof Double) return;
         throw new RuntimeError(operator, "Operands of '" + operator + "' must be numbers.");
     }
@@ -343,12 +539,91 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         try {
             for (Stmt statement : statements) {
                 execute(statement);
+                if (returning) break;
             }
         } finally {
             this.environment = previous;
         }
     }
 
+    /** Compiles hot functions to bytecode from now on; null keeps everything interpreted. */
+    public void setJit(Jit jit) {
+        this.jit = jit;
+        if (jit != null && callCounts == null) callCounts = new CallCounts();
+    }
+
+    Jit jit() {
+        return jit;
+    }
+
+    /** Makes the property caches of the run, which may count their hits, the ones this interpreter uses. */
+    void setPropertyCaches(PropertyCache.Sites propertyCaches) {
+        this.propertyCaches = propertyCaches;
+    }
+
+    PropertyCache.Sites propertyCaches() {
+        return propertyCaches;
+    }
+
+    /** Makes the memos of the run, which may be kept for their stats, the ones this interpreter's functions fill. */
+    void setMemos(Memo.Registry memos) {
+        this.memos = memos;
+    }
+
+    Memo.Registry memos() {
+        return memos;
+    }
+
+    /**
+     * Counts calls in the given table, which a profile may have seeded and
+     * will save; null counts no calls, which is only right without a JIT.
+     */
+    void setCallCounts(CallCounts callCounts) {
+        this.callCounts = callCounts;
+    }
+
+    CallCounts callCounts() {
+        return callCounts;
+    }
+
+    /**
+     * Makes the function that is returning call {@code function} on
+     * {@code frame} once it has returned, in place of its own result.
+     */
+    public void tailCall(TinyLangFunction function, Environment frame) {
+        tailCallee = function;
+        tailFrame = frame;
+    }
+
+    /** The callee of the pending tail call, clearing it, or null if there is none. */
+    TinyLangFunction takeTailCallee() {
+        TinyLangFunction callee = tailCallee;
+        tailCallee = null;
+        return callee;
+    }
+
+    Environment takeTailFrame() {
+        Environment frame = tailFrame;
+        tailFrame = null;
+        return frame;
+    }
+
+    public Environment globals() {
+        return globals;
+    }
+
+    boolean isReturning() {
+        return returning;
+    }
+
+    /** Returns the value of the pending return statement and clears it. */
+    Object takeReturnValue() {
+        Object value = returnValue;
+        returning = false;
+        returnValue = null;
+        return value;
+    }
+
     private void execute(Stmt statement) {
         statement.accept(this);
     }
@@ -366,33 +641,39 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
     }
 
-    private String stringify(Object object) {
-        if (object == null) return "nil";
-        if (object instanceof Double d) {
-            String text = d.toString();
-            if (text.endsWith(".0")) {
-                text = text.substring(0, text.length() - 2);
-            }
-            return text;
-        }
-        return object.toString();
-    }
-
     public void interpret(List<Stmt> statements) {
         for (Stmt statement : statements) {
             execute(statement);
         }
     }
 
-    public void resolve(Expr expr, int i) {
-        locals.put(expr, i);
+    private void define(int slot, String name, Object value) {
+        if (slot >= 0) {
+            environment.define(slot, value);
+        } else {
+            globals.define(name, value);
+        }
+    }
+
+    private Object lookupVariable(Token name, Expr.Resolvable expr) {
+        if (expr.isLocal()) {
+            return local(environment, expr);
+        }
+        return globals.global(expr, name).get(name);
     }
 
-    private Object lookupVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme());
+    static Object local(Environment environment, Expr.Resolvable expr) {
+        if (expr.isBoxed) {
+            return environment.getBoxedAt(expr.depth, expr.slot);
+        }
+        return environment.getAt(expr.depth, expr.slot);
+    }
+
+    static void assignLocal(Environment environment, Expr.Resolvable expr, Object value) {
+        if (expr.isBoxed) {
+            environment.assignBoxedAt(expr.depth, expr.slot, value);
+        } else {
+            environment.assignAt(expr.depth, expr.slot, value);
         }
-        return globals.get(name);
     }
 }
@@ -1,6 +1,7 @@
 package com.tinylang;
 
 import com.tinylang.token.Token;
+import com.tinylang.token.TokenBuffer;
 import com.tinylang.token.TokenType;
 
 import java.util.*;
@@ -8,7 +9,15 @@ import java.util.*;
 import static com.tinylang.token.TokenType.*;
 import static java.lang.Character.isDigit;
 
-public class Lexer {
+/**
+ * Turns source text into tokens, one at a time as the parser asks for them,
+ * so the whole list of tokens never has to exist at once. The text can be
+ * any character sequence, such as a file mapped into memory by
+ * {@link MappedSource}. Tokens go into a {@link TokenBuffer}, which keeps
+ * their text as offsets into the source; only numbers, strings and the
+ * first occurrence of each identifier copy text out of it.
+ */
+public class Lexer implements Iterator<Token> {
 
     private static final Map<String, TokenType> keywords;
 
@@ -36,65 +45,100 @@ public class Lexer {
     private int start = 0;
     private int current = 0;
     private int line = 1;
-    private final String content;
-    private final List<Token> tokens;
+    private boolean scannedEof = false;
+    private final CharSequence content;
+    private final TokenBuffer tokens;
 
-    public Lexer(String content) {
+    public Lexer(CharSequence content) {
         this.content = content;
-        this.tokens = new ArrayList<>();
+        this.tokens = new TokenBuffer(content);
     }
 
+    /** The buffer {@link #scan} adds tokens to. */
+    public TokenBuffer tokens() {
+        return tokens;
+    }
+
+    /** Scans all the tokens up front, for callers that want them as a list. */
     public List<Token> scanTokens() {
+        List<Token> tokens = new ArrayList<>();
+        while (hasNext()) {
+            tokens.add(next());
+        }
+        return tokens;
+    }
+
+    /** Whether the EOF token is yet to come. */
+    @Override
+    public boolean hasNext() {
+        return !scannedEof;
+    }
+
+    @Override
+    public Token next() {
+        if (scannedEof) throw new NoSuchElementException();
+        int index = scan();
+        tokens.retainFrom(index);
+        return tokens.token(index);
+    }
+
+    /**
+     * Scans the next token into {@link #tokens()} and returns its index, or
+     * the index of the EOF token once the source is used up.
+     */
+    public int scan() {
+        if (scannedEof) return tokens.size() - 1;
         while (!isAtEnd()) {
             start = current;
-            scanToken();
+            if (scanToken()) return tokens.size() - 1;
         }
-
-        tokens.add(new Token(TokenType.EOF, "", null, line));
-        return tokens;
+        scannedEof = true;
+        return tokens.add(TokenType.EOF, current, current, line, null);
     }
 
-    private void scanToken() {
+    /** Scans what starts at the current character; false if it was no token. */
+    private boolean scanToken() {
         char c = advance();
-        switch (c) {
-            case '(' -> addToken(TokenType.LEFT_PAREN);
-            case ')' -> addToken(TokenType.RIGHT_PAREN);
-            case '{' -> addToken(TokenType.LEFT_BRACE);
-            case '}' -> addToken(TokenType.RIGHT_BRACE);
-            case ',' -> addToken(TokenType.COMMA);
-            case '.' -> addToken(TokenType.DOT);
-            case '-' -> addToken(TokenType.MINUS);
-            case '+' -> addToken(TokenType.PLUS);
-            case ';' -> addToken(TokenType.SEMICOLON);
-            case '%' -> addToken(TokenType.PERCENT);
-            case '*' -> addToken(match('*') ? TokenType.STAR_STAR : TokenType.STAR);
-            case '!' -> addToken(match('=') ? TokenType.BANG_EQUAL : TokenType.BANG);
-            case '=' -> addToken(match('=') ? TokenType.EQUAL_EQUAL : TokenType.EQUAL);
-            case '<' -> addToken(match('=') ? TokenType.LESS_EQUAL : TokenType.LESS);
-            case '>' -> addToken(match('=') ? TokenType.GREATER_EQUAL : TokenType.GREATER);
+        return switch (c) {
+            case '(' -> symbol(TokenType.LEFT_PAREN);
+            case ')' -> symbol(TokenType.RIGHT_PAREN);
+            case '{' -> symbol(TokenType.LEFT_BRACE);
+            case '}' -> symbol(TokenType.RIGHT_BRACE);
+            case ',' -> symbol(TokenType.COMMA);
+            case '.' -> symbol(TokenType.DOT);
+            case '-' -> symbol(TokenType.MINUS);
+            case '+' -> symbol(TokenType.PLUS);
+            case ';' -> symbol(TokenType.SEMICOLON);
+            case '%' -> symbol(TokenType.PERCENT);
+            case '*' -> match('*') ? symbol(TokenType.STAR_STAR) : symbol(TokenType.STAR);
+            case '!' -> match('=') ? symbol(TokenType.BANG_EQUAL) : symbol(TokenType.BANG);
+            case '=' -> match('=') ? symbol(TokenType.EQUAL_EQUAL) : symbol(TokenType.EQUAL);
+            case '<' -> match('=') ? symbol(TokenType.LESS_EQUAL) : symbol(TokenType.LESS);
+            case '>' -> match('=') ? symbol(TokenType.GREATER_EQUAL) : symbol(TokenType.GREATER);
             case '/' -> {
                 if (match('/')) {
                     // A comment goes until the end of the line.
                     while (peek() != '\n' && !isAtEnd()) advance();
-                } else {
-                    addToken(TokenType.SLASH);
+                    yield false;
                 }
+                yield symbol(TokenType.SLASH);
             }
-            case ' ', '\r', '\t' -> {
-                // Ignore whitespace.
+            case ' ', '\r', '\t' -> false; // Ignore whitespace.
+            case '\n' -> {
+                line++;
+                yield false;
             }
-            case '\n' -> line++;
             case '"' -> string();
             default -> {
                 if (isDigit(c)) {
-                    number();
+                    yield number();
                 } else if (isAlpha(c)) {
-                    identifier();
-                } else {
-                    TinyLang.error(line, "Unexpected character.");
+                    yield identifier();
                 }
+                TinyLang.error(line, "Unexpected character.");
+                yield false;
             }
-        }
+        };
     }
 
     private boolean isAlpha(char c) {
@@ -122,20 +166,24 @@ public class Lexer {
         return true;
     }
 
-    private void addToken(TokenType tokenType) {
-        addToken(tokenType, null);
+    private boolean symbol(TokenType tokenType) {
+        return token(tokenType, null);
+    }
+
+    private boolean token(TokenType tokenType, Object literal) {
+        tokens.add(tokenType, start, current, line, literal);
+        return true;
     }
 
-    private void addToken(TokenType tokenType, Object literal) {
-        String text = content.substring(start, current);
-        tokens.add(new Token(tokenType, text, literal, line));
+    private String text(int from, int to) {
+        return content.subSequence(from, to).toString();
     }
 
     private boolean isAtEnd() {
         return current >= content.length();
     }
 
-    private void string() {
+    private boolean string() {
         while (peek() != '"' && !isAtEnd()) {
             if (peek() == '\n') line++;
             advance();
@@ -143,14 +191,14 @@ public class Lexer {
 
         if (isAtEnd()) {
             TinyLang.error(line, "Unterminated string.");
-            return;
+            return false;
         }
 
         advance();
-        addToken(TokenType.STRING, content.substring(start + 1, current - 1));
+        return token(TokenType.STRING, text(start + 1, current - 1));
     }
 
-    private void number() {
+    private boolean number() {
         while (isDigit(peek())) {
             advance();
         }
@@ -162,7 +210,7 @@ public class Lexer {
                 advance();
             }
         }
-        addToken(TokenType.NUMBER, Double.parseDouble(content.substring(start, current)));
+        return token(TokenType.NUMBER, Double.parseDouble(text(start, current)));
     }
 
     private char peekNext() {
@@ -170,15 +218,15 @@ public class Lexer {
         return content.charAt(current + 1);
     }
 
-    private void identifier() {
+    private boolean identifier() {
         while (isAlphaNumeric(peek())) {
             advance();
         }
-        String text = content.substring(start, current);
+        String text = tokens.intern(start, current);
         TokenType type = keywords.get(text);
         if (type == null) {
             type = TokenType.IDENTIFIER;
         }
-        addToken(type, text);
+        return token(type, text);
     }
 }
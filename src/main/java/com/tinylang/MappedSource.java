@@ -0,0 +1,87 @@
+package com.tinylang;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The text of a source file read straight from the file mapped into memory,
+ * one byte per character while the bytes are ASCII, so that the file is
+ * never copied whole. The lexer only copies out the text of the tokens that
+ * need it. The bytes are checked as they are reached; at the first one that
+ * is not ASCII, the whole file is decoded as UTF-8, and the text is read from
+ * that from then on. The characters before it are the same either way, but
+ * the length, which counts bytes until then, may shrink.
+ */
+final class MappedSource implements CharSequence {
+
+    private final ByteBuffer bytes;
+    // How many bytes from the start are known to be ASCII.
+    private int ascii;
+    // The file decoded as UTF-8 once a byte that is not ASCII is reached.
+    private String text;
+
+    private MappedSource(ByteBuffer bytes, int ascii) {
+        this.bytes = bytes;
+        this.ascii = ascii;
+    }
+
+    /** Maps the file, or reads it into a string if it is too large to map. */
+    static CharSequence read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                return Files.readString(path);
+            }
+            return new MappedSource(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), 0);
+        }
+    }
+
+    @Override
+    public int length() {
+        return text != null ? text.length() : bytes.limit();
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < ascii || (text == null && isAscii(index + 1))) {
+            return (char) bytes.get(index);
+        }
+        return text.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (text == null && isAscii(end)) {
+            return new MappedSource(bytes.slice(start, end - start), end - start);
+        }
+        return text.subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        if (text == null && isAscii(bytes.limit())) {
+            byte[] chars = new byte[bytes.limit()];
+            bytes.get(0, chars);
+            return new String(chars, StandardCharsets.US_ASCII);
+        }
+        return text;
+    }
+
+    /** Whether the bytes before {@code end} are all ASCII; if not, decodes the file. */
+    private boolean isAscii(int end) {
+        for (; ascii < end; ascii++) {
+            if (bytes.get(ascii) < 0) {
+                byte[] utf8 = new byte[bytes.limit()];
+                bytes.get(0, utf8);
+                text = new String(utf8, StandardCharsets.UTF_8);
+                return false;
+            }
+        }
+        return true;
+    }
+}
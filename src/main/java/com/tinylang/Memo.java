@@ -0,0 +1,107 @@
+package com.tinylang;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The results of one memoized function, keyed on its arguments. Only calls
+ * whose arguments are all numbers, strings, booleans or nil are cached, as
+ * those compare by value; numbers compare as {@link Double#equals} does, so
+ * {@code 0} and {@code -0} are different arguments. Up to
+ * {@link #MAX_ENTRIES} results are kept, and the least recently used one is
+ * dropped to make room for a new one.
+ */
+public final class Memo {
+
+    static final int MAX_ENTRIES = 1024;
+
+    /** What {@link #get} returns for arguments that have no result yet. */
+    static final Object MISSING = new Object();
+
+    private final String name;
+    private final Map<List<Object>, Object> results = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<Object>, Object> eldest) {
+            if (size() <= MAX_ENTRIES) return false;
+            evictions++;
+            return true;
+        }
+    };
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    private Memo(String name) {
+        this.name = name;
+    }
+
+    /**
+     * The arguments in slots 0 to arity - 1 of a call's frame, as a key, or
+     * null if one of them is a value that cannot be cached.
+     */
+    static List<Object> key(Environment frame, int arity) {
+        Object[] arguments = new Object[arity];
+        for (int i = 0; i < arity; i++) {
+            Object argument = frame.getAt(0, i);
+            if (argument != null && !(argument instanceof Double)
+                    && !(argument instanceof String) && !(argument instanceof Boolean)) {
+                return null;
+            }
+            arguments[i] = argument;
+        }
+        return Arrays.asList(arguments);
+    }
+
+    Object get(List<Object> key) {
+        Object result = results.getOrDefault(key, MISSING);
+        if (result == MISSING) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return result;
+    }
+
+    void put(List<Object> key, Object result) {
+        results.put(key, result);
+    }
+
+    /**
+     * The memos of one run. The memos made are only kept for
+     * {@link #printStats}, when asked for.
+     */
+    public static final class Registry {
+
+        private final boolean counting;
+        private final List<Memo> memos = new ArrayList<>();
+
+        public Registry(boolean counting) {
+            this.counting = counting;
+        }
+
+        /** A new, empty memo for a function of the given name. */
+        Memo memo(String name) {
+            Memo memo = new Memo(name);
+            if (counting) memos.add(memo);
+            return memo;
+        }
+
+        /** Prints the hit rate of every memo made in the run. */
+        public void printStats(PrintStream out) {
+            long hits = 0;
+            long misses = 0;
+            for (Memo memo : memos) {
+                long total = memo.hits + memo.misses;
+                out.printf("fn %s: %d/%d hits (%.1f%%), %d result(s), %d evicted%n",
+                        memo.name, memo.hits, total, 100.0 * memo.hits / total, memo.results.size(), memo.evictions);
+                hits += memo.hits;
+                misses += memo.misses;
+            }
+            out.printf("memoized functions: %d, %d/%d hits%n", memos.size(), hits, hits + misses);
+        }
+    }
+}
@@ -3,6 +3,7 @@ package com.tinylang;
 import com.tinylang.ast.Expr;
 import com.tinylang.ast.Stmt;
 import com.tinylang.token.Token;
+import com.tinylang.token.TokenBuffer;
 import com.tinylang.token.TokenType;
 
 import java.util.ArrayList;
@@ -14,11 +15,25 @@ public class Parser {
     private static class ParseError extends RuntimeException {
     }
 
-    private final List<Token> tokens;
-    private int current = 0;
+    // The lexer filling the buffer as the parser reads it, or null if the buffer holds every token.
+    private final Lexer lexer;
+    private final TokenBuffer tokens;
+    private int current;
 
     public Parser(List<Token> tokens) {
-        this.tokens = tokens;
+        this.lexer = null;
+        this.tokens = TokenBuffer.of(tokens);
+        this.current = 0;
+    }
+
+    /**
+     * Parses the tokens as the lexer scans them, reading their types straight
+     * from its {@link TokenBuffer} and letting it drop the tokens behind.
+     */
+    public Parser(Lexer lexer) {
+        this.lexer = lexer;
+        this.tokens = lexer.tokens();
+        this.current = lexer.scan();
     }
 
     public List<Stmt> parse() {
@@ -33,7 +48,7 @@ public class Parser {
         try {
             if (match(TokenType.CLASS)) return classDeclaration();
             if (check(TokenType.FN) && checkNext(TokenType.IDENTIFIER)) {
-                consume(TokenType.FN, "Expect 'fn'.");
+                expect(TokenType.FN, "Expect 'fn'.");
                 return funDeclaration("function", false);
             }
             if (match(TokenType.LET)) return varDeclaration();
@@ -48,24 +63,24 @@ public class Parser {
         Token name = consume(TokenType.IDENTIFIER, "Expect class name.");
         Expr.VarExpr superClass = null;
         if (match(TokenType.EXTENDS)) {
-            consume(TokenType.IDENTIFIER, "Expect superclass name.");
+            expect(TokenType.IDENTIFIER, "Expect superclass name.");
             superClass = new Expr.VarExpr(previous());
         }
 
-        consume(TokenType.LEFT_BRACE, "Expect '{' before class body.");
+        expect(TokenType.LEFT_BRACE, "Expect '{' before class body.");
         List<Stmt.Function> methods = new ArrayList<>();
         while (!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
             boolean isStatic = false;
             if (match(TokenType.CLASS)) isStatic = true;
             methods.add(funDeclaration("method", isStatic));
         }
-        consume(TokenType.RIGHT_BRACE, "Expect '}' after class body.");
+        expect(TokenType.RIGHT_BRACE, "Expect '}' after class body.");
         return new Stmt.Class(name, superClass, methods);
     }
 
     private Stmt.Function funDeclaration(String kind, boolean isStatic) {
         Token name = consume(TokenType.IDENTIFIER, "Expect " + kind + " name.");
-        consume(TokenType.LEFT_PAREN, "Expect '(' after " + kind + " name.");
+        expect(TokenType.LEFT_PAREN, "Expect '(' after " + kind + " name.");
         List<String> parameters = new ArrayList<>();
         if (!check(TokenType.RIGHT_PAREN)) {
             do {
@@ -75,8 +90,8 @@ public class Parser {
                 parameters.add(consume(TokenType.IDENTIFIER, "Expect parameter name.").lexeme());
             } while (match(TokenType.COMMA));
         }
-        consume(TokenType.RIGHT_PAREN, "Expect ')' after parameters.");
-        consume(TokenType.LEFT_BRACE, "Expect '{' before " + kind + " body.");
+        expect(TokenType.RIGHT_PAREN, "Expect ')' after parameters.");
+        expect(TokenType.LEFT_BRACE, "Expect '{' before " + kind + " body.");
         List<Stmt> body = block();
         return new Stmt.Function(name.lexeme(), parameters, body, isStatic);
     }
@@ -87,7 +102,7 @@ public class Parser {
         if (match(TokenType.EQUAL)) {
             initializer = expression();
         }
-        consume(TokenType.SEMICOLON, "Expect ';' after variable declaration.");
+        expect(TokenType.SEMICOLON, "Expect ';' after variable declaration.");
         return new Stmt.Let(name.lexeme(), initializer);
     }
 
@@ -102,7 +117,7 @@ public class Parser {
     }
 
     private Stmt forStatement() {
-        consume(TokenType.LEFT_PAREN, "Expect '(' after 'for'.");
+        expect(TokenType.LEFT_PAREN, "Expect '(' after 'for'.");
 
         Stmt initializer;
         if (match(TokenType.SEMICOLON)) {
@@ -117,13 +132,13 @@ public class Parser {
         if (!check(TokenType.SEMICOLON)) {
             condition = expression();
         }
-        consume(TokenType.SEMICOLON, "Expect ';' after loop condition.");
+        expect(TokenType.SEMICOLON, "Expect ';' after loop condition.");
 
         Expr increment = null;
         if (!check(TokenType.RIGHT_PAREN)) {
             increment = expression();
         }
-        consume(TokenType.RIGHT_PAREN, "Expect ')' after for clauses.");
+        expect(TokenType.RIGHT_PAREN, "Expect ')' after for clauses.");
 
         Stmt body = statement();
 
@@ -145,7 +160,7 @@ public class Parser {
 
     private Stmt printStatement() {
         Expr value = expression();
-        consume(TokenType.SEMICOLON, "Expect ';' after value.");
+        expect(TokenType.SEMICOLON, "Expect ';' after value.");
         return new Stmt.Print(value);
     }
 
@@ -154,14 +169,14 @@ public class Parser {
         if (!check(TokenType.SEMICOLON)) {
             value = expression();
         }
-        consume(TokenType.SEMICOLON, "Expect ';' after return value.");
+        expect(TokenType.SEMICOLON, "Expect ';' after return value.");
         return new Stmt.Return(value);
     }
 
     private Stmt ifStatement() {
-        consume(TokenType.LEFT_PAREN, "Expect '(' after 'if'.");
+        expect(TokenType.LEFT_PAREN, "Expect '(' after 'if'.");
         Expr condition = expression();
-        consume(TokenType.RIGHT_PAREN, "Expect ')' after if condition.");
+        expect(TokenType.RIGHT_PAREN, "Expect ')' after if condition.");
         Stmt thenBranch = statement();
         Stmt elseBranch = null;
         if (match(TokenType.ELSE)) {
@@ -171,9 +186,9 @@ public class Parser {
     }
 
     private Stmt whileStatement() {
-        consume(TokenType.LEFT_PAREN, "Expect '(' after 'while'.");
+        expect(TokenType.LEFT_PAREN, "Expect '(' after 'while'.");
         Expr condition = expression();
-        consume(TokenType.RIGHT_PAREN, "Expect ')' after condition.");
+        expect(TokenType.RIGHT_PAREN, "Expect ')' after condition.");
         Stmt body = statement();
         return new Stmt.While(condition, body);
     }
@@ -183,13 +198,13 @@ public class Parser {
         while (!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
             statements.add(declaration());
         }
-        consume(TokenType.RIGHT_BRACE, "Expect '}' after block.");
+        expect(TokenType.RIGHT_BRACE, "Expect '}' after block.");
         return statements;
     }
 
     private Stmt expressionStatement() {
         Expr expr = expression();
-        consume(TokenType.SEMICOLON, "Expect ';' after expression.");
+        expect(TokenType.SEMICOLON, "Expect ';' after expression.");
         return new Stmt.Expression(expr);
     }
 
@@ -326,7 +341,7 @@ public class Parser {
         if (match(TokenType.TRUE)) return new Expr.LiteralExpr(true);
         if (match(TokenType.NIL)) return new Expr.LiteralExpr(null);
         if (match(TokenType.NUMBER, TokenType.STRING)) {
-            return new Expr.LiteralExpr(previous().literal());
+            return new Expr.LiteralExpr(tokens.literal(current - 1));
         }
         if (match(TokenType.THIS)) {
             return new Expr.ThisExpr(previous());
@@ -336,14 +351,14 @@ public class Parser {
         }
         if (match(TokenType.SUPER)) {
             Token keyword = previous();
-            consume(TokenType.DOT, "Expect '.' after 'super'.");
+            expect(TokenType.DOT, "Expect '.' after 'super'.");
             Token method = consume(TokenType.IDENTIFIER, "Expect superclass method name.");
             return new Expr.Super(keyword, method);
         }
 
         if (match(TokenType.LEFT_PAREN)) {
             Expr expr = expression();
-            consume(TokenType.RIGHT_PAREN, "Expect ')' after expression.");
+            expect(TokenType.RIGHT_PAREN, "Expect ')' after expression.");
             return new Expr.GroupingExpr(expr);
         }
         if (match(TokenType.FN)) return functionExpression();
@@ -351,7 +366,7 @@ public class Parser {
     }
 
     private Expr functionExpression() {
-        consume(TokenType.LEFT_PAREN, "Expect '(' after 'fn'.");
+        expect(TokenType.LEFT_PAREN, "Expect '(' after 'fn'.");
         List<String> parameters = new ArrayList<>();
         if (!check(TokenType.RIGHT_PAREN)) {
             do {
@@ -361,8 +376,8 @@ public class Parser {
                 parameters.add(consume(TokenType.IDENTIFIER, "Expect parameter name.").lexeme());
             } while (match(TokenType.COMMA));
         }
-        consume(TokenType.RIGHT_PAREN, "Expect ')' after parameters.");
-        consume(TokenType.LEFT_BRACE, "Expect '{' before function body.");
+        expect(TokenType.RIGHT_PAREN, "Expect ')' after parameters.");
+        expect(TokenType.LEFT_BRACE, "Expect '{' before function body.");
         List<Stmt> body = block();
         return new Expr.Function(parameters, body);
     }
@@ -378,43 +393,60 @@ public class Parser {
     }
 
     private Token consume(TokenType type, String message) {
-        if (check(type)) return advance();
-        throw error(peek(), message);
+        expect(type, message);
+        return previous();
+    }
+
+    /** Consumes a token the syntax tree has no use for, creating no {@link Token}. */
+    private void expect(TokenType type, String message) {
+        if (!check(type)) throw error(peek(), message);
+        advance();
     }
 
     private boolean check(TokenType type) {
         if (isAtEnd()) return false;
-        return peek().type() == type;
+        return type(current) == type;
     }
 
     private boolean checkNext(TokenType tokenType) {
         if (isAtEnd()) return false;
-        if (tokens.get(current + 1).type() == TokenType.EOF) return false;
-        return tokens.get(current + 1).type() == tokenType;
+        if (type(current + 1) == TokenType.EOF) return false;
+        return type(current + 1) == tokenType;
     }
 
-    private Token advance() {
-        if (!isAtEnd()) current++;
-        return previous();
+    private void advance() {
+        if (!isAtEnd()) {
+            current++;
+            tokens.retainFrom(current - 1);
+        }
+    }
+
+    /** The type of a token, scanning up to it first if need be. */
+    private TokenType type(int index) {
+        while (lexer != null && index >= tokens.size()) {
+            lexer.scan();
+        }
+        return tokens.type(index);
     }
 
     private Token peek() {
-        return tokens.get(current);
+        type(current);
+        return tokens.token(current);
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return tokens.token(current - 1);
     }
 
     private boolean isAtEnd() {
-        return peek().type() == TokenType.EOF;
+        return type(current) == TokenType.EOF;
     }
 
     private void synchronize() {
         advance();
         while (!isAtEnd()) {
-            if (previous().type() == TokenType.SEMICOLON) return;
-            switch (peek().type()) {
+            if (type(current - 1) == TokenType.SEMICOLON) return;
+            switch (type(current)) {
                 case CLASS, FN, LET, FOR, IF, WHILE, PRINT, RETURN -> {
                     return;
                 }
@@ -0,0 +1,193 @@
+package com.tinylang;
+
+import com.tinylang.ast.Expr;
+import com.tinylang.error.RuntimeError;
+import com.tinylang.token.Token;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Inline cache for one property access site. Each entry is keyed on the
+ * receiver's shape; since every class has its own shapes, a matching shape
+ * also pins down the class, so an entry can hold either the field's slot or
+ * the method the name resolves to. Up to {@link #MAX_ENTRIES} shapes are
+ * cached; a site that sees more goes megamorphic and takes the lookup path
+ * for every shape it doesn't already know.
+ * <p>
+ * Caches belong to the {@link Sites} of one run, which keeps the cache of
+ * each site of the syntax tree from the first time it runs.
+ */
+public final class PropertyCache {
+
+    static final int MAX_ENTRIES = 4;
+
+    private final Token name;
+    private final String kind;
+    private final Sites sites;
+    private Shape[] shapes;
+    private Shape[] targets;
+    private int[] slots;
+    private TinyLangFunction[] methods;
+    private int count;
+    private boolean megamorphic;
+    private long hits;
+    private long misses;
+
+    private PropertyCache(Token name, String kind, Sites sites) {
+        this.name = name;
+        this.kind = kind;
+        this.sites = sites;
+    }
+
+    public Object get(TinyLangInstance instance) {
+        Shape shape = instance.shape();
+        for (int i = 0; i < count; i++) {
+            if (shapes[i] == shape) {
+                if (sites.counting) hits++;
+                TinyLangFunction method = methods[i];
+                return method == null ? instance.load(slots[i]) : method.bind(instance);
+            }
+        }
+        return getMiss(instance, shape);
+    }
+
+    private Object getMiss(TinyLangInstance instance, Shape shape) {
+        TinyLangFunction method = resolve(instance, shape);
+        return method == null ? instance.load(shape.slot(name.lexeme())) : method.bind(instance);
+    }
+
+    /**
+     * The method the name resolves to on this instance, or null if a field of
+     * that name shadows it. Lets a call site invoke the method without binding it.
+     */
+    public TinyLangFunction method(TinyLangInstance instance) {
+        Shape shape = instance.shape();
+        for (int i = 0; i < count; i++) {
+            if (shapes[i] == shape) {
+                if (sites.counting) hits++;
+                return methods[i];
+            }
+        }
+        return resolve(instance, shape);
+    }
+
+    private TinyLangFunction resolve(TinyLangInstance instance, Shape shape) {
+        if (sites.counting) misses++;
+        int slot = shape.slot(name.lexeme());
+        if (slot >= 0) {
+            record(shape, shape, slot, null);
+            return null;
+        }
+        TinyLangFunction method = instance.klass().findMethod(name.lexeme());
+        if (method == null) {
+            throw new RuntimeError(name, "Undefined property '" + name.lexeme() + "'.");
+        }
+        record(shape, shape, -1, method);
+        return method;
+    }
+
+    public void set(TinyLangInstance instance, Object value) {
+        Shape shape = instance.shape();
+        for (int i = 0; i < count; i++) {
+            if (shapes[i] == shape) {
+                if (sites.counting) hits++;
+                instance.store(targets[i], slots[i], value);
+                return;
+            }
+        }
+        if (sites.counting) misses++;
+        Shape target = shape;
+        int slot = shape.slot(name.lexeme());
+        if (slot < 0) {
+            target = shape.withField(name.lexeme());
+            slot = target.size() - 1;
+        }
+        record(shape, target, slot, null);
+        instance.store(target, slot, value);
+    }
+
+    private void record(Shape shape, Shape target, int slot, TinyLangFunction method) {
+        if (shapes == null) {
+            shapes = new Shape[MAX_ENTRIES];
+            targets = new Shape[MAX_ENTRIES];
+            slots = new int[MAX_ENTRIES];
+            methods = new TinyLangFunction[MAX_ENTRIES];
+            if (sites.counting) sites.caches.add(this);
+        }
+        if (count == MAX_ENTRIES) {
+            megamorphic = true;
+            return;
+        }
+        shapes[count] = shape;
+        targets[count] = target;
+        slots[count] = slot;
+        methods[count] = method;
+        count++;
+    }
+
+    /**
+     * The property caches of one run. Hits and misses are only counted, and
+     * the sites that ran only kept for {@link #printStats}, when asked for.
+     */
+    public static final class Sites {
+
+        private final boolean counting;
+        private final List<PropertyCache> caches = new ArrayList<>();
+        private final Map<Expr, PropertyCache> bySite = new IdentityHashMap<>();
+
+        public Sites(boolean counting) {
+            this.counting = counting;
+        }
+
+        /** The cache of a property read, made the first time it is needed. */
+        public PropertyCache get(Expr.GetExpr expr) {
+            PropertyCache cache = bySite.get(expr);
+            if (cache == null) {
+                cache = forGet(expr.name);
+                bySite.put(expr, cache);
+            }
+            return cache;
+        }
+
+        /** The cache of a property assignment, made the first time it is needed. */
+        public PropertyCache set(Expr.SetExpr expr) {
+            PropertyCache cache = bySite.get(expr);
+            if (cache == null) {
+                cache = forSet(expr.name);
+                bySite.put(expr, cache);
+            }
+            return cache;
+        }
+
+        /** A new cache for a read of the property, for a backend that keeps it itself. */
+        public PropertyCache forGet(Token name) {
+            return new PropertyCache(name, "get", this);
+        }
+
+        public PropertyCache forSet(Token name) {
+            return new PropertyCache(name, "set", this);
+        }
+
+        /** Prints the hit rate of every site that has run, megamorphic ones flagged. */
+        public void printStats(PrintStream out) {
+            long hits = 0;
+            long misses = 0;
+            int megamorphic = 0;
+            for (PropertyCache site : caches) {
+                long total = site.hits + site.misses;
+                out.printf("[line %d] %s .%s: %d/%d hits (%.1f%%), %d shape(s)%s%n",
+                        site.name.line(), site.kind, site.name.lexeme(), site.hits, total,
+                        100.0 * site.hits / total, site.count, site.megamorphic ? ", megamorphic" : "");
+                hits += site.hits;
+                misses += site.misses;
+                if (site.megamorphic) megamorphic++;
+            }
+            out.printf("property caches: %d site(s), %d/%d hits, %d megamorphic%n",
+                    caches.size(), hits, hits + misses, megamorphic);
+        }
+    }
+}
@@ -1,23 +1,124 @@
 package com.tinylang;
 
+import com.tinylang.ast.Capture;
 import com.tinylang.ast.Expr;
 import com.tinylang.ast.Stmt;
 import com.tinylang.token.Token;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 
 public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
 
-    private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    private final Stack<Scope> scopes = new Stack<>();
+    // Writes slots, frame sizes and captures onto the tree once the outermost scope ends.
+    private final List<Runnable> layoutActions = new ArrayList<>();
     private FunctionType currentFunctionType = FunctionType.NULL;
     private ClassType currentClassType = ClassType.NULL;
+    // Global functions by name, and the globals that are declared more than once or assigned.
+    private final Map<String, Stmt.Function> globalFunctions = new HashMap<>();
+    private final Set<String> declaredGlobals = new HashSet<>();
+    private final Set<String> reassignedGlobals = new HashSet<>();
+
+    /** A local variable. */
+    private static class Variable {
+        private final Scope scope;
+        private final int index;
+        // 'this' and 'super' never change, so closures copy them instead of boxing them.
+        private final boolean isMutable;
+        private boolean isDefined = false;
+        private boolean isBoxed = false;
+
+        Variable(Scope scope, int index, boolean isMutable) {
+            this.scope = scope;
+            this.index = index;
+            this.isMutable = isMutable;
+        }
+
+        int slot() {
+            return scope.base + index;
+        }
+    }
+
+    /**
+     * A lexical scope. The runtime frame of a function holds its parameters
+     * and locals, and those of the blocks in it, each of which gets the next
+     * free slot; sibling blocks never run at the same time and share slots.
+     * A closure does not keep the frames around it alive: it gets a frame of
+     * its own holding just the variables it captures. Those it may assign are
+     * boxed in a {@link Cell} it shares with the frame that declares them, so
+     * every run of a block, such as every iteration of a loop, still creates
+     * fresh variables. Top-level blocks, which have no enclosing frame, and
+     * the scope holding a class's superclass get a frame of their own.
+     * <p>
+     * Whether a variable is captured is only known once its scope has been
+     * resolved, so frames are laid out, and slots, frame distances and
+     * captures written onto the tree, when the outermost scope ends.
+     */
+    private static class Scope {
+        private final Scope parent;
+        private final Scope function;
+        private final boolean isFrame;
+        private final Map<String, Variable> variables = new HashMap<>();
+        private final List<Scope> children = new ArrayList<>();
+        // In a function's scope: the variables of enclosing functions it captures, by slot in its closure.
+        private final List<Variable> captures = new ArrayList<>();
+        // Set by layout().
+        private Scope frame;
+        private int base;
+        private int size;
+
+        Scope(Scope parent, boolean isFunction, boolean isFrame) {
+            this.parent = parent;
+            this.function = isFunction ? this : parent != null ? parent.function : null;
+            this.isFrame = isFrame || parent == null;
+            if (parent != null) parent.children.add(this);
+        }
+
+        Variable declare(String name, boolean isMutable) {
+            Variable variable = variables.computeIfAbsent(name, key -> new Variable(this, variables.size(), isMutable));
+            variable.isDefined = false;
+            return variable;
+        }
+
+        /**
+         * Places this scope's variables at {@code base} in {@code frame}, or
+         * in a frame of its own, followed by those of the blocks in it, and
+         * returns the end of the slots used.
+         */
+        int layout(Scope frame, int base) {
+            this.frame = isFrame ? this : frame;
+            this.base = isFrame ? 0 : base;
+            int next = this.base + variables.size();
+            int end = next;
+            for (Scope child : children) {
+                end = Math.max(end, child.layout(this.frame, next));
+            }
+            if (isFrame) {
+                size = end;
+                return base;
+            }
+            return end;
+        }
+
+        /** The number of slots of the scope's own frame, or 0 if it runs in the enclosing one. */
+        int frameSize() {
+            return frame == this ? size : 0;
+        }
 
-    public Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+        /** The number of frames between this scope's and the one {@code scope} lives in. */
+        int distanceTo(Scope scope) {
+            int distance = 0;
+            for (Scope current = frame; current != scope.frame; current = current.parent.frame) {
+                distance++;
+            }
+            return distance;
+        }
     }
 
     @Override
@@ -35,8 +136,11 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
 
     @Override
     public Void visitVarExpr(Expr.VarExpr expr) {
-        if (!scopes.isEmpty() && scopes.peek().get(expr.name.lexeme()) == Boolean.FALSE) {
+        Variable variable = scopes.isEmpty() ? null : scopes.peek().variables.get(expr.name.lexeme());
+        if (variable != null && !variable.isDefined) {
             System.err.println("Error: Can't read local variable in its own initializer.");
+            // It reads nil there: a boxed variable gets a new cell before its initializer runs.
+            variable.isBoxed = true;
         }
         resolveLocal(expr, expr.name);
         return null;
@@ -45,7 +149,9 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
     @Override
     public Void visitAssignExpr(Expr.AssignExpr expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        if (!resolveLocal(expr, expr.name)) {
+            reassign(expr.name.lexeme());
+        }
         return null;
     }
 
@@ -68,12 +174,18 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
     public Void visitFunctionExpr(Expr.Function expr) {
         FunctionType enclosingFunction = currentFunctionType;
         currentFunctionType = FunctionType.FUNCTION;
-        beginScope();
+        Scope scope = beginScope(true, true);
+        List<Variable> params = new ArrayList<>();
         for (String param : expr.params) {
-            declare(param);
+            params.add(declare(param));
             define(param);
         }
         resolve(expr.body);
+        whenLaidOut(() -> {
+            expr.frameSize = scope.frameSize();
+            expr.captures = captures(scope);
+            expr.boxedParams = boxedSlots(params);
+        });
         endScope();
         currentFunctionType = enclosingFunction;
         return null;
@@ -122,16 +234,30 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
             TinyLang.error(superExpr.keyword, "Can't use 'super' in a class with no superclass.");
         }
         resolveLocal(superExpr, superExpr.keyword);
+        resolveLocal(superExpr.receiver, superExpr.receiver.keyword);
         return null;
     }
 
+    @Override
+    public Void visitInlineExpr(Expr.Inline expr) {
+        throw new IllegalStateException("Calls are inlined after resolution.");
+    }
+
     @Override
     public Void visitLetStmt(Stmt.Let stmt) {
-        declare(stmt.name);
+        Variable variable = declare(stmt.name);
         if (stmt.initializer != null) {
             resolve(stmt.initializer);
         }
         define(stmt.name);
+        if (variable != null) {
+            whenLaidOut(() -> {
+                stmt.slot = variable.slot();
+                stmt.isBoxed = variable.isBoxed;
+            });
+        } else {
+            declareGlobal(stmt.name);
+        }
         return null;
     }
 
@@ -168,14 +294,19 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
         }
         if (stmt.value != null) {
             resolve(stmt.value);
+            // An initializer returns its instance rather than the call's result.
+            if (stmt.value instanceof Expr.CallExpr call && currentFunctionType != FunctionType.INITIALIZER) {
+                call.isTailCall = true;
+            }
         }
         return null;
     }
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        beginScope();
+        Scope scope = beginScope(false, false);
         resolve(stmt.statements);
+        whenLaidOut(() -> stmt.slotCount = scope.frameSize());
         endScope();
         return null;
     }
@@ -184,8 +315,16 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
     public Void visitClassStmt(Stmt.Class stmt) {
         ClassType enclosingClassType = currentClassType;
         currentClassType = ClassType.CLASS;
-        declare(stmt.name.lexeme());
+        Variable variable = declare(stmt.name.lexeme());
         define(stmt.name.lexeme());
+        if (variable != null) {
+            whenLaidOut(() -> {
+                stmt.slot = variable.slot();
+                stmt.isBoxed = variable.isBoxed;
+            });
+        } else {
+            declareGlobal(stmt.name.lexeme());
+        }
         if (stmt.superclass != null && stmt.name.lexeme().equals(stmt.superclass.name.lexeme())) {
             TinyLang.error("A class can't inherit from itself.");
         }
@@ -195,20 +334,18 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
         }
 
         if (stmt.superclass != null) {
-            beginScope();
-            scopes.peek().put("super", true);
+            beginScope(false, true);
+            declare("super", false);
+            define("super");
         }
 
-        beginScope();
-        scopes.peek().put("this", true);
         for (Stmt.Function method : stmt.methods) {
-            FunctionType declaration = FunctionType.FUNCTION;
+            FunctionType declaration = FunctionType.METHOD;
             if (method.name.equals("init")) {
                 declaration = FunctionType.INITIALIZER;
             }
             resolveFunction(method, declaration);
         }
-        endScope();
         if (stmt.superclass != null) endScope();
         currentClassType = enclosingClassType;
         return null;
@@ -217,9 +354,19 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name);
+        Variable variable = declare(stmt.name);
         define(stmt.name);
         resolveFunction(stmt, FunctionType.FUNCTION);
+        if (variable != null) {
+            whenLaidOut(() -> {
+                stmt.slot = variable.slot();
+                stmt.isBoxed = variable.isBoxed;
+            });
+        } else {
+            declareGlobal(stmt.name);
+            stmt.isConstant = !reassignedGlobals.contains(stmt.name);
+            globalFunctions.put(stmt.name, stmt);
+        }
         return null;
     }
 
@@ -229,13 +376,59 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
         return null;
     }
 
-    private void resolveLocal(Expr expr, Token name) {
+    /** Resolves a variable to a local, if it is one, and returns whether it is. */
+    private boolean resolveLocal(Expr.Resolvable expr, Token name) {
         for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme())) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
+            Variable variable = scopes.get(i).variables.get(name.lexeme());
+            if (variable != null) {
+                Scope use = scopes.peek();
+                capture(use.function, variable);
+                whenLaidOut(() -> {
+                    Capture location = locate(use, variable);
+                    expr.depth = location.depth();
+                    expr.slot = location.slot();
+                    expr.isBoxed = variable.isBoxed;
+                });
+                return true;
             }
         }
+        return false;
+    }
+
+    /**
+     * Makes {@code function} capture a variable of an enclosing function, and
+     * so every function between the two, which it gets the variable from.
+     */
+    private static void capture(Scope function, Variable variable) {
+        if (function == variable.scope.function || function.captures.contains(variable)) {
+            return;
+        }
+        function.captures.add(variable);
+        if (variable.isMutable) {
+            variable.isBoxed = true;
+        }
+        capture(function.parent.function, variable);
+    }
+
+    /** Where code in {@code use} finds the variable: in a frame of its function, or in its closure's. */
+    private static Capture locate(Scope use, Variable variable) {
+        if (use.function == variable.scope.function) {
+            return new Capture(use.distanceTo(variable.scope), variable.slot());
+        }
+        return new Capture(use.distanceTo(use.function) + 1, use.function.captures.indexOf(variable));
+    }
+
+    /** Where a closure created in the scope around the function finds each variable it captures. */
+    private static List<Capture> captures(Scope function) {
+        List<Capture> captures = new ArrayList<>(function.captures.size());
+        for (Variable variable : function.captures) {
+            captures.add(locate(function.parent, variable));
+        }
+        return captures;
+    }
+
+    private static int[] boxedSlots(List<Variable> params) {
+        return params.stream().filter(param -> param.isBoxed).mapToInt(Variable::slot).toArray();
     }
 
     public void resolve(List<Stmt> statements) {
@@ -255,35 +448,80 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
     private void resolveFunction(Stmt.Function stmt, FunctionType functionType) {
         FunctionType enclosingFunction = currentFunctionType;
         currentFunctionType = functionType;
-        beginScope();
+        Scope scope = beginScope(true, true);
+        List<Variable> params = new ArrayList<>();
         for (String param : stmt.params) {
-            declare(param);
+            params.add(declare(param));
             define(param);
         }
+        // A method's receiver lives in its own frame, right after the parameters.
+        if (functionType == FunctionType.METHOD || functionType == FunctionType.INITIALIZER) {
+            Variable receiver = declare("this", false);
+            define("this");
+            whenLaidOut(() -> stmt.thisSlot = receiver.slot());
+        }
         resolve(stmt.body);
+        whenLaidOut(() -> {
+            stmt.frameSize = scope.frameSize();
+            stmt.captures = captures(scope);
+            stmt.boxedParams = boxedSlots(params);
+        });
         endScope();
         currentFunctionType = enclosingFunction;
     }
 
     private void endScope() {
-        scopes.pop();
+        Scope scope = scopes.pop();
+        if (scopes.isEmpty()) {
+            scope.layout(null, 0);
+            layoutActions.forEach(Runnable::run);
+            layoutActions.clear();
+        }
+    }
+
+    /**
+     * Opens a scope. A function's scope, or the one holding a class's
+     * superclass, always has a runtime frame of its own.
+     */
+    private Scope beginScope(boolean isFunction, boolean isFrame) {
+        Scope scope = new Scope(scopes.isEmpty() ? null : scopes.peek(), isFunction, isFrame);
+        scopes.push(scope);
+        return scope;
     }
 
-    private void beginScope() {
-        scopes.push(new HashMap<>());
+    private void whenLaidOut(Runnable action) {
+        layoutActions.add(action);
     }
 
     private void define(String name) {
         if (scopes.isEmpty()) return;
-        scopes.peek().put(name, true);
+        scopes.peek().variables.get(name).isDefined = true;
     }
 
-    private void declare(String name) {
-        if (scopes.isEmpty()) return;
-        Map<String, Boolean> scope = scopes.peek();
-        if (scope.containsKey(name)) {
+    private Variable declare(String name) {
+        return declare(name, true);
+    }
+
+    private void declareGlobal(String name) {
+        if (!declaredGlobals.add(name)) {
+            reassign(name);
+        }
+    }
+
+    /** Notes that a global may change after it is declared, so that no function it holds is inlined. */
+    private void reassign(String name) {
+        if (reassignedGlobals.add(name) && globalFunctions.containsKey(name)) {
+            globalFunctions.get(name).isConstant = false;
+        }
+    }
+
+    /** Declares a local in the innermost scope; globals are not declared and return null. */
+    private Variable declare(String name, boolean isMutable) {
+        if (scopes.isEmpty()) return null;
+        Scope scope = scopes.peek();
+        if (scope.variables.containsKey(name)) {
             TinyLang.error("Variable with " + name + " already declared in this scope.");
         }
-        scope.put(name, false);
+        return scope.declare(name, isMutable);
     }
 }
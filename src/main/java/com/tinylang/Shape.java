@@ -0,0 +1,63 @@
+package com.tinylang;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Field layout shared by the instances of a class that gained the same fields
+ * in the same order. A shape maps each field name to an index into the
+ * instance's value array; adding a field moves the instance along a
+ * transition to a child shape, which is created once and reused by every
+ * other instance taking the same step.
+ */
+public final class Shape {
+
+    private static final Object[] NO_VALUES = new Object[0];
+
+    private final Shape root;
+    private final Map<String, Integer> slots;
+    private Map<String, Shape> transitions;
+    // Only tracked on the root: the most fields any shape of the tree holds,
+    // so new instances are allocated with room for the usual field set.
+    private int capacity;
+
+    public Shape() {
+        this.root = this;
+        this.slots = Map.of();
+    }
+
+    private Shape(Shape parent, String name) {
+        this.root = parent.root;
+        HashMap<String, Integer> slots = new HashMap<>(parent.slots);
+        slots.put(name, slots.size());
+        this.slots = slots;
+        root.capacity = Math.max(root.capacity, slots.size());
+    }
+
+    /** Index of the field in the value array, or -1 if this shape lacks it. */
+    public int slot(String name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    public int size() {
+        return slots.size();
+    }
+
+    public Shape withField(String name) {
+        if (transitions == null) {
+            transitions = new HashMap<>();
+        }
+        return transitions.computeIfAbsent(name, n -> new Shape(this, n));
+    }
+
+    public Object[] newValues() {
+        return root.capacity == 0 ? NO_VALUES : new Object[root.capacity];
+    }
+
+    /** Returns {@code values}, grown if needed to hold every field of this shape. */
+    public Object[] fit(Object[] values) {
+        return values.length >= slots.size() ? values : Arrays.copyOf(values, root.capacity);
+    }
+}
@@ -0,0 +1,570 @@
+package com.tinylang;
+
+import com.tinylang.ast.Expr;
+import com.tinylang.ast.Stmt;
+import com.tinylang.error.RuntimeError;
+import com.tinylang.token.Token;
+import com.tinylang.token.TokenType;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static com.tinylang.util.Values.isTruthy;
+import static com.tinylang.util.Values.stringify;
+
+/**
+ * Runs the syntax tree like {@link Interpreter}, but without recursing on the
+ * Java stack. Work still to be done is kept on an explicit stack of syntax
+ * nodes and {@link Op}s, intermediate values on a value stack, and every
+ * TinyLang call pushes an {@link Activation} onto the work stack, so the
+ * depth of recursion is limited only by {@code maxDepth} and the heap. Going
+ * deeper than that is a TinyLang runtime error, not a JVM crash.
+ * <p>
+ * An op is pushed on top of its operand, usually the node it finishes:
+ * a binary expression pushes {@link Op#BINARY} and itself, then its right
+ * and left operands, so the operands are evaluated first and the op finds
+ * their values on the value stack.
+ */
+public class StacklessInterpreter extends Interpreter {
+
+    public static final int DEFAULT_MAX_DEPTH = 100_000;
+
+    private enum Op {
+        /** Pops the value of an expression statement. */
+        POP,
+        /** Pushes a nil value. */
+        NIL,
+        PRINT,
+        DEFINE,
+        IF,
+        WHILE,
+        /** Tests a counted loop's counter, on the value stack, against its limit. */
+        COUNT,
+        /** Steps a counted loop's counter and tests it again. */
+        STEP,
+        RETURN,
+        /** Leaves a block: makes the operand the current environment again. */
+        RESTORE,
+        BINARY,
+        UNARY,
+        ASSIGN,
+        LOGICAL,
+        GET,
+        /** Checks the object of a property assignment before its value is evaluated. */
+        CHECK_INSTANCE,
+        SET,
+        /** Looks up the method of a call on a property; pushes the callee and receiver. */
+        METHOD,
+        CALL,
+        /** Evaluates an inlined body if the callee on the value stack is its function, and calls it otherwise. */
+        INLINE,
+        /** Moves the arguments of an inlined call into their slots and evaluates the body. */
+        INLINED,
+        /** Replaces an initializer's result with the operand, the instance it constructed. */
+        CONSTRUCTED,
+        /** Marks the end of a function body. */
+        FRAME
+    }
+
+    /** A TinyLang call in progress. */
+    private static final class Activation {
+        TinyLangFunction function;
+        Environment frame;
+        final Environment caller;
+        final int valueBase;
+
+        Activation(TinyLangFunction function, Environment frame, Environment caller, int valueBase) {
+            this.function = function;
+            this.frame = frame;
+            this.caller = caller;
+            this.valueBase = valueBase;
+        }
+    }
+
+    private final int maxDepth;
+    private Object[] work = new Object[256];
+    private int workTop = 0;
+    private Object[] values = new Object[256];
+    private int valueTop = 0;
+    private Environment environment = globals;
+    private int depth = 0;
+
+    public StacklessInterpreter(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    @Override
+    public void interpret(List<Stmt> statements) {
+        for (int i = statements.size() - 1; i >= 0; i--) {
+            push(statements.get(i));
+        }
+        try {
+            run();
+        } catch (RuntimeError e) {
+            reset();
+            TinyLang.runtimeError(e);
+        }
+    }
+
+    @Override
+    public void interpret(Expr expression) {
+        push(expression);
+        try {
+            run();
+            System.out.println(stringify(popValue()));
+        } catch (RuntimeError e) {
+            reset();
+            TinyLang.runtimeError(e);
+        }
+    }
+
+    private void reset() {
+        Arrays.fill(work, 0, workTop, null);
+        Arrays.fill(values, 0, valueTop, null);
+        workTop = 0;
+        valueTop = 0;
+        environment = globals();
+        depth = 0;
+    }
+
+    private void run() {
+        while (workTop > 0) {
+            Object item = pop();
+            if (item instanceof Op op) {
+                step(op, pop());
+            } else if (item instanceof Expr expr) {
+                evaluate(expr);
+            } else {
+                execute((Stmt) item);
+            }
+        }
+    }
+
+    private void execute(Stmt stmt) {
+        if (stmt instanceof Stmt.Expression expression) {
+            push(Op.POP, expression);
+            push(expression.expression);
+        } else if (stmt instanceof Stmt.Print print) {
+            push(Op.PRINT, print);
+            push(print.expression);
+        } else if (stmt instanceof Stmt.Let let) {
+            if (let.isBoxed) {
+                newCell(environment, let.slot);
+            }
+            push(Op.DEFINE, let);
+            push(let.initializer != null ? let.initializer : null);
+        } else if (stmt instanceof Stmt.Block block) {
+            if (block.hasFrame()) {
+                push(Op.RESTORE, environment);
+            }
+            for (int i = block.statements.size() - 1; i >= 0; i--) {
+                push(block.statements.get(i));
+            }
+            if (block.hasFrame()) {
+                environment = new Environment(environment, block.slotCount);
+            }
+        } else if (stmt instanceof Stmt.If ifStmt) {
+            push(Op.IF, ifStmt);
+            push(ifStmt.condition);
+        } else if (stmt instanceof Stmt.CountedLoop loop && isCounted(loop)) {
+            pushValue(environment.getAt(loop.counter.depth, loop.counter.slot));
+            push(Op.COUNT, loop);
+            push(loop.limit);
+        } else if (stmt instanceof Stmt.While whileStmt) {
+            push(Op.WHILE, whileStmt);
+            push(whileStmt.condition);
+        } else if (stmt instanceof Stmt.Return returnStmt) {
+            push(Op.RETURN, returnStmt);
+            push(returnStmt.value);
+        } else if (stmt instanceof Stmt.Function function) {
+            if (function.isBoxed) {
+                newCell(environment, function.slot).value = new TinyLangFunction(function, environment, false);
+            } else {
+                define(function.slot, function.name, new TinyLangFunction(function, environment, false));
+            }
+        } else if (stmt instanceof Stmt.Class classStmt) {
+            if (classStmt.isBoxed) {
+                Cell cell = newCell(environment, classStmt.slot);
+                Object superclass = classStmt.superclass != null ? lookup(classStmt.superclass, classStmt.superclass.name) : null;
+                cell.value = createClass(classStmt, superclass, environment);
+                return;
+            }
+            define(classStmt.slot, classStmt.name.lexeme(), null);
+            Object superclass = classStmt.superclass != null ? lookup(classStmt.superclass, classStmt.superclass.name) : null;
+            TinyLangClass klass = createClass(classStmt, superclass, environment);
+            if (classStmt.slot >= 0) {
+                environment.define(classStmt.slot, klass);
+            } else {
+                globals().assign(classStmt.name, klass);
+            }
+        }
+    }
+
+    private void evaluate(Expr expr) {
+        if (expr instanceof Expr.LiteralExpr literal) {
+            pushValue(literal.value);
+        } else if (expr instanceof Expr.VarExpr var) {
+            pushValue(lookup(var, var.name));
+        } else if (expr instanceof Expr.BinaryExpr binary) {
+            push(Op.BINARY, binary);
+            push(binary.right);
+            push(binary.left);
+        } else if (expr instanceof Expr.CallExpr call) {
+            push(Op.CALL, call);
+            for (int i = call.arguments.size() - 1; i >= 0; i--) {
+                push(call.arguments.get(i));
+            }
+            if (call.callee instanceof Expr.GetExpr get) {
+                push(Op.METHOD, get);
+                push(get.object);
+            } else if (call.callee instanceof Expr.Super superExpr) {
+                pushValue(superMethod(environment, superExpr));
+                pushValue(superReceiver(environment, superExpr));
+            } else {
+                push(Op.NIL, call);
+                push(call.callee);
+            }
+        } else if (expr instanceof Expr.ThisExpr thisExpr) {
+            pushValue(lookup(thisExpr, thisExpr.keyword));
+        } else if (expr instanceof Expr.GetExpr get) {
+            push(Op.GET, get);
+            push(get.object);
+        } else if (expr instanceof Expr.SetExpr set) {
+            push(Op.SET, set);
+            push(set.value);
+            push(Op.CHECK_INSTANCE, set);
+            push(set.object);
+        } else if (expr instanceof Expr.AssignExpr assign) {
+            push(Op.ASSIGN, assign);
+            push(assign.value);
+        } else if (expr instanceof Expr.UnaryExpr unary) {
+            push(Op.UNARY, unary);
+            push(unary.right);
+        } else if (expr instanceof Expr.Logical logical) {
+            push(Op.LOGICAL, logical);
+            push(logical.left);
+        } else if (expr instanceof Expr.GroupingExpr grouping) {
+            push(grouping.expression);
+        } else if (expr instanceof Expr.Function function) {
+            pushValue(AnonymousFunctionAdapter.adapt(function, environment));
+        } else if (expr instanceof Expr.Super superExpr) {
+            pushValue(superMethod(environment, superExpr).bind(superReceiver(environment, superExpr)));
+        } else if (expr instanceof Expr.Inline inline) {
+            push(Op.INLINE, inline);
+            push(inline.call.callee);
+        }
+    }
+
+    private void step(Op op, Object operand) {
+        switch (op) {
+            case POP -> popValue();
+            case NIL -> pushValue(null);
+            case PRINT -> System.out.println(stringify(popValue()));
+            case DEFINE -> {
+                Stmt.Let let = (Stmt.Let) operand;
+                Object value = let.initializer != null ? popValue() : null;
+                if (let.isBoxed) {
+                    environment.assignBoxedAt(0, let.slot, value);
+                } else {
+                    define(let.slot, let.name, value);
+                }
+            }
+            case IF -> {
+                Stmt.If ifStmt = (Stmt.If) operand;
+                if (isTruthy(popValue())) {
+                    push(ifStmt.thenBranch);
+                } else if (ifStmt.elseBranch != null) {
+                    push(ifStmt.elseBranch);
+                }
+            }
+            case WHILE -> {
+                Stmt.While whileStmt = (Stmt.While) operand;
+                if (isTruthy(popValue())) {
+                    push(whileStmt);
+                    push(whileStmt.body);
+                }
+            }
+            case COUNT -> {
+                Stmt.CountedLoop loop = (Stmt.CountedLoop) operand;
+                Object limit = popValue();
+                if (isCounting(loop, popValue(), limit)) {
+                    push(Op.STEP, loop);
+                    for (int i = loop.statements.size() - 1; i >= 0; i--) {
+                        push(loop.statements.get(i));
+                    }
+                }
+            }
+            case STEP -> {
+                Stmt.CountedLoop loop = (Stmt.CountedLoop) operand;
+                Expr.AssignExpr increment = loop.increment;
+                if (environment.getAt(increment.depth, increment.slot) instanceof Double value) {
+                    environment.assignAt(increment.depth, increment.slot, value + loop.step);
+                    push(loop);
+                } else {
+                    push(loop);
+                    push(Op.POP, null);
+                    push(increment);
+                }
+            }
+            case RETURN -> {
+                Stmt.Return returnStmt = (Stmt.Return) operand;
+                Object value = returnStmt.value != null ? popValue() : null;
+                Activation activation = unwind();
+                if (activation.function.isInitializer) {
+                    value = activation.frame.getAt(0, activation.function.declaration.thisSlot);
+                }
+                leave(activation, value);
+            }
+            case RESTORE -> environment = (Environment) operand;
+            case BINARY -> {
+                Expr.BinaryExpr binary = (Expr.BinaryExpr) operand;
+                Object right = popValue();
+                Object left = popValue();
+                if (binary.hasNumberOperands()) {
+                    pushValue(numberBinary(binary.operator, (Double) left, (Double) right));
+                } else {
+                    pushValue(binary(binary.operator, left, right));
+                }
+            }
+            case UNARY -> {
+                Expr.UnaryExpr unary = (Expr.UnaryExpr) operand;
+                Object right = popValue();
+                if (unary.hasNumberOperand() && unary.operator.type() == TokenType.MINUS) {
+                    pushValue(-(Double) right);
+                } else {
+                    pushValue(unary(unary.operator, right));
+                }
+            }
+            case ASSIGN -> {
+                Expr.AssignExpr assign = (Expr.AssignExpr) operand;
+                Object value = values[valueTop - 1];
+                if (assign.isLocal()) {
+                    assignLocal(environment, assign, value);
+                } else {
+                    globals().global(assign, assign.name).assign(assign.name, value);
+                }
+            }
+            case LOGICAL -> {
+                Expr.Logical logical = (Expr.Logical) operand;
+                Object left = values[valueTop - 1];
+                boolean decided = logical.operator.type() == TokenType.OR ? isTruthy(left) : !isTruthy(left);
+                if (!decided) {
+                    popValue();
+                    push(logical.right);
+                }
+            }
+            case GET -> pushValue(getProperty(popValue(), (Expr.GetExpr) operand));
+            case CHECK_INSTANCE -> {
+                if (!(values[valueTop - 1] instanceof TinyLangInstance)) {
+                    throw new RuntimeError(((Expr.SetExpr) operand).name, "Only instances have fields.");
+                }
+            }
+            case SET -> {
+                Expr.SetExpr set = (Expr.SetExpr) operand;
+                Object value = popValue();
+                TinyLangInstance instance = (TinyLangInstance) popValue();
+                propertyCaches().set(set).set(instance, value);
+                pushValue(value);
+            }
+            case METHOD -> {
+                Expr.GetExpr get = (Expr.GetExpr) operand;
+                Object object = popValue();
+                if (object instanceof TinyLangInstance instance) {
+                    TinyLangFunction method = propertyCaches().get(get).method(instance);
+                    if (method != null) {
+                        pushValue(method);
+                        pushValue(instance);
+                        return;
+                    }
+                }
+                pushValue(getProperty(object, get));
+                pushValue(null);
+            }
+            case CALL -> call((Expr.CallExpr) operand);
+            case INLINE -> {
+                Expr.Inline inline = (Expr.Inline) operand;
+                List<Expr> arguments = inline.call.arguments;
+                if (inlines(inline, values[valueTop - 1])) {
+                    popValue();
+                    push(Op.INLINED, inline);
+                } else {
+                    pushValue(null);
+                    push(Op.CALL, inline.call);
+                }
+                for (int i = arguments.size() - 1; i >= 0; i--) {
+                    push(arguments.get(i));
+                }
+            }
+            case INLINED -> {
+                Expr.Inline inline = (Expr.Inline) operand;
+                int base = valueTop - inline.slots.length;
+                for (int i = 0; i < inline.slots.length; i++) {
+                    environment.define(inline.slots[i], values[base + i]);
+                }
+                popValues(base);
+                push(inline.body);
+            }
+            case CONSTRUCTED -> {
+                popValue();
+                pushValue(operand);
+            }
+            case FRAME -> leave((Activation) operand, null);
+        }
+    }
+
+    /**
+     * Calls the callee below the receiver and arguments on the value stack. A
+     * null receiver means the callee's own, if it is a bound method.
+     */
+    private void call(Expr.CallExpr call) {
+        int argc = call.arguments.size();
+        int base = valueTop - argc;
+        Object callee = values[base - 2];
+        TinyLangInstance receiver = (TinyLangInstance) values[base - 1];
+        if (callee instanceof TinyLangFunction function) {
+            Environment frame = prepare(function, receiver != null ? receiver : function.receiver(), call, base);
+            if (call.isTailCall) {
+                Activation activation = unwind();
+                activation.function = function;
+                activation.frame = frame;
+                enter(activation);
+            } else {
+                enter(function, frame, call);
+            }
+            return;
+        }
+        if (callee instanceof TinyLangClass klass) {
+            TinyLangInstance instance = new TinyLangInstance(klass);
+            TinyLangFunction initializer = klass.initializer();
+            if (initializer == null) {
+                if (argc != 0) {
+                    throw new RuntimeError(call.paren, "Expected 0 arguments but got " + argc + ".");
+                }
+                popValues(base - 2);
+                pushValue(instance);
+                return;
+            }
+            Environment frame = prepare(initializer, instance, call, base);
+            push(Op.CONSTRUCTED, instance);
+            enter(initializer, frame, call);
+            return;
+        }
+        if (!(callee instanceof TinyLangCallable function)) {
+            throw new RuntimeError(call.paren, "Can only call functions and classes.");
+        }
+        if (argc != function.arity()) {
+            throw new RuntimeError(call.paren, "Expected " + function.arity() + " arguments but got " + argc + ".");
+        }
+        Object[] arguments = Arrays.copyOfRange(values, base, valueTop);
+        popValues(base - 2);
+        pushValue(function.call(this, arguments));
+    }
+
+    /** Moves the arguments into a new frame for the function and pops the call off the value stack. */
+    private Environment prepare(TinyLangFunction function, TinyLangInstance receiver, Expr.CallExpr call, int base) {
+        int argc = valueTop - base;
+        if (argc != function.arity()) {
+            throw new RuntimeError(call.paren, "Expected " + function.arity() + " arguments but got " + argc + ".");
+        }
+        Environment frame = function.newFrame(receiver);
+        for (int i = 0; i < argc; i++) {
+            frame.define(i, values[base + i]);
+        }
+        for (int slot : function.declaration.boxedParams) {
+            frame.box(slot);
+        }
+        popValues(base - 2);
+        return frame;
+    }
+
+    private void enter(TinyLangFunction function, Environment frame, Expr.CallExpr call) {
+        if (depth == maxDepth) {
+            throw new RuntimeError(call.paren, "Stack overflow.");
+        }
+        depth++;
+        enter(new Activation(function, frame, environment, valueTop));
+    }
+
+    private void enter(Activation activation) {
+        push(Op.FRAME, activation);
+        List<Stmt> body = activation.function.declaration.body;
+        for (int i = body.size() - 1; i >= 0; i--) {
+            push(body.get(i));
+        }
+        environment = activation.frame;
+    }
+
+    /**
+     * Drops the rest of the current function body from the work stack and
+     * returns its activation, which has been popped as well.
+     */
+    private Activation unwind() {
+        while (true) {
+            Object item = pop();
+            if (item instanceof Op op) {
+                Object operand = pop();
+                if (op == Op.FRAME) {
+                    return (Activation) operand;
+                }
+            }
+        }
+    }
+
+    private void leave(Activation activation, Object result) {
+        depth--;
+        environment = activation.caller;
+        popValues(activation.valueBase);
+        pushValue(result);
+    }
+
+    private Object lookup(Expr.Resolvable expr, Token name) {
+        if (expr.isLocal()) {
+            return local(environment, expr);
+        }
+        return globals().global(expr, name).get(name);
+    }
+
+    private void define(int slot, String name, Object value) {
+        if (slot >= 0) {
+            environment.define(slot, value);
+        } else {
+            globals().define(name, value);
+        }
+    }
+
+    private void push(Object item) {
+        if (workTop == work.length) {
+            work = Arrays.copyOf(work, work.length * 2);
+        }
+        work[workTop++] = item;
+    }
+
+    private void push(Op op, Object operand) {
+        push(operand);
+        push(op);
+    }
+
+    private Object pop() {
+        Object item = work[--workTop];
+        work[workTop] = null;
+        return item;
+    }
+
+    private void pushValue(Object value) {
+        if (valueTop == values.length) {
+            values = Arrays.copyOf(values, values.length * 2);
+        }
+        values[valueTop++] = value;
+    }
+
+    private Object popValue() {
+        Object value = values[--valueTop];
+        values[valueTop] = null;
+        return value;
+    }
+
+    private void popValues(int newTop) {
+        Arrays.fill(values, newTop, valueTop, null);
+        valueTop = newTop;
+    }
+}
@@ -1,48 +1,163 @@
 package com.tinylang;
 
+import com.tinylang.ast.Expr;
 import com.tinylang.ast.Stmt;
+import com.tinylang.closure.ClosureInterpreter;
 import com.tinylang.error.RuntimeError;
+import com.tinylang.jit.Jit;
+import com.tinylang.opt.Optimizer;
+import com.tinylang.opt.Profile;
 import com.tinylang.token.Token;
 import com.tinylang.token.TokenType;
 import com.tinylang.printer.AstPrinter;
 import com.tinylang.util.TLangFileValidator;
+import com.tinylang.vm.VM;
 
 import java.io.*;
-import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.List;
 
 public class TinyLang {
 
-    private static final Interpreter interpreter = new Interpreter();
+    private static final String USAGE = "Usage: tlang [--vm | --closure | --jit | --stackless [--max-depth=N]] [--memoize] [--profile=FILE] [--stats] <source-file>";
+
+    private enum Backend {
+        INTERPRETER,
+        CLOSURE,
+        VM
+    }
+
     private static boolean hadError = false;
     private static boolean hadRuntimeError = false;
 
+    private final Interpreter interpreter;
+    private final ClosureInterpreter closureInterpreter;
+    private final VM vm = new VM();
+    private final PropertyCache.Sites propertyCaches;
+    private final Memo.Registry memos;
+    private Backend backend = Backend.INTERPRETER;
+    private Jit jit = null;
+    private boolean memoize = false;
+    private boolean printStats = false;
+    private Path profilePath = null;
+    private Profile profile = null;
+    private CallCounts callCounts = null;
+
+    /**
+     * A session that runs sources with the given command-line options, such
+     * as {@code --vm}. It starts with no errors reported, whatever an earlier
+     * session in the same process reported.
+     *
+     * @throws IllegalArgumentException if an option is not one the command line takes
+     */
+    public TinyLang(List<String> options) {
+        boolean stackless = false;
+        int maxDepth = StacklessInterpreter.DEFAULT_MAX_DEPTH;
+        for (String option : options) {
+            switch (option) {
+                case "--vm" -> backend = Backend.VM;
+                case "--closure" -> backend = Backend.CLOSURE;
+                case "--jit" -> jit = new Jit(Jit.DEFAULT_THRESHOLD);
+                case "--stackless" -> stackless = true;
+                case "--memoize" -> memoize = true;
+                case "--stats" -> printStats = true;
+                default -> {
+                    if (option.startsWith("--profile=")) {
+                        profilePath = getPath(option.substring("--profile=".length()));
+                        if (profilePath == null) throw new IllegalArgumentException(option);
+                    } else if (option.startsWith("--max-depth=")) {
+                        try {
+                            maxDepth = Integer.parseInt(option.substring("--max-depth=".length()));
+                        } catch (NumberFormatException e) {
+                            throw new IllegalArgumentException(option, e);
+                        }
+                    } else {
+                        throw new IllegalArgumentException(option);
+                    }
+                }
+            }
+        }
+        propertyCaches = new PropertyCache.Sites(printStats);
+        memos = new Memo.Registry(printStats);
+        interpreter = stackless ? new StacklessInterpreter(maxDepth) : new Interpreter();
+        // Only the JIT and a profile need to know how often each function is called.
+        if (jit != null || profilePath != null) callCounts = new CallCounts();
+        interpreter.setJit(jit);
+        interpreter.setPropertyCaches(propertyCaches);
+        interpreter.setMemos(memos);
+        interpreter.setCallCounts(callCounts);
+        closureInterpreter = new ClosureInterpreter(propertyCaches, memos);
+        resetErrors();
+    }
+
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.err.println("Usage: tlang <source-file>");
+        int argIndex = 0;
+        while (argIndex < args.length && args[argIndex].startsWith("--")) {
+            argIndex++;
+        }
+        TinyLang tinyLang;
+        try {
+            tinyLang = new TinyLang(Arrays.asList(args).subList(0, argIndex));
+        } catch (IllegalArgumentException e) {
+            System.err.println(USAGE);
             return;
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        }
+        int remaining = args.length - argIndex;
+        if (remaining > 1) {
+            System.err.println(USAGE);
+            return;
+        } else if (remaining == 1) {
+            tinyLang.runFile(args[argIndex]);
         } else {
-            runPrompt();
+            tinyLang.runPrompt(new BufferedReader(new InputStreamReader(System.in)));
         }
+        tinyLang.printStats();
     }
 
-    private static void run(String source, boolean isRepl) {
-        Lexer lexer = new Lexer(source);
-        List<Token> tokens = lexer.scanTokens();
-        Parser parser = new Parser(tokens);
+    /** Reports what the run's caches, memos and JIT did, if asked to with {@code --stats}. */
+    private void printStats() {
+        if (!printStats) return;
+        propertyCaches.printStats(System.err);
+        if (memoize) memos.printStats(System.err);
+        if (jit != null) jit.printStats(System.err);
+    }
+
+    private void run(CharSequence source, boolean isRepl) {
+        Parser parser = new Parser(new Lexer(source));
         List<Stmt> statements = parser.parse();
         if (hadError) return;
 
-        Resolver resolver = new Resolver(interpreter);
+        Resolver resolver = new Resolver();
         resolver.resolve(statements);
         if (hadError) return;
 
+        // A later line may redefine a function that a memoized one calls, so the REPL does not memoize.
+        Optimizer optimizer = new Optimizer(memoize && !isRepl);
+        optimizer.optimize(statements);
+        if (profile != null) profile.apply(statements, jit, callCounts);
+
         /* AstPrinter.print(statements); // Uncomment to print the AST */
+        if (backend != Backend.INTERPRETER) {
+            Expr expression = null;
+            if (isRepl && statements.size() == 1 && statements.get(0) instanceof Stmt.Expression exprStmt) {
+                expression = exprStmt.expression;
+            }
+            switch (backend) {
+                case VM -> {
+                    if (expression != null) vm.interpret(expression);
+                    else vm.interpret(statements);
+                }
+                case CLOSURE -> {
+                    if (expression != null) closureInterpreter.interpret(expression);
+                    else closureInterpreter.interpret(statements);
+                }
+            }
+            if (hadRuntimeError && !isRepl) System.exit(2);
+            return;
+        }
         if (isRepl && statements.size() == 1 && statements.get(0) instanceof Stmt.Expression exprStmt) {
             interpreter.interpret(exprStmt.expression);
             return;
@@ -51,21 +166,33 @@ public class TinyLang {
         if (hadRuntimeError) System.exit(2);
     }
 
-    private static void runFile(String filePath) {
+    private void runFile(String filePath) {
         Path path = getPath(filePath);
         if (path == null || !TLangFileValidator.isValidTLangFile(path)) {
             System.err.println("Invalid path: " + filePath);
             return;
         }
 
-        String content = readFile(path);
+        CharSequence content = readFile(path);
+        if (content != null && profilePath != null) {
+            try {
+                profile = Profile.load(profilePath, content);
+            } catch (IOException e) {
+                System.err.println("An error has occurred while reading the profile: " + profilePath);
+            }
+        }
         run(content, false);
+        if (profile != null && !hadError) {
+            try {
+                profile.save();
+            } catch (IOException e) {
+                System.err.println("An error has occurred while writing the profile: " + profilePath);
+            }
+        }
     }
 
-    private static void runPrompt() throws IOException {
-        InputStreamReader isr = new InputStreamReader(System.in);
-        BufferedReader reader = new BufferedReader(isr);
-
+    /** Runs each line read until the end of the input or "exit", keeping what earlier lines defined. */
+    public void runPrompt(BufferedReader reader) throws IOException {
         while (true) {
             System.out.print("> ");
             String line;
@@ -84,15 +211,26 @@ public class TinyLang {
         }
     }
 
-    private static String readFile(Path path) {
+    private static CharSequence readFile(Path path) {
         try {
-            return Files.readString(path);
+            return MappedSource.read(path);
         } catch (IOException e) {
             System.err.println("An error has occurred while reading the file: " + path);
             return null;
         }
     }
 
+    /** Forgets the errors reported so far, so the next source starts clean. */
+    public static void resetErrors() {
+        hadError = false;
+        hadRuntimeError = false;
+    }
+
+    /** Whether the parser or resolver reported an error since the last reset. */
+    public static boolean hadError() {
+        return hadError;
+    }
+
     public static void error(String message) {
         report(0, "", message);
     }
@@ -2,9 +2,39 @@ package com.tinylang;
 
 import java.util.List;
 
+/**
+ * Something a TinyLang program can call. Callers check the number of
+ * arguments against {@link #arity()} first, then use the entry point for
+ * that many arguments, up to four, so that a callee can take them without
+ * any array or list being built; more go through the array.
+ */
 public interface TinyLangCallable {
 
     int arity();
 
-    Object call(Interpreter interpreter, List<Object> arguments);
+    Object call(Interpreter interpreter, Object[] arguments);
+
+    default Object call(Interpreter interpreter) {
+        return call(interpreter, new Object[0]);
+    }
+
+    default Object call(Interpreter interpreter, Object a) {
+        return call(interpreter, new Object[] {a});
+    }
+
+    default Object call(Interpreter interpreter, Object a, Object b) {
+        return call(interpreter, new Object[] {a, b});
+    }
+
+    default Object call(Interpreter interpreter, Object a, Object b, Object c) {
+        return call(interpreter, new Object[] {a, b, c});
+    }
+
+    default Object call(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+        return call(interpreter, new Object[] {a, b, c, d});
+    }
+
+    default Object call(Interpreter interpreter, List<Object> arguments) {
+        return call(interpreter, arguments.toArray());
+    }
 }
@@ -1,20 +1,29 @@
 package com.tinylang;
 
-import java.util.List;
+import java.util.HashMap;
 import java.util.Map;
 
 public class TinyLangClass implements TinyLangCallable {
 
     private final String name;
-    private final Map<String, TinyLangFunction> methods;
-    private final Map<String, TinyLangFunction> staticMethods;
-    private final Object superclass;
+    // Every method reachable from this class, inherited ones included, so a
+    // lookup is a single probe however deep the hierarchy is.
+    private final Map<String, TinyLangFunction> methodTable;
+    private final TinyLangFunction initializer;
+    private final int arity;
+    private final Shape instanceShape = new Shape();
 
-    TinyLangClass(String name, Object superclass, Map<String, TinyLangFunction> methods, Map<String, TinyLangFunction> staticMethods) {
+    public TinyLangClass(String name, Object superclass, Map<String, TinyLangFunction> methods, Map<String, TinyLangFunction> staticMethods) {
         this.name = name;
-        this.methods = methods;
-        this.staticMethods = staticMethods;
-        this.superclass = superclass;
+        Map<String, TinyLangFunction> table = new HashMap<>();
+        if (superclass instanceof TinyLangClass parent) {
+            table.putAll(parent.methodTable);
+        }
+        table.putAll(staticMethods);
+        table.putAll(methods);
+        this.methodTable = Map.copyOf(table);
+        this.initializer = methodTable.get("init");
+        this.arity = initializer == null ? 0 : initializer.arity();
     }
 
     @Override
@@ -26,32 +35,34 @@ public class TinyLangClass implements TinyLangCallable {
         return name;
     }
 
+    /** Shape every new instance of this class starts from. */
+    public Shape instanceShape() {
+        return instanceShape;
+    }
+
     public TinyLangFunction findMethod(String name) {
-        if (methods.containsKey(name)) {
-            return methods.get(name);
-        }
-        if (staticMethods.containsKey(name)) {
-            return staticMethods.get(name);
-        }
-        if (superclass != null) {
-            return ((TinyLangClass) superclass).findMethod(name);
-        }
-        return null;
+        return methodTable.get(name);
+    }
+
+    /** The {@code init} method instances are constructed with, or null. */
+    public TinyLangFunction initializer() {
+        return initializer;
     }
 
     @Override
     public int arity() {
-        TinyLangFunction initializer = findMethod("init");
-        if (initializer == null) return 0;
-        return initializer.arity();
+        return arity;
     }
 
     @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
+    public Object call(Interpreter interpreter, Object[] arguments) {
         TinyLangInstance instance = new TinyLangInstance(this);
-        TinyLangFunction initializer = findMethod("init");
         if (initializer != null) {
-            initializer.bind(instance).call(interpreter, arguments);
+            Environment frame = initializer.newFrame(instance);
+            for (int i = 0; i < arguments.length; i++) {
+                frame.define(i, arguments[i]);
+            }
+            initializer.execute(interpreter, frame);
         }
         return instance;
     }
@@ -1,20 +1,32 @@
 package com.tinylang;
 
 import com.tinylang.ast.Stmt;
-import com.tinylang.error.Return;
+import com.tinylang.jit.CompiledCode;
+import com.tinylang.jit.Jit;
 
+import java.util.ArrayList;
 import java.util.List;
 
 public class TinyLangFunction implements TinyLangCallable {
 
-    private final Stmt.Function declaration;
-    private final Environment closure;
-    private final boolean isInitializer;
+    protected final Stmt.Function declaration;
+    protected final Environment closure;
+    protected final boolean isInitializer;
+    protected final TinyLangInstance receiver;
+    private Memo memo;
+    // The calls counted for the declaration, found on the first call.
+    private CallCounts.Counter counter;
 
-    public TinyLangFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
+    /** Creates the closure of a function declared in {@code enclosing}. */
+    public TinyLangFunction(Stmt.Function declaration, Environment enclosing, boolean isInitializer) {
+        this(declaration, Environment.capture(enclosing, declaration.captures), isInitializer, null);
+    }
+
+    protected TinyLangFunction(Stmt.Function declaration, Environment closure, boolean isInitializer, TinyLangInstance receiver) {
         this.declaration = declaration;
         this.closure = closure;
         this.isInitializer = isInitializer;
+        this.receiver = receiver;
     }
 
     @Override
@@ -23,25 +35,227 @@ public class TinyLangFunction implements TinyLangCallable {
     }
 
     @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure);
-        for (int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i), arguments.get(i));
-        }
-        try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (Return returnValue) {
-            if (isInitializer) {
-                return closure.getAt(0, "this");
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        Environment frame = newFrame(receiver);
+        for (int i = 0; i < arguments.length; i++) {
+            frame.define(i, arguments[i]);
+        }
+        return execute(interpreter, frame);
+    }
+
+    @Override
+    public Object call(Interpreter interpreter) {
+        return execute(interpreter, newFrame(receiver));
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Object a) {
+        Environment frame = newFrame(receiver);
+        frame.define(0, a);
+        return execute(interpreter, frame);
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Object a, Object b) {
+        Environment frame = newFrame(receiver);
+        frame.define(0, a);
+        frame.define(1, b);
+        return execute(interpreter, frame);
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Object a, Object b, Object c) {
+        Environment frame = newFrame(receiver);
+        frame.define(0, a);
+        frame.define(1, b);
+        frame.define(2, c);
+        return execute(interpreter, frame);
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+        Environment frame = newFrame(receiver);
+        frame.define(0, a);
+        frame.define(1, b);
+        frame.define(2, c);
+        frame.define(3, d);
+        return execute(interpreter, frame);
+    }
+
+    /**
+     * Allocates the frame for a call with {@code this} bound to the given
+     * receiver. The caller stores the arguments into slots 0 to arity - 1 and
+     * passes the frame to {@link #execute}; method calls use this directly so
+     * that no bound function or argument list is created.
+     */
+    public Environment newFrame(TinyLangInstance receiver) {
+        Environment frame = new Environment(closure, declaration.frameSize);
+        if (declaration.thisSlot >= 0) {
+            frame.define(declaration.thisSlot, receiver);
+        }
+        return frame;
+    }
+
+    /**
+     * Runs the call whose arguments are in the frame, first looking up the
+     * result if the optimizer memoized the function.
+     */
+    public Object execute(Interpreter interpreter, Environment frame) {
+        if (!declaration.isMemoized) {
+            return evaluate(interpreter, frame);
+        }
+        List<Object> key = Memo.key(frame, arity());
+        if (key == null) {
+            return evaluate(interpreter, frame);
+        }
+        Memo memo = memo(interpreter);
+        Object result = memo.get(key);
+        if (result == Memo.MISSING) {
+            result = evaluate(interpreter, frame);
+            memo.put(key, result);
+        }
+        return result;
+    }
+
+    private Memo memo(Interpreter interpreter) {
+        if (memo == null) {
+            memo = memos(interpreter).memo(declaration.name);
+        }
+        return memo;
+    }
+
+    /** The memos of the run this function belongs to. */
+    protected Memo.Registry memos(Interpreter interpreter) {
+        return interpreter.memos();
+    }
+
+    /**
+     * Runs the body on the frame. Calls the body makes in tail position are
+     * run here after it returns, one after the other, so a chain of tail
+     * calls of any length takes a single Java frame. Each is looked up first
+     * if its function is memoized, as any other call is.
+     */
+    protected Object evaluate(Interpreter interpreter, Environment frame) {
+        Object result = run(interpreter, frame);
+        TinyLangFunction callee = interpreter.takeTailCallee();
+        if (callee == null) {
+            return result;
+        }
+        TailCalls calls = new TailCalls(interpreter);
+        do {
+            Environment calleeFrame = interpreter.takeTailFrame();
+            result = calls.lookUp(callee, calleeFrame);
+            if (result == TailCalls.MISSING) {
+                result = callee.run(interpreter, calleeFrame);
+            }
+        } while ((callee = interpreter.takeTailCallee()) != null);
+        return calls.complete(result);
+    }
+
+    /**
+     * The memoized calls of a chain of tail calls. The result of the last
+     * call in the chain is the result of every call in it, so each memoized
+     * call that had to run stores it once the chain is done.
+     */
+    protected static final class TailCalls {
+
+        /** What {@link #lookUp} returns for a call that has to run. */
+        public static final Object MISSING = Memo.MISSING;
+
+        private final Interpreter interpreter;
+        private List<Memo> memos;
+        private List<List<Object>> keys;
+
+        /** The chain of calls run by the interpreter, which may be null for a backend that needs none. */
+        public TailCalls(Interpreter interpreter) {
+            this.interpreter = interpreter;
+        }
+
+        /** The result the callee's memo holds for the call on the frame, or {@link #MISSING}. */
+        public Object lookUp(TinyLangFunction callee, Environment frame) {
+            if (!callee.declaration.isMemoized) {
+                return MISSING;
+            }
+            List<Object> key = Memo.key(frame, callee.arity());
+            if (key == null) {
+                return MISSING;
+            }
+            Memo memo = callee.memo(interpreter);
+            Object result = memo.get(key);
+            if (result == MISSING) {
+                if (memos == null) {
+                    memos = new ArrayList<>();
+                    keys = new ArrayList<>();
+                }
+                memos.add(memo);
+                keys.add(key);
+            }
+            return result;
+        }
+
+        /**
+         * Stores the result of the chain for the memoized calls in it, and
+         * returns it. The first call is stored last, so that it is the one a
+         * full memo keeps.
+         */
+        public Object complete(Object result) {
+            if (memos != null) {
+                for (int i = memos.size() - 1; i >= 0; i--) {
+                    memos.get(i).put(keys.get(i), result);
+                }
             }
-            return returnValue.value();
+            return result;
         }
-        return null;
+    }
+
+    private Object run(Interpreter interpreter, Environment frame) {
+        for (int slot : declaration.boxedParams) {
+            frame.box(slot);
+        }
+        CallCounts.Counter count = counter(interpreter);
+        if (count != null) {
+            int calls = ++count.calls;
+            CompiledCode code = count.compiled;
+            if (code != null) {
+                return code.execute(interpreter, frame);
+            }
+            Jit jit = interpreter.jit();
+            if (jit != null && calls == jit.threshold()) {
+                count.compiled = jit.compile(declaration, isInitializer, interpreter.globals(), interpreter.propertyCaches());
+            }
+        }
+        interpreter.executeBlock(declaration.body, frame);
+        if (!interpreter.isReturning()) {
+            return null;
+        }
+        Object value = interpreter.takeReturnValue();
+        if (isInitializer) {
+            return frame.getAt(0, declaration.thisSlot);
+        }
+        return value;
+    }
+
+    /** The counter of this function's declaration, or null if the run counts no calls. */
+    private CallCounts.Counter counter(Interpreter interpreter) {
+        if (counter == null) {
+            CallCounts callCounts = interpreter.callCounts();
+            if (callCounts != null) counter = callCounts.counter(declaration);
+        }
+        return counter;
+    }
+
+    public Stmt.Function declaration() {
+        return declaration;
+    }
+
+    /** The instance this function was bound to, or null. */
+    public TinyLangInstance receiver() {
+        return receiver;
     }
 
     public TinyLangFunction bind(TinyLangInstance tinyLangInstance) {
-        Environment environment = new Environment(closure);
-        environment.define("this", tinyLangInstance);
-        return new TinyLangFunction(declaration, environment, isInitializer);
+        TinyLangFunction bound = new TinyLangFunction(declaration, closure, isInitializer, tinyLangInstance);
+        bound.counter = counter;
+        return bound;
     }
 }
@@ -6,15 +6,19 @@ import com.tinylang.token.Token;
 public class TinyLangInstance {
 
     private final TinyLangClass klass;
-    private final java.util.Map<String, Object> fields = new java.util.HashMap<>();
+    private Shape shape;
+    private Object[] values;
 
-    TinyLangInstance(TinyLangClass klass) {
+    public TinyLangInstance(TinyLangClass klass) {
         this.klass = klass;
+        this.shape = klass.instanceShape();
+        this.values = shape.newValues();
     }
 
-    Object get(Token name) {
-        if (fields.containsKey(name.lexeme())) {
-            return fields.get(name.lexeme());
+    public Object get(Token name) {
+        int slot = shape.slot(name.lexeme());
+        if (slot >= 0) {
+            return values[slot];
         }
 
         TinyLangFunction method = klass.findMethod(name.lexeme());
@@ -25,8 +29,35 @@ public class TinyLangInstance {
         throw new RuntimeError(name, "Undefined property '" + name.lexeme() + "'.");
     }
 
-    void set(String name, Object value) {
-        fields.put(name, value);
+    public void set(String name, Object value) {
+        int slot = shape.slot(name);
+        if (slot < 0) {
+            Shape target = shape.withField(name);
+            store(target, target.size() - 1, value);
+            return;
+        }
+        values[slot] = value;
+    }
+
+    TinyLangClass klass() {
+        return klass;
+    }
+
+    Shape shape() {
+        return shape;
+    }
+
+    Object load(int slot) {
+        return values[slot];
+    }
+
+    /** Stores into {@code slot}, first moving to {@code target} if that adds the field. */
+    void store(Shape target, int slot, Object value) {
+        if (target != shape) {
+            shape = target;
+            values = target.fit(values);
+        }
+        values[slot] = value;
     }
 
     @Override
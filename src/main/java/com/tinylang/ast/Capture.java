@@ -0,0 +1,9 @@
+package com.tinylang.ast;
+
+/**
+ * A variable a function captures, at {@code depth} frames out from the
+ * frame the closure is created in. The closure copies what the slot holds:
+ * the variable's cell if it is boxed, and its value otherwise.
+ */
+public record Capture(int depth, int slot) {
+}
@@ -1,7 +1,7 @@
 package com.tinylang.ast;
 
 import com.tinylang.token.Token;
-import com.tinylang.token.Token;
+import com.tinylang.token.TokenType;
 
 import java.util.List;
 
@@ -33,10 +33,32 @@ public abstract class Expr {
         R visitThisExpr(ThisExpr thisExpr);
 
         R visitSuperExpr(Super superExpr);
+
+        R visitInlineExpr(Inline expr);
     }
 
+    // Set by the optimizer once it has inferred the types of the program.
+    public Type type = Type.UNKNOWN;
+
     public abstract <R> R accept(Visitor<R> visitor);
 
+    /**
+     * An expression that reads or writes a variable. The resolver fills in the
+     * frame distance and slot of local variables; globals keep a slot of -1.
+     * A function reaches the variables it captures one frame beyond its own,
+     * in the frame of its closure. A variable that closures capture and may
+     * assign is boxed: its slot holds a {@link com.tinylang.Cell} they share.
+     */
+    public abstract static class Resolvable extends Expr {
+        public int depth = -1;
+        public int slot = -1;
+        public boolean isBoxed;
+
+        public boolean isLocal() {
+            return slot >= 0;
+        }
+    }
+
     public static class LiteralExpr extends Expr {
         public final Object value;
 
@@ -54,6 +76,8 @@ public abstract class Expr {
         public final Expr left;
         public final Token operator;
         public final Expr right;
+        // For '+', the operand types the closure backend specialized on, kept across runs by the profile.
+        public Type observed = Type.UNKNOWN;
 
         public BinaryExpr(Expr left, Token operator, Expr right) {
             this.left = left;
@@ -61,6 +85,11 @@ public abstract class Expr {
             this.right = right;
         }
 
+        /** Whether both operands are known to be numbers, so they need no check. */
+        public boolean hasNumberOperands() {
+            return left.type == Type.NUMBER && right.type == Type.NUMBER;
+        }
+
         @Override
         public <R> R accept(Visitor<R> visitor) {
             return visitor.visitBinaryExpr(this);
@@ -93,13 +122,18 @@ public abstract class Expr {
             this.right = right;
         }
 
+        /** Whether the operand is known to be a number, so it needs no check. */
+        public boolean hasNumberOperand() {
+            return right.type == Type.NUMBER;
+        }
+
         @Override
         public <R> R accept(Visitor<R> visitor) {
             return visitor.visitUnaryExpr(this);
         }
     }
 
-    public static class VarExpr extends Expr {
+    public static class VarExpr extends Resolvable {
         public final Token name;
 
         public VarExpr(Token name) {
@@ -112,7 +146,7 @@ public abstract class Expr {
         }
     }
 
-    public static class AssignExpr extends Expr {
+    public static class AssignExpr extends Resolvable {
         public final Token name;
         public final Expr value;
 
@@ -131,6 +165,8 @@ public abstract class Expr {
         public final Expr callee;
         public final Token paren;
         public final List<Expr> arguments;
+        // Set by the resolver when the call is the value of a return statement.
+        public boolean isTailCall;
 
         public CallExpr(Expr callee, Token paren, List<Expr> arguments) {
             this.callee = callee;
@@ -189,7 +225,7 @@ public abstract class Expr {
         }
     }
 
-    public static class ThisExpr extends Expr {
+    public static class ThisExpr extends Resolvable {
         public final Token keyword;
 
         public ThisExpr(Token keyword) {
@@ -205,6 +241,9 @@ public abstract class Expr {
     public static class Function extends Expr {
         public final List<String> params;
         public final List<Stmt> body;
+        public int frameSize;
+        public List<Capture> captures = List.of();
+        public int[] boxedParams = {};
 
         public Function(List<String> params, List<Stmt> body) {
             this.params = params;
@@ -217,13 +256,16 @@ public abstract class Expr {
         }
     }
 
-    public static class Super extends Expr {
+    public static class Super extends Resolvable {
         public final Token keyword;
         public final Token method;
+        // The instance the method is looked up for.
+        public final ThisExpr receiver;
 
         public Super(Token keyword, Token method) {
             this.keyword = keyword;
             this.method = method;
+            this.receiver = new ThisExpr(new Token(TokenType.THIS, "this", null, keyword.line()));
         }
 
         @Override
@@ -231,4 +273,31 @@ public abstract class Expr {
             return visitor.visitSuperExpr(this);
         }
     }
+
+    /**
+     * A call to a small global function with the function's body in its
+     * place, made by the optimizer. The callee is evaluated as for the call;
+     * if it is still the inlined function, the arguments are stored in
+     * {@code slots} of the caller's frame and the body, which reads them in
+     * place of the parameters, is evaluated. Otherwise, as when the REPL
+     * declares the function again, the call is made after all.
+     */
+    public static class Inline extends Expr {
+        public final CallExpr call;
+        public final Stmt.Function function;
+        public final int[] slots;
+        public final Expr body;
+
+        public Inline(CallExpr call, Stmt.Function function, int[] slots, Expr body) {
+            this.call = call;
+            this.function = function;
+            this.slots = slots;
+            this.body = body;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitInlineExpr(this);
+        }
+    }
 }
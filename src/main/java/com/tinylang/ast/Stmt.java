@@ -31,6 +31,8 @@ public abstract class Stmt {
     public static class Let extends Stmt {
         public final String name;
         public final Expr initializer;
+        public int slot = -1;
+        public boolean isBoxed;
 
         public Let(String name, Expr initializer) {
             this.name = name;
@@ -47,6 +49,8 @@ public abstract class Stmt {
         public final Token name;
         public final Expr.VarExpr superclass;
         public final List<Stmt.Function> methods;
+        public int slot = -1;
+        public boolean isBoxed;
 
         public Class(Token name, Expr.VarExpr superclass, List<Stmt.Function> methods) {
             this.name = name;
@@ -65,6 +69,18 @@ public abstract class Stmt {
         public final List<String> params;
         public final List<Stmt> body;
         private final boolean isStatic;
+        public int slot = -1;
+        public boolean isBoxed;
+        public int frameSize;
+        public int thisSlot = -1;
+        // Where the closure finds the variables it captures, in the frame it is created in.
+        public List<Capture> captures = List.of();
+        // Parameters that closures capture; a call boxes them before the body runs.
+        public int[] boxedParams = {};
+        // A global function the program neither assigns nor declares again; the optimizer may inline it.
+        public boolean isConstant;
+        // A constant function without side effects whose calls cache their results (--memoize).
+        public boolean isMemoized;
 
         public Function(String name, List<String> params, List<Stmt> body, boolean isStatic) {
             this.name = name;
@@ -141,6 +157,33 @@ public abstract class Stmt {
         }
     }
 
+    /**
+     * A {@code for} loop that steps a counter by a constant towards a limit,
+     * such as {@code for (let i = 0; i < n; i = i + 1)}. It is the
+     * {@code while} loop the {@code for} desugars to, so a backend may run it
+     * as one, but it can also test and step the counter without going
+     * through the expressions.
+     */
+    public static class CountedLoop extends While {
+        public final Expr.VarExpr counter;
+        public final Token operator;
+        public final Expr limit;
+        // The body without the step, which the loop's block ends with.
+        public final List<Stmt> statements;
+        public final Expr.AssignExpr increment;
+        public final double step;
+
+        public CountedLoop(Expr.BinaryExpr condition, Block body, List<Stmt> statements, Expr.AssignExpr increment, double step) {
+            super(condition, body);
+            this.counter = (Expr.VarExpr) condition.left;
+            this.operator = condition.operator;
+            this.limit = condition.right;
+            this.statements = statements;
+            this.increment = increment;
+            this.step = step;
+        }
+    }
+
     public static class Return extends Stmt {
         public final Expr value;
 
@@ -156,11 +199,17 @@ public abstract class Stmt {
 
     public static class Block extends Stmt {
         public final List<Stmt> statements;
+        // Size of the block's own frame; 0 if it runs in the enclosing one.
+        public int slotCount;
 
         public Block(List<Stmt> statements) {
             this.statements = statements;
         }
 
+        public boolean hasFrame() {
+            return slotCount > 0;
+        }
+
         @Override
         public <R> R accept(Visitor<R> visitor) {
             return visitor.visitBlockStmt(this);
@@ -0,0 +1,25 @@
+package com.tinylang.ast;
+
+/**
+ * What an expression evaluates to whenever it does not fail, as far as the
+ * optimizer could prove. {@link #UNKNOWN} is any value, nil included.
+ */
+public enum Type {
+    NUMBER,
+    STRING,
+    BOOLEAN,
+    INSTANCE,
+    UNKNOWN;
+
+    /** The type of a value that may come from either of two places. */
+    public Type join(Type other) {
+        return this == other ? this : UNKNOWN;
+    }
+
+    public static Type of(Object value) {
+        if (value instanceof Double) return NUMBER;
+        if (value instanceof String) return STRING;
+        if (value instanceof Boolean) return BOOLEAN;
+        return UNKNOWN;
+    }
+}
@@ -0,0 +1,541 @@
+package com.tinylang.closure;
+
+import com.tinylang.Cell;
+import com.tinylang.Environment;
+import com.tinylang.Global;
+import com.tinylang.Memo;
+import com.tinylang.PropertyCache;
+import com.tinylang.TinyLangCallable;
+import com.tinylang.TinyLangClass;
+import com.tinylang.TinyLangFunction;
+import com.tinylang.TinyLangInstance;
+import com.tinylang.ast.Expr;
+import com.tinylang.ast.Stmt;
+import com.tinylang.error.RuntimeError;
+import com.tinylang.token.Token;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.tinylang.util.Values.isTruthy;
+import static com.tinylang.util.Values.stringify;
+
+/**
+ * Turns a resolved syntax tree into a tree of {@link ExprNode}s and
+ * {@link StmtNode}s. Operators are selected, variables are bound to their
+ * frame and slot, or to their global's cell, and children are linked once
+ * here, so running the program never goes back to the syntax tree.
+ */
+public class ClosureCompiler implements Expr.Visitor<ExprNode>, Stmt.Visitor<StmtNode> {
+
+    private final Environment globals;
+    private final PropertyCache.Sites propertyCaches;
+    private final Memo.Registry memos;
+
+    public ClosureCompiler(Environment globals, PropertyCache.Sites propertyCaches, Memo.Registry memos) {
+        this.globals = globals;
+        this.propertyCaches = propertyCaches;
+        this.memos = memos;
+    }
+
+    public StmtNode[] compile(List<Stmt> statements) {
+        StmtNode[] nodes = new StmtNode[statements.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = compile(statements.get(i));
+        }
+        return nodes;
+    }
+
+    public ExprNode compile(Expr expression) {
+        return expression.accept(this);
+    }
+
+    private StmtNode compile(Stmt statement) {
+        return statement.accept(this);
+    }
+
+    @Override
+    public ExprNode visitBinaryExpr(Expr.BinaryExpr expr) {
+        return OperatorNodes.binary(expr, compile(expr.left), compile(expr.right));
+    }
+
+    @Override
+    public ExprNode visitUnaryExpr(Expr.UnaryExpr expr) {
+        ExprNode right = compile(expr.right);
+        return switch (expr.operator.type()) {
+            case MINUS -> new OperatorNodes.NegateNode(expr.operator, right);
+            case BANG -> new OperatorNodes.NotNode(right);
+            default -> frame -> {
+                right.execute(frame);
+                return null;
+            };
+        };
+    }
+
+    @Override
+    public ExprNode visitVarExpr(Expr.VarExpr expr) {
+        return variable(expr, expr.name);
+    }
+
+    @Override
+    public ExprNode visitAssignExpr(Expr.AssignExpr expr) {
+        ExprNode value = compile(expr.value);
+        if (!expr.isLocal()) {
+            Token name = expr.name;
+            Global global = globals.global(name.lexeme());
+            return frame -> {
+                Object result = value.execute(frame);
+                global.assign(name, result);
+                return result;
+            };
+        }
+        int hops = expr.depth;
+        int slot = expr.slot;
+        if (expr.isBoxed) {
+            return frame -> {
+                Object result = value.execute(frame);
+                frame.assignBoxedAt(hops, slot, result);
+                return result;
+            };
+        }
+        if (hops == 0) {
+            return frame -> {
+                Object result = value.execute(frame);
+                frame.define(slot, result);
+                return result;
+            };
+        }
+        return frame -> {
+            Object result = value.execute(frame);
+            frame.assignAt(hops, slot, result);
+            return result;
+        };
+    }
+
+    @Override
+    public ExprNode visitCallExpr(Expr.CallExpr expr) {
+        ExprNode[] arguments = new ExprNode[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = compile(expr.arguments.get(i));
+        }
+        Token paren = expr.paren;
+        boolean tail = expr.isTailCall;
+        if (expr.callee instanceof Expr.GetExpr get) {
+            ExprNode object = compile(get.object);
+            PropertyCache cache = propertyCaches.forGet(get.name);
+            Token name = get.name;
+            return frame -> {
+                Object receiver = object.execute(frame);
+                if (receiver instanceof TinyLangInstance instance) {
+                    TinyLangFunction method = cache.method(instance);
+                    if (method != null) {
+                        return invoke(method, instance, arguments, frame, paren, tail);
+                    }
+                }
+                return call(getProperty(receiver, cache, name), arguments, frame, paren, tail);
+            };
+        }
+        if (expr.callee instanceof Expr.Super superExpr) {
+            ExprNode method = superMethod(superExpr);
+            ExprNode receiver = superReceiver(superExpr);
+            return frame -> invoke((TinyLangFunction) method.execute(frame),
+                    (TinyLangInstance) receiver.execute(frame), arguments, frame, paren, tail);
+        }
+        ExprNode callee = compile(expr.callee);
+        return frame -> call(callee.execute(frame), arguments, frame, paren, tail);
+    }
+
+    @Override
+    public ExprNode visitGroupingExpr(Expr.GroupingExpr expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public ExprNode visitFunctionExpr(Expr.Function expr) {
+        Stmt.Function declaration = new Stmt.Function("<anonymous>", expr.params, expr.body, false);
+        declaration.frameSize = expr.frameSize;
+        declaration.captures = expr.captures;
+        declaration.boxedParams = expr.boxedParams;
+        StmtNode[] body = function(expr.body);
+        return frame -> new CompiledFunction(declaration, frame, false, body, memos);
+    }
+
+    @Override
+    public ExprNode visitLiteralExpr(Expr.LiteralExpr expr) {
+        Object value = expr.value;
+        if (value instanceof Double number) {
+            double unboxed = number;
+            return new ExprNode() {
+                @Override
+                public Object execute(Environment frame) {
+                    return number;
+                }
+
+                @Override
+                public double executeDouble(Environment frame) {
+                    return unboxed;
+                }
+            };
+        }
+        return frame -> value;
+    }
+
+    @Override
+    public ExprNode visitLogicalExpr(Expr.Logical logical) {
+        ExprNode left = compile(logical.left);
+        ExprNode right = compile(logical.right);
+        return switch (logical.operator.type()) {
+            case OR -> frame -> {
+                Object value = left.execute(frame);
+                return isTruthy(value) ? value : right.execute(frame);
+            };
+            default -> frame -> {
+                Object value = left.execute(frame);
+                return !isTruthy(value) ? value : right.execute(frame);
+            };
+        };
+    }
+
+    @Override
+    public ExprNode visitGetExpr(Expr.GetExpr getExpr) {
+        ExprNode object = compile(getExpr.object);
+        Token name = getExpr.name;
+        PropertyCache cache = propertyCaches.forGet(name);
+        return frame -> getProperty(object.execute(frame), cache, name);
+    }
+
+    private static Object getProperty(Object object, PropertyCache cache, Token name) {
+        if (object instanceof TinyLangInstance instance) {
+            return cache.get(instance);
+        }
+        if (object instanceof TinyLangClass klass) {
+            return klass.findMethod(name.lexeme());
+        }
+        throw new RuntimeError(name, "Only instances have properties.");
+    }
+
+    @Override
+    public ExprNode visitSetExpr(Expr.SetExpr setExpr) {
+        ExprNode object = compile(setExpr.object);
+        ExprNode value = compile(setExpr.value);
+        Token name = setExpr.name;
+        PropertyCache cache = propertyCaches.forSet(name);
+        return frame -> {
+            if (!(object.execute(frame) instanceof TinyLangInstance instance)) {
+                throw new RuntimeError(name, "Only instances have fields.");
+            }
+            Object result = value.execute(frame);
+            cache.set(instance, result);
+            return result;
+        };
+    }
+
+    @Override
+    public ExprNode visitThisExpr(Expr.ThisExpr thisExpr) {
+        return variable(thisExpr, thisExpr.keyword);
+    }
+
+    @Override
+    public ExprNode visitSuperExpr(Expr.Super superExpr) {
+        ExprNode method = superMethod(superExpr);
+        ExprNode receiver = superReceiver(superExpr);
+        return frame -> ((TinyLangFunction) method.execute(frame)).bind((TinyLangInstance) receiver.execute(frame));
+    }
+
+    @Override
+    public ExprNode visitInlineExpr(Expr.Inline expr) {
+        ExprNode callee = compile(expr.call.callee);
+        ExprNode[] arguments = new ExprNode[expr.call.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = compile(expr.call.arguments.get(i));
+        }
+        int[] slots = expr.slots;
+        ExprNode body = compile(expr.body);
+        Token paren = expr.call.paren;
+        boolean tail = expr.call.isTailCall;
+        Stmt.Function declaration = expr.function;
+        return frame -> {
+            Object function = callee.execute(frame);
+            if (!(function instanceof TinyLangFunction inlined) || inlined.declaration() != declaration) {
+                return call(function, arguments, frame, paren, tail);
+            }
+            for (int i = 0; i < arguments.length; i++) {
+                frame.define(slots[i], arguments[i].execute(frame));
+            }
+            return body.execute(frame);
+        };
+    }
+
+    private ExprNode superMethod(Expr.Super superExpr) {
+        ExprNode superclassNode = variable(superExpr, superExpr.keyword);
+        Token method = superExpr.method;
+        return frame -> {
+            TinyLangClass superclass = (TinyLangClass) superclassNode.execute(frame);
+            TinyLangFunction function = superclass.findMethod(method.lexeme());
+            if (function == null) {
+                throw new RuntimeError(method, "Undefined superclass method '" + method.lexeme() + "'.");
+            }
+            return function;
+        };
+    }
+
+    private ExprNode superReceiver(Expr.Super superExpr) {
+        return variable(superExpr.receiver, superExpr.receiver.keyword);
+    }
+
+    @Override
+    public StmtNode visitLetStmt(Stmt.Let stmt) {
+        ExprNode initializer = stmt.initializer != null ? compile(stmt.initializer) : frame -> null;
+        int slot = stmt.slot;
+        if (slot < 0) {
+            Global global = globals.global(stmt.name);
+            return frame -> {
+                global.define(initializer.execute(frame));
+                return null;
+            };
+        }
+        if (stmt.isBoxed) {
+            return frame -> {
+                Cell cell = new Cell(null);
+                frame.define(slot, cell);
+                cell.value = initializer.execute(frame);
+                return null;
+            };
+        }
+        return frame -> {
+            frame.define(slot, initializer.execute(frame));
+            return null;
+        };
+    }
+
+    @Override
+    public StmtNode visitExpressionStmt(Stmt.Expression stmt) {
+        ExprNode expression = compile(stmt.expression);
+        return frame -> {
+            expression.execute(frame);
+            return null;
+        };
+    }
+
+    @Override
+    public StmtNode visitIfStmt(Stmt.If stmt) {
+        ExprNode condition = compile(stmt.condition);
+        StmtNode thenBranch = compile(stmt.thenBranch);
+        if (stmt.elseBranch == null) {
+            return frame -> isTruthy(condition.execute(frame)) ? thenBranch.execute(frame) : null;
+        }
+        StmtNode elseBranch = compile(stmt.elseBranch);
+        return frame -> isTruthy(condition.execute(frame)) ? thenBranch.execute(frame) : elseBranch.execute(frame);
+    }
+
+    @Override
+    public StmtNode visitWhileStmt(Stmt.While stmt) {
+        ExprNode condition = compile(stmt.condition);
+        StmtNode body = compile(stmt.body);
+        return frame -> {
+            while (isTruthy(condition.execute(frame))) {
+                Object completion = body.execute(frame);
+                if (completion != null) return completion;
+            }
+            return null;
+        };
+    }
+
+    @Override
+    public StmtNode visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) {
+            return frame -> StmtNode.RETURN_NIL;
+        }
+        ExprNode value = compile(stmt.value);
+        return frame -> {
+            Object result = value.execute(frame);
+            return result != null ? result : StmtNode.RETURN_NIL;
+        };
+    }
+
+    @Override
+    public StmtNode visitBlockStmt(Stmt.Block stmt) {
+        StmtNode[] statements = compile(stmt.statements);
+        if (!stmt.hasFrame()) {
+            return frame -> {
+                for (StmtNode statement : statements) {
+                    Object completion = statement.execute(frame);
+                    if (completion != null) return completion;
+                }
+                return null;
+            };
+        }
+        int size = stmt.slotCount;
+        return frame -> {
+            Environment block = new Environment(frame, size);
+            for (StmtNode statement : statements) {
+                Object completion = statement.execute(block);
+                if (completion != null) return completion;
+            }
+            return null;
+        };
+    }
+
+    @Override
+    public StmtNode visitClassStmt(Stmt.Class stmt) {
+        ExprNode superclassNode = stmt.superclass != null ? compile(stmt.superclass) : null;
+        List<Stmt.Function> declarations = stmt.methods;
+        List<StmtNode[]> bodies = new ArrayList<>();
+        for (Stmt.Function method : declarations) {
+            bodies.add(function(method.body));
+        }
+
+        Token name = stmt.name;
+        int slot = stmt.slot;
+        boolean isBoxed = stmt.isBoxed;
+        return frame -> {
+            Cell cell = isBoxed ? new Cell(null) : null;
+            define(frame, slot, name.lexeme(), cell);
+            Object superclass = null;
+            if (superclassNode != null) {
+                superclass = superclassNode.execute(frame);
+                if (!(superclass instanceof TinyLangClass)) {
+                    throw new RuntimeError(stmt.superclass.name, "Superclass must be a class.");
+                }
+            }
+
+            Environment enclosing = frame;
+            if (superclass != null) {
+                enclosing = new Environment(frame, 1);
+                enclosing.define(0, superclass);
+            }
+
+            Map<String, TinyLangFunction> methods = new HashMap<>();
+            Map<String, TinyLangFunction> staticMethods = new HashMap<>();
+            for (int i = 0; i < declarations.size(); i++) {
+                Stmt.Function method = declarations.get(i);
+                TinyLangFunction function = new CompiledFunction(method, enclosing, method.name.equals("init"), bodies.get(i), memos);
+                if (method.isStatic()) {
+                    staticMethods.put(method.name, function);
+                } else {
+                    methods.put(method.name, function);
+                }
+            }
+            TinyLangClass klass = new TinyLangClass(name.lexeme(), superclass, methods, staticMethods);
+            if (isBoxed) {
+                cell.value = klass;
+            } else {
+                define(frame, slot, name.lexeme(), klass);
+            }
+            return null;
+        };
+    }
+
+    @Override
+    public StmtNode visitFunctionStmt(Stmt.Function stmt) {
+        int slot = stmt.slot;
+        String name = stmt.name;
+        StmtNode[] body = function(stmt.body);
+        if (stmt.isBoxed) {
+            return frame -> {
+                Cell cell = new Cell(null);
+                frame.define(slot, cell);
+                cell.value = new CompiledFunction(stmt, frame, false, body, memos);
+                return null;
+            };
+        }
+        return frame -> {
+            define(frame, slot, name, new CompiledFunction(stmt, frame, false, body, memos));
+            return null;
+        };
+    }
+
+    @Override
+    public StmtNode visitPrintStmt(Stmt.Print stmt) {
+        ExprNode expression = compile(stmt.expression);
+        return frame -> {
+            System.out.println(stringify(expression.execute(frame)));
+            return null;
+        };
+    }
+
+    private StmtNode[] function(List<Stmt> body) {
+        return compile(body);
+    }
+
+    private ExprNode variable(Expr.Resolvable expr, Token name) {
+        if (!expr.isLocal()) {
+            Global global = globals.global(name.lexeme());
+            return frame -> global.get(name);
+        }
+        int hops = expr.depth;
+        int slot = expr.slot;
+        if (expr.isBoxed) {
+            return frame -> frame.getBoxedAt(hops, slot);
+        }
+        return frame -> frame.getAt(hops, slot);
+    }
+
+    private void define(Environment frame, int slot, String name, Object value) {
+        if (slot >= 0) {
+            frame.define(slot, value);
+        } else {
+            globals.define(name, value);
+        }
+    }
+
+    private static Object call(Object callee, ExprNode[] arguments, Environment frame, Token paren, boolean tail) {
+        if (callee instanceof TinyLangFunction function) {
+            return invoke(function, function.receiver(), arguments, frame, paren, tail);
+        }
+        if (callee instanceof TinyLangClass klass) {
+            TinyLangInstance instance = new TinyLangInstance(klass);
+            TinyLangFunction initializer = klass.initializer();
+            if (initializer != null) {
+                invoke(initializer, instance, arguments, frame, paren, false);
+            } else if (arguments.length != 0) {
+                evaluate(arguments, frame);
+                throw new RuntimeError(paren, "Expected 0 arguments but got " + arguments.length + ".");
+            }
+            return instance;
+        }
+        Object[] values = evaluate(arguments, frame);
+        if (!(callee instanceof TinyLangCallable function)) {
+            throw new RuntimeError(paren, "Can only call functions and classes.");
+        }
+        checkArity(function, values, paren);
+        return function.call(null, values);
+    }
+
+    /**
+     * Calls a function with {@code receiver} as {@code this}, evaluating the
+     * arguments straight into the callee's frame. A tail call only prepares
+     * the frame and returns it as a {@link TailCall} for the caller to make.
+     */
+    private static Object invoke(TinyLangFunction function, TinyLangInstance receiver, ExprNode[] arguments,
+                                 Environment frame, Token paren, boolean tail) {
+        if (arguments.length != function.arity()) {
+            evaluate(arguments, frame);
+            throw new RuntimeError(paren, "Expected " + function.arity() + " arguments but got " + arguments.length + ".");
+        }
+        Environment callee = function.newFrame(receiver);
+        for (int i = 0; i < arguments.length; i++) {
+            callee.define(i, arguments[i].execute(frame));
+        }
+        if (tail && function instanceof CompiledFunction compiled) {
+            return new TailCall(compiled, callee);
+        }
+        return function.execute(null, callee);
+    }
+
+    private static Object[] evaluate(ExprNode[] arguments, Environment frame) {
+        Object[] values = new Object[arguments.length];
+        for (int i = 0; i < arguments.length; i++) {
+            values[i] = arguments[i].execute(frame);
+        }
+        return values;
+    }
+
+    private static void checkArity(TinyLangCallable function, Object[] arguments, Token paren) {
+        if (arguments.length != function.arity()) {
+            throw new RuntimeError(paren, "Expected " + function.arity() + " arguments but got " + arguments.length + ".");
+        }
+    }
+}
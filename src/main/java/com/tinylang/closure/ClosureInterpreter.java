@@ -0,0 +1,53 @@
+package com.tinylang.closure;
+
+import com.tinylang.Environment;
+import com.tinylang.Memo;
+import com.tinylang.PropertyCache;
+import com.tinylang.TinyLang;
+import com.tinylang.ast.Expr;
+import com.tinylang.ast.Stmt;
+import com.tinylang.error.RuntimeError;
+
+import java.util.List;
+
+import static com.tinylang.util.Values.stringify;
+
+/**
+ * Runs programs by compiling them with {@link ClosureCompiler} first. Globals
+ * persist across calls so the REPL keeps its definitions.
+ */
+public class ClosureInterpreter {
+
+    private final Environment globals = new Environment();
+    private final PropertyCache.Sites propertyCaches;
+    private final Memo.Registry memos;
+
+    public ClosureInterpreter() {
+        this(new PropertyCache.Sites(false), new Memo.Registry(false));
+    }
+
+    public ClosureInterpreter(PropertyCache.Sites propertyCaches, Memo.Registry memos) {
+        this.propertyCaches = propertyCaches;
+        this.memos = memos;
+    }
+
+    public void interpret(List<Stmt> statements) {
+        StmtNode[] program = new ClosureCompiler(globals, propertyCaches, memos).compile(statements);
+        try {
+            for (StmtNode statement : program) {
+                statement.execute(globals);
+            }
+        } catch (RuntimeError e) {
+            TinyLang.runtimeError(e);
+        }
+    }
+
+    public void interpret(Expr expression) {
+        ExprNode node = new ClosureCompiler(globals, propertyCaches, memos).compile(expression);
+        try {
+            System.out.println(stringify(node.execute(globals)));
+        } catch (RuntimeError e) {
+            TinyLang.runtimeError(e);
+        }
+    }
+}
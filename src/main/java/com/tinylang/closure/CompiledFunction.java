@@ -0,0 +1,80 @@
+package com.tinylang.closure;
+
+import com.tinylang.Environment;
+import com.tinylang.Interpreter;
+import com.tinylang.Memo;
+import com.tinylang.TinyLangFunction;
+import com.tinylang.TinyLangInstance;
+import com.tinylang.ast.Stmt;
+
+/**
+ * A function whose body was compiled by {@link ClosureCompiler}. It runs its
+ * own nodes and ignores the interpreter passed to {@link #call}.
+ */
+public class CompiledFunction extends TinyLangFunction {
+
+    private final StmtNode[] body;
+    private final Memo.Registry memos;
+
+    /** Creates the closure of a function declared in {@code enclosing}. */
+    CompiledFunction(Stmt.Function declaration, Environment enclosing, boolean isInitializer, StmtNode[] body,
+                     Memo.Registry memos) {
+        this(declaration, Environment.capture(enclosing, declaration.captures), isInitializer, body, memos, null);
+    }
+
+    private CompiledFunction(Stmt.Function declaration, Environment closure, boolean isInitializer, StmtNode[] body,
+                             Memo.Registry memos, TinyLangInstance receiver) {
+        super(declaration, closure, isInitializer, receiver);
+        this.body = body;
+        this.memos = memos;
+    }
+
+    /**
+     * Runs the body on the frame, then the calls it makes in tail position,
+     * one after the other. Each is looked up first if its function is
+     * memoized, as any other call is.
+     */
+    @Override
+    protected Object evaluate(Interpreter interpreter, Environment frame) {
+        Object result = run(frame);
+        if (!(result instanceof TailCall)) {
+            return result;
+        }
+        TailCalls calls = new TailCalls(interpreter);
+        while (result instanceof TailCall call) {
+            result = calls.lookUp(call.function(), call.frame());
+            if (result == TailCalls.MISSING) {
+                result = call.function().run(call.frame());
+            }
+        }
+        return calls.complete(result);
+    }
+
+    /** Runs the body once; a call it ends with in tail position comes back as a {@link TailCall}. */
+    private Object run(Environment frame) {
+        for (int slot : declaration.boxedParams) {
+            frame.box(slot);
+        }
+        for (StmtNode statement : body) {
+            Object completion = statement.execute(frame);
+            if (completion != null) {
+                if (isInitializer) {
+                    return frame.getAt(0, declaration.thisSlot);
+                }
+                return completion != StmtNode.RETURN_NIL ? completion : null;
+            }
+        }
+        return null;
+    }
+
+    /** The memos of the compiler's run, as there is no interpreter to ask. */
+    @Override
+    protected Memo.Registry memos(Interpreter interpreter) {
+        return memos;
+    }
+
+    @Override
+    public TinyLangFunction bind(TinyLangInstance instance) {
+        return new CompiledFunction(declaration, closure, isInitializer, body, memos, instance);
+    }
+}
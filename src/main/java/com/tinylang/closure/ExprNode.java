@@ -0,0 +1,25 @@
+package com.tinylang.closure;
+
+import com.tinylang.Environment;
+
+/**
+ * A compiled expression. Children are linked in when the node is created, so
+ * evaluating it is a direct call with no visitor dispatch or lookups.
+ */
+@FunctionalInterface
+public interface ExprNode {
+
+    Object execute(Environment frame);
+
+    /**
+     * Evaluates the node as a number. Nodes that compute numbers override this
+     * to hand the result to numeric parents without boxing it.
+     */
+    default double executeDouble(Environment frame) throws UnexpectedResultException {
+        Object value = execute(frame);
+        if (value instanceof Double number) {
+            return number;
+        }
+        throw new UnexpectedResultException(value);
+    }
+}
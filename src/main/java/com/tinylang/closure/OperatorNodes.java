@@ -0,0 +1,493 @@
+package com.tinylang.closure;
+
+import com.tinylang.Environment;
+import com.tinylang.ast.Expr;
+import com.tinylang.ast.Type;
+import com.tinylang.error.RuntimeError;
+import com.tinylang.token.Token;
+
+import static com.tinylang.util.Values.isEqual;
+import static com.tinylang.util.Values.isTruthy;
+
+/**
+ * Operator nodes that specialize themselves on the operand types they see.
+ * A node starts uninitialized; the first evaluation enables the
+ * specialization matching its operands, a later evaluation that fits none of
+ * the enabled ones enables another, and once the generic case is needed it
+ * replaces the specialized ones for good. Operators that only accept numbers
+ * have a single double specialization whose guard failure is the type error.
+ * <p>
+ * Numeric nodes implement {@link ExprNode#executeDouble} and ask their
+ * children for unboxed operands the same way, so a chain of arithmetic only
+ * boxes the final result when it leaves for a variable, field or call.
+ */
+final class OperatorNodes {
+
+    static final int UNINITIALIZED = 0;
+    static final int DOUBLE = 1;
+    static final int STRING = 1 << 1;
+    static final int BOOLEAN = 1 << 2;
+    static final int GENERIC = 1 << 3;
+
+    private OperatorNodes() {
+    }
+
+    static double expectDouble(Object value) throws UnexpectedResultException {
+        if (value instanceof Double number) {
+            return number;
+        }
+        throw new UnexpectedResultException(value);
+    }
+
+    /**
+     * Creates the node of a binary operator. An addition whose operands are
+     * known to be numbers starts out specialized to them, and one the
+     * profile saw specialize on earlier runs starts out as it ended there.
+     */
+    static ExprNode binary(Expr.BinaryExpr expr, ExprNode left, ExprNode right) {
+        Token operator = expr.operator;
+        return switch (operator.type()) {
+            case PLUS -> new AddNode(expr, left, right);
+            case MINUS -> new SubtractNode(operator, left, right);
+            case STAR -> new MultiplyNode(operator, left, right);
+            case SLASH -> new DivideNode(operator, left, right);
+            case STAR_STAR -> new PowerNode(operator, left, right);
+            case GREATER -> new GreaterNode(operator, left, right);
+            case GREATER_EQUAL -> new GreaterEqualNode(operator, left, right);
+            case LESS -> new LessNode(operator, left, right);
+            case LESS_EQUAL -> new LessEqualNode(operator, left, right);
+            case EQUAL_EQUAL -> new EqualNode(operator, left, right, false);
+            case BANG_EQUAL -> new EqualNode(operator, left, right, true);
+            default -> frame -> {
+                left.execute(frame);
+                right.execute(frame);
+                return null;
+            };
+        };
+    }
+
+    /**
+     * Each subclass evaluates its operands itself rather than through a shared
+     * helper, so the JIT profiles the child calls of every operator separately.
+     */
+    abstract static class BinaryNode implements ExprNode {
+        final Token operator;
+        final ExprNode left;
+        final ExprNode right;
+        int state = UNINITIALIZED;
+
+        BinaryNode(Token operator, ExprNode left, ExprNode right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        RuntimeError operandsError() {
+            return new RuntimeError(operator, "Operands of '" + operator + "' must be numbers.");
+        }
+    }
+
+    static final class AddNode extends BinaryNode {
+
+        // Where the node reports the operands it specialized on, for the profile.
+        private final Expr.BinaryExpr site;
+
+        AddNode(Expr.BinaryExpr site, ExprNode left, ExprNode right) {
+            super(site.operator, left, right);
+            this.site = site;
+            if (site.hasNumberOperands()) {
+                state = DOUBLE;
+            } else {
+                state = switch (site.observed) {
+                    case NUMBER -> DOUBLE;
+                    case STRING -> STRING;
+                    default -> UNINITIALIZED;
+                };
+            }
+        }
+
+        @Override
+        public Object execute(Environment frame) {
+            if (state == DOUBLE) {
+                double a;
+                try {
+                    a = left.executeDouble(frame);
+                } catch (UnexpectedResultException e) {
+                    return specialize(e.result(), right.execute(frame));
+                }
+                try {
+                    return a + right.executeDouble(frame);
+                } catch (UnexpectedResultException e) {
+                    return specialize(a, e.result());
+                }
+            }
+            Object l = left.execute(frame);
+            Object r = right.execute(frame);
+            int state = this.state;
+            if ((state & DOUBLE) != 0 && l instanceof Double a && r instanceof Double b) {
+                return a + b;
+            }
+            if ((state & STRING) != 0 && l instanceof String a && r instanceof String b) {
+                return a.concat(b);
+            }
+            if ((state & GENERIC) != 0) {
+                return generic(l, r);
+            }
+            return specialize(l, r);
+        }
+
+        @Override
+        public double executeDouble(Environment frame) throws UnexpectedResultException {
+            if (state != DOUBLE) {
+                return expectDouble(execute(frame));
+            }
+            double a;
+            try {
+                a = left.executeDouble(frame);
+            } catch (UnexpectedResultException e) {
+                return expectDouble(specialize(e.result(), right.execute(frame)));
+            }
+            try {
+                return a + right.executeDouble(frame);
+            } catch (UnexpectedResultException e) {
+                return expectDouble(specialize(a, e.result()));
+            }
+        }
+
+        private Object specialize(Object l, Object r) {
+            if (l instanceof Double && r instanceof Double) {
+                state |= DOUBLE;
+            } else if (l instanceof String && r instanceof String) {
+                state |= STRING;
+            } else if (l instanceof String || r instanceof String) {
+                state = GENERIC;
+            }
+            site.observed = switch (state) {
+                case DOUBLE -> Type.NUMBER;
+                case STRING -> Type.STRING;
+                default -> Type.UNKNOWN;
+            };
+            return generic(l, r);
+        }
+
+        private Object generic(Object l, Object r) {
+            if (l instanceof String || r instanceof String) {
+                return String.valueOf(l) + String.valueOf(r);
+            }
+            if (l instanceof Double a && r instanceof Double b) {
+                return a + b;
+            }
+            throw operandsError();
+        }
+    }
+
+    static final class SubtractNode extends BinaryNode {
+
+        SubtractNode(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        public Object execute(Environment frame) {
+            return executeDouble(frame);
+        }
+
+        @Override
+        public double executeDouble(Environment frame) {
+            double a;
+            try {
+                a = left.executeDouble(frame);
+            } catch (UnexpectedResultException e) {
+                right.execute(frame);
+                throw operandsError();
+            }
+            try {
+                return a - right.executeDouble(frame);
+            } catch (UnexpectedResultException e) {
+                throw operandsError();
+            }
+        }
+    }
+
+    static final class MultiplyNode extends BinaryNode {
+
+        MultiplyNode(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        public Object execute(Environment frame) {
+            return executeDouble(frame);
+        }
+
+        @Override
+        public double executeDouble(Environment frame) {
+            double a;
+            try {
+                a = left.executeDouble(frame);
+            } catch (UnexpectedResultException e) {
+                right.execute(frame);
+                throw operandsError();
+            }
+            try {
+                return a * right.executeDouble(frame);
+            } catch (UnexpectedResultException e) {
+                throw operandsError();
+            }
+        }
+    }
+
+    static final class DivideNode extends BinaryNode {
+
+        DivideNode(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        public Object execute(Environment frame) {
+            return executeDouble(frame);
+        }
+
+        @Override
+        public double executeDouble(Environment frame) {
+            double a;
+            try {
+                a = left.executeDouble(frame);
+            } catch (UnexpectedResultException e) {
+                right.execute(frame);
+                throw operandsError();
+            }
+            double b;
+            try {
+                b = right.executeDouble(frame);
+            } catch (UnexpectedResultException e) {
+                throw operandsError();
+            }
+            if (b == 0) {
+                throw new RuntimeError(operator, "Division by zero.");
+            }
+            return a / b;
+        }
+    }
+
+    static final class PowerNode extends BinaryNode {
+
+        PowerNode(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        public Object execute(Environment frame) {
+            return executeDouble(frame);
+        }
+
+        @Override
+        public double executeDouble(Environment frame) {
+            double a;
+            try {
+                a = left.executeDouble(frame);
+            } catch (UnexpectedResultException e) {
+                right.execute(frame);
+                throw operandsError();
+            }
+            try {
+                return Math.pow(a, right.executeDouble(frame));
+            } catch (UnexpectedResultException e) {
+                throw operandsError();
+            }
+        }
+    }
+
+    static final class GreaterNode extends BinaryNode {
+
+        GreaterNode(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        public Object execute(Environment frame) {
+            double a;
+            try {
+                a = left.executeDouble(frame);
+            } catch (UnexpectedResultException e) {
+                right.execute(frame);
+                throw operandsError();
+            }
+            try {
+                return a > right.executeDouble(frame);
+            } catch (UnexpectedResultException e) {
+                throw operandsError();
+            }
+        }
+    }
+
+    static final class GreaterEqualNode extends BinaryNode {
+
+        GreaterEqualNode(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        public Object execute(Environment frame) {
+            double a;
+            try {
+                a = left.executeDouble(frame);
+            } catch (UnexpectedResultException e) {
+                right.execute(frame);
+                throw operandsError();
+            }
+            try {
+                return a >= right.executeDouble(frame);
+            } catch (UnexpectedResultException e) {
+                throw operandsError();
+            }
+        }
+    }
+
+    static final class LessNode extends BinaryNode {
+
+        LessNode(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        public Object execute(Environment frame) {
+            double a;
+            try {
+                a = left.executeDouble(frame);
+            } catch (UnexpectedResultException e) {
+                right.execute(frame);
+                throw operandsError();
+            }
+            try {
+                return a < right.executeDouble(frame);
+            } catch (UnexpectedResultException e) {
+                throw operandsError();
+            }
+        }
+    }
+
+    static final class LessEqualNode extends BinaryNode {
+
+        LessEqualNode(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        public Object execute(Environment frame) {
+            double a;
+            try {
+                a = left.executeDouble(frame);
+            } catch (UnexpectedResultException e) {
+                right.execute(frame);
+                throw operandsError();
+            }
+            try {
+                return a <= right.executeDouble(frame);
+            } catch (UnexpectedResultException e) {
+                throw operandsError();
+            }
+        }
+    }
+
+    /**
+     * {@code ==} and {@code !=}. Doubles compare like {@link Double#equals},
+     * so NaN equals itself and 0 differs from -0 exactly as in the generic case.
+     */
+    static final class EqualNode extends BinaryNode {
+        private final boolean negated;
+
+        EqualNode(Token operator, ExprNode left, ExprNode right, boolean negated) {
+            super(operator, left, right);
+            this.negated = negated;
+        }
+
+        @Override
+        public Object execute(Environment frame) {
+            if (state == DOUBLE) {
+                double a;
+                try {
+                    a = left.executeDouble(frame);
+                } catch (UnexpectedResultException e) {
+                    return specialize(e.result(), right.execute(frame));
+                }
+                double b;
+                try {
+                    b = right.executeDouble(frame);
+                } catch (UnexpectedResultException e) {
+                    return specialize(a, e.result());
+                }
+                return (Double.doubleToLongBits(a) == Double.doubleToLongBits(b)) != negated;
+            }
+            Object l = left.execute(frame);
+            Object r = right.execute(frame);
+            int state = this.state;
+            if ((state & DOUBLE) != 0 && l instanceof Double a && r instanceof Double b) {
+                return (Double.doubleToLongBits(a) == Double.doubleToLongBits(b)) != negated;
+            }
+            if ((state & BOOLEAN) != 0 && l instanceof Boolean a && r instanceof Boolean b) {
+                return (a.booleanValue() == b.booleanValue()) != negated;
+            }
+            return specialize(l, r);
+        }
+
+        private Object specialize(Object l, Object r) {
+            int state = this.state;
+            if ((state & GENERIC) == 0) {
+                if (l instanceof Double && r instanceof Double) {
+                    this.state = state | DOUBLE;
+                } else if (l instanceof Boolean && r instanceof Boolean) {
+                    this.state = state | BOOLEAN;
+                } else {
+                    this.state = GENERIC;
+                }
+            }
+            return isEqual(l, r) != negated;
+        }
+    }
+
+    static final class NegateNode implements ExprNode {
+        private final Token operator;
+        private final ExprNode right;
+
+        NegateNode(Token operator, ExprNode right) {
+            this.operator = operator;
+            this.right = right;
+        }
+
+        @Override
+        public Object execute(Environment frame) {
+            return executeDouble(frame);
+        }
+
+        @Override
+        public double executeDouble(Environment frame) {
+            try {
+                return -right.executeDouble(frame);
+            } catch (UnexpectedResultException e) {
+                throw new RuntimeError(operator, "Operand of '" + operator + "' must be a number.");
+            }
+        }
+    }
+
+    static final class NotNode implements ExprNode {
+        private final ExprNode right;
+        private int state = UNINITIALIZED;
+
+        NotNode(ExprNode right) {
+            this.right = right;
+        }
+
+        @Override
+        public Object execute(Environment frame) {
+            Object value = right.execute(frame);
+            if ((state & BOOLEAN) != 0 && value instanceof Boolean b) {
+                return !b;
+            }
+            if ((state & GENERIC) == 0) {
+                state = value instanceof Boolean ? state | BOOLEAN : GENERIC;
+            }
+            return !isTruthy(value);
+        }
+    }
+}
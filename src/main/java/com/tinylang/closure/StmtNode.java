@@ -0,0 +1,17 @@
+package com.tinylang.closure;
+
+import com.tinylang.Environment;
+
+/**
+ * A compiled statement. {@link #execute} returns null when the statement
+ * completes normally. A return statement instead yields the returned value,
+ * with nil as {@link #RETURN_NIL}, and enclosing blocks and loops stop and
+ * pass it on until it reaches the function body.
+ */
+@FunctionalInterface
+public interface StmtNode {
+
+    Object RETURN_NIL = new Object();
+
+    Object execute(Environment frame);
+}
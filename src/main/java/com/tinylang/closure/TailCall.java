@@ -0,0 +1,13 @@
+package com.tinylang.closure;
+
+import com.tinylang.Environment;
+
+/**
+ * What a call in tail position evaluates to: the function to call and its
+ * frame, with the arguments in place. The return statement hands it on like
+ * any other value, and the {@link CompiledFunction} whose body returned it
+ * makes the call after the body is done, so a chain of tail calls takes a
+ * single Java frame.
+ */
+record TailCall(CompiledFunction function, Environment frame) {
+}
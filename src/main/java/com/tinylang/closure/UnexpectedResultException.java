@@ -0,0 +1,25 @@
+package com.tinylang.closure;
+
+import java.io.Serial;
+
+/**
+ * Thrown by a typed {@code execute} method when the value it produced isn't
+ * of the requested type. Carries the value so the caller can continue on its
+ * generic path without evaluating the node again.
+ */
+public class UnexpectedResultException extends Exception {
+
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    private final transient Object result;
+
+    public UnexpectedResultException(Object result) {
+        super(null, null, false, false);
+        this.result = result;
+    }
+
+    public Object result() {
+        return result;
+    }
+}
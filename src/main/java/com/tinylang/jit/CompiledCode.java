@@ -0,0 +1,14 @@
+package com.tinylang.jit;
+
+import com.tinylang.Environment;
+import com.tinylang.Interpreter;
+
+/**
+ * The body of a function compiled to JVM bytecode by {@link Jit}. It takes the
+ * frame the caller filled with the arguments and {@code this}, and returns
+ * what running the body in the interpreter would have returned.
+ */
+public interface CompiledCode {
+
+    Object execute(Interpreter interpreter, Environment frame);
+}
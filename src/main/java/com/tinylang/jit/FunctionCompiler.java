@@ -0,0 +1,1063 @@
+package com.tinylang.jit;
+
+import com.tinylang.Environment;
+import com.tinylang.Global;
+import com.tinylang.Interpreter;
+import com.tinylang.PropertyCache;
+import com.tinylang.TinyLangFunction;
+import com.tinylang.TinyLangInstance;
+import com.tinylang.ast.Expr;
+import com.tinylang.ast.Stmt;
+import com.tinylang.token.Token;
+import com.tinylang.token.TokenType;
+import com.tinylang.util.Values;
+
+import java.io.PrintStream;
+import java.io.Serial;
+import java.lang.classfile.ClassFile;
+import java.lang.classfile.ClassHierarchyResolver;
+import java.lang.classfile.CodeBuilder;
+import java.lang.classfile.Label;
+import java.lang.classfile.Opcode;
+import java.lang.constant.ClassDesc;
+import java.lang.constant.ConstantDescs;
+import java.lang.constant.DynamicConstantDesc;
+import java.lang.constant.MethodTypeDesc;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.lang.constant.ConstantDescs.CD_Boolean;
+import static java.lang.constant.ConstantDescs.CD_Double;
+import static java.lang.constant.ConstantDescs.CD_Object;
+import static java.lang.constant.ConstantDescs.CD_String;
+import static java.lang.constant.ConstantDescs.CD_boolean;
+import static java.lang.constant.ConstantDescs.CD_double;
+import static java.lang.constant.ConstantDescs.CD_int;
+
+/**
+ * Translates one function into a class implementing {@link CompiledCode}.
+ * <p>
+ * Variables the function declares itself, its parameters and {@code this}
+ * become JVM locals. A local whose every assignment is statically a number is
+ * kept as an unboxed double, and so are the intermediate results of
+ * arithmetic and comparisons, so a numeric loop runs without allocating.
+ * Variables of enclosing functions are still read through the frame chain,
+ * and globals through their cells, which are linked at compile time. Nothing the function declares can be
+ * captured, since functions that create closures or classes are not compiled;
+ * neither are those that use {@code super}.
+ * <p>
+ * Objects the code needs, such as tokens for error messages and property
+ * caches, are passed as class data and loaded with dynamic constants, so the
+ * JVM sees them as constants too.
+ */
+final class FunctionCompiler implements Expr.Visitor<FunctionCompiler.Kind>, Stmt.Visitor<Void> {
+
+    private static final ClassFile CLASS_FILE = ClassFile.of(ClassFile.ClassHierarchyResolverOption.of(
+            ClassHierarchyResolver.defaultResolver().orElse(
+                    ClassHierarchyResolver.ofClassLoading(FunctionCompiler.class.getClassLoader()))));
+
+    private static final ClassDesc CD_COMPILED_CODE = desc(CompiledCode.class);
+    private static final ClassDesc CD_RUNTIME = desc(JitRuntime.class);
+    private static final ClassDesc CD_INTERPRETER = desc(Interpreter.class);
+    private static final ClassDesc CD_ENVIRONMENT = desc(Environment.class);
+    private static final ClassDesc CD_TOKEN = desc(Token.class);
+    private static final ClassDesc CD_GLOBAL = desc(Global.class);
+    private static final ClassDesc CD_PROPERTY_CACHE = desc(PropertyCache.class);
+    private static final ClassDesc CD_FUNCTION = desc(TinyLangFunction.class);
+    private static final ClassDesc CD_INSTANCE = desc(TinyLangInstance.class);
+    private static final ClassDesc CD_VALUES = desc(Values.class);
+    private static final ClassDesc CD_MATH = desc(Math.class);
+    private static final ClassDesc CD_SYSTEM = desc(System.class);
+    private static final ClassDesc CD_PRINT_STREAM = desc(PrintStream.class);
+    private static final ClassDesc CD_OBJECT_ARRAY = CD_Object.arrayType();
+
+    // Calls with up to this many arguments use the fixed-arity entry points of JitRuntime.
+    private static final int MAX_FIXED_ARITY = 4;
+
+    // Local 0 is the compiled code object itself.
+    private static final int INTERPRETER = 1;
+    private static final int FRAME = 2;
+    private static final int FIRST_LOCAL = 3;
+
+    /** How a value is held on the JVM stack or in a JVM local. */
+    enum Kind {
+        OBJECT,
+        DOUBLE,
+        BOOLEAN
+    }
+
+    /** A variable declared by the function being compiled. */
+    private static final class Local {
+        boolean isDouble = true;
+        boolean declared;
+        final List<Expr> values = new ArrayList<>();
+        int index;
+    }
+
+    /** Thrown while analysing a function the compiler does not handle. */
+    static final class Bailout extends RuntimeException {
+
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        Bailout(String reason) {
+            super(reason, null, false, false);
+        }
+    }
+
+    private final Stmt.Function function;
+    private final boolean isInitializer;
+    private final Environment globals;
+    private final PropertyCache.Sites propertyCaches;
+    private final Local[] functionLocals;
+    private final Map<Stmt.Block, Local[]> blockLocals = new IdentityHashMap<>();
+    private final Map<Expr, Local> resolved = new IdentityHashMap<>();
+    private final List<Object> classData = new ArrayList<>();
+    private final Map<Object, Integer> constants = new IdentityHashMap<>();
+    private final List<Local[]> scopes = new ArrayList<>();
+    private CodeBuilder code;
+    private int nextLocal;
+
+    FunctionCompiler(Stmt.Function function, boolean isInitializer, Environment globals,
+                     PropertyCache.Sites propertyCaches) {
+        this.function = function;
+        this.isInitializer = isInitializer;
+        this.globals = globals;
+        this.propertyCaches = propertyCaches;
+        this.functionLocals = newLocals(function.frameSize);
+        for (int i = 0; i < function.params.size(); i++) {
+            declareFixed(functionLocals[i]);
+        }
+        if (function.thisSlot >= 0) {
+            declareFixed(functionLocals[function.thisSlot]);
+        }
+    }
+
+    /**
+     * Generates the class file, throwing {@link Bailout} if the function uses
+     * something the compiler does not handle.
+     */
+    byte[] compile(String className) {
+        new Analyzer().analyze();
+        inferKinds();
+        nextLocal = FIRST_LOCAL;
+        List<Local> all = new ArrayList<>(List.of(functionLocals));
+        for (Local[] locals : blockLocals.values()) {
+            all.addAll(List.of(locals));
+        }
+        for (Local local : all) {
+            local.index = nextLocal;
+            nextLocal += local.isDouble ? 2 : 1;
+        }
+        return CLASS_FILE.build(ClassDesc.of(className), classBuilder -> classBuilder
+                .withFlags(ClassFile.ACC_PUBLIC | ClassFile.ACC_FINAL | ClassFile.ACC_SUPER)
+                .withSuperclass(CD_Object)
+                .withInterfaceSymbols(CD_COMPILED_CODE)
+                .withMethodBody(ConstantDescs.INIT_NAME, ConstantDescs.MTD_void, ClassFile.ACC_PUBLIC, init -> init
+                        .aload(0)
+                        .invokespecial(CD_Object, ConstantDescs.INIT_NAME, ConstantDescs.MTD_void)
+                        .return_())
+                .withMethodBody("execute", MethodTypeDesc.of(CD_Object, CD_INTERPRETER, CD_ENVIRONMENT),
+                        ClassFile.ACC_PUBLIC, this::body));
+    }
+
+    /** The objects the generated class loads as constants, in index order. */
+    List<Object> classData() {
+        return classData;
+    }
+
+    private void body(CodeBuilder code) {
+        this.code = code;
+        scopes.add(functionLocals);
+        for (int i = 0; i < functionLocals.length; i++) {
+            Local local = functionLocals[i];
+            if (i < function.params.size() || i == function.thisSlot) {
+                code.aload(FRAME);
+                code.iconst_0();
+                code.loadConstant(i);
+                code.invokevirtual(CD_ENVIRONMENT, "getAt", MethodTypeDesc.of(CD_Object, CD_int, CD_int));
+                code.astore(local.index);
+            } else {
+                initialize(local);
+            }
+        }
+        for (Stmt statement : function.body) {
+            statement.accept(this);
+        }
+        code.aconst_null();
+        code.areturn();
+    }
+
+    private static Local[] newLocals(int size) {
+        Local[] locals = new Local[size];
+        for (int i = 0; i < size; i++) {
+            locals[i] = new Local();
+        }
+        return locals;
+    }
+
+    private static void declareFixed(Local local) {
+        local.isDouble = false;
+        local.declared = true;
+    }
+
+    /**
+     * Keeps a local unboxed only if every value assigned to it is a number,
+     * repeating until no more locals drop out, since an assignment from
+     * another local is only a number while that local stays one.
+     */
+    private void inferKinds() {
+        List<Local> candidates = new ArrayList<>();
+        for (Local local : functionLocals) {
+            if (local.isDouble) candidates.add(local);
+        }
+        for (Local[] locals : blockLocals.values()) {
+            for (Local local : locals) {
+                if (local.isDouble) candidates.add(local);
+            }
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Local local : candidates) {
+                if (!local.isDouble) continue;
+                for (Expr value : local.values) {
+                    if (kindOf(value) != Kind.DOUBLE) {
+                        local.isDouble = false;
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /** The kind of value the code generated for an expression leaves on the stack. */
+    private Kind kindOf(Expr expr) {
+        if (expr instanceof Expr.LiteralExpr literal) {
+            if (literal.value instanceof Double) return Kind.DOUBLE;
+            if (literal.value instanceof Boolean) return Kind.BOOLEAN;
+            return Kind.OBJECT;
+        }
+        if (expr instanceof Expr.GroupingExpr grouping) {
+            return kindOf(grouping.expression);
+        }
+        if (expr instanceof Expr.BinaryExpr binary) {
+            return switch (binary.operator.type()) {
+                case PLUS -> kindOf(binary.left) == Kind.DOUBLE && kindOf(binary.right) == Kind.DOUBLE
+                        ? Kind.DOUBLE : Kind.OBJECT;
+                case MINUS, STAR, SLASH, STAR_STAR -> Kind.DOUBLE;
+                case GREATER, GREATER_EQUAL, LESS, LESS_EQUAL, EQUAL_EQUAL, BANG_EQUAL -> Kind.BOOLEAN;
+                default -> Kind.OBJECT;
+            };
+        }
+        if (expr instanceof Expr.UnaryExpr unary) {
+            return switch (unary.operator.type()) {
+                case MINUS -> Kind.DOUBLE;
+                case BANG -> Kind.BOOLEAN;
+                default -> Kind.OBJECT;
+            };
+        }
+        if (expr instanceof Expr.VarExpr || expr instanceof Expr.AssignExpr) {
+            Local local = resolved.get(expr);
+            return local != null && local.isDouble ? Kind.DOUBLE : Kind.OBJECT;
+        }
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Kind visitBinaryExpr(Expr.BinaryExpr expr) {
+        Token operator = expr.operator;
+        switch (operator.type()) {
+            case PLUS -> {
+                if (kindOf(expr) == Kind.DOUBLE) {
+                    emit(expr.left);
+                    emit(expr.right);
+                    code.dadd();
+                    return Kind.DOUBLE;
+                }
+                box(emit(expr.left));
+                box(emit(expr.right));
+                constant(operator, CD_TOKEN);
+                code.invokestatic(CD_RUNTIME, "add", MethodTypeDesc.of(CD_Object, CD_Object, CD_Object, CD_TOKEN));
+                return Kind.OBJECT;
+            }
+            case MINUS -> {
+                numberOperands(expr);
+                code.dsub();
+                return Kind.DOUBLE;
+            }
+            case STAR -> {
+                numberOperands(expr);
+                code.dmul();
+                return Kind.DOUBLE;
+            }
+            case SLASH -> {
+                numberOperands(expr);
+                constant(operator, CD_TOKEN);
+                code.invokestatic(CD_RUNTIME, "divide", MethodTypeDesc.of(CD_double, CD_double, CD_double, CD_TOKEN));
+                return Kind.DOUBLE;
+            }
+            case STAR_STAR -> {
+                numberOperands(expr);
+                code.invokestatic(CD_MATH, "pow", MethodTypeDesc.of(CD_double, CD_double, CD_double));
+                return Kind.DOUBLE;
+            }
+            case GREATER, GREATER_EQUAL, LESS, LESS_EQUAL, EQUAL_EQUAL, BANG_EQUAL -> {
+                return condition(expr);
+            }
+            default -> {
+                pop(emit(expr.left));
+                pop(emit(expr.right));
+                code.aconst_null();
+                return Kind.OBJECT;
+            }
+        }
+    }
+
+    /**
+     * Evaluates both operands and leaves them as two doubles. Operands not
+     * statically known to be numbers are checked only once both have been
+     * evaluated, as the interpreter does.
+     */
+    private void numberOperands(Expr.BinaryExpr expr) {
+        Kind left = asObjectUnlessDouble(emit(expr.left));
+        Kind right = asObjectUnlessDouble(emit(expr.right));
+        if (left == Kind.DOUBLE && right == Kind.DOUBLE) return;
+        if (left == Kind.DOUBLE) {
+            number(expr.operator);
+            return;
+        }
+        int temp = nextLocal;
+        nextLocal += right == Kind.DOUBLE ? 2 : 1;
+        if (right == Kind.DOUBLE) {
+            code.dstore(temp);
+            number(expr.operator);
+            code.dload(temp);
+        } else {
+            code.astore(temp);
+            number(expr.operator);
+            code.aload(temp);
+            number(expr.operator);
+        }
+    }
+
+    private Kind asObjectUnlessDouble(Kind kind) {
+        if (kind == Kind.DOUBLE) return kind;
+        box(kind);
+        return Kind.OBJECT;
+    }
+
+    private void number(Token operator) {
+        constant(operator, CD_TOKEN);
+        code.invokestatic(CD_RUNTIME, "number", MethodTypeDesc.of(CD_double, CD_Object, CD_TOKEN));
+    }
+
+    @Override
+    public Kind visitUnaryExpr(Expr.UnaryExpr expr) {
+        switch (expr.operator.type()) {
+            case MINUS -> {
+                Kind kind = emit(expr.right);
+                if (kind == Kind.DOUBLE) {
+                    code.dneg();
+                } else {
+                    box(kind);
+                    constant(expr.operator, CD_TOKEN);
+                    code.invokestatic(CD_RUNTIME, "negate", MethodTypeDesc.of(CD_double, CD_Object, CD_TOKEN));
+                }
+                return Kind.DOUBLE;
+            }
+            case BANG -> {
+                return condition(expr);
+            }
+            default -> {
+                pop(emit(expr.right));
+                code.aconst_null();
+                return Kind.OBJECT;
+            }
+        }
+    }
+
+    /** Evaluates a boolean-valued expression to 0 or 1 by way of {@link #branch}. */
+    private Kind condition(Expr expr) {
+        Label isFalse = code.newLabel();
+        Label end = code.newLabel();
+        branch(expr, false, isFalse);
+        code.iconst_1();
+        code.goto_(end);
+        code.labelBinding(isFalse);
+        code.iconst_0();
+        code.labelBinding(end);
+        return Kind.BOOLEAN;
+    }
+
+    /**
+     * Jumps to {@code target} if the expression's truthiness equals
+     * {@code when}. Comparisons, {@code !}, {@code and} and {@code or} turn
+     * into jumps without materializing a boolean.
+     */
+    private void branch(Expr expr, boolean when, Label target) {
+        if (expr instanceof Expr.GroupingExpr grouping) {
+            branch(grouping.expression, when, target);
+            return;
+        }
+        if (expr instanceof Expr.UnaryExpr unary && unary.operator.type() == TokenType.BANG) {
+            branch(unary.right, !when, target);
+            return;
+        }
+        if (expr instanceof Expr.Logical logical) {
+            boolean isOr = logical.operator.type() == TokenType.OR;
+            if (isOr == when) {
+                branch(logical.left, when, target);
+                branch(logical.right, when, target);
+            } else {
+                Label decided = code.newLabel();
+                branch(logical.left, !when, decided);
+                branch(logical.right, when, target);
+                code.labelBinding(decided);
+            }
+            return;
+        }
+        if (expr instanceof Expr.BinaryExpr binary) {
+            switch (binary.operator.type()) {
+                case GREATER, GREATER_EQUAL, LESS, LESS_EQUAL -> {
+                    numberOperands(binary);
+                    compare(binary.operator.type(), when, target);
+                    return;
+                }
+                case EQUAL_EQUAL, BANG_EQUAL -> {
+                    boolean jumpIfEqual = (binary.operator.type() == TokenType.EQUAL_EQUAL) == when;
+                    if (kindOf(binary.left) == Kind.DOUBLE && kindOf(binary.right) == Kind.DOUBLE) {
+                        // Double.compare agrees with Double.equals on NaN and -0.
+                        emit(binary.left);
+                        emit(binary.right);
+                        code.invokestatic(CD_Double, "compare", MethodTypeDesc.of(CD_int, CD_double, CD_double));
+                        code.branch(jumpIfEqual ? Opcode.IFEQ : Opcode.IFNE, target);
+                    } else {
+                        box(emit(binary.left));
+                        box(emit(binary.right));
+                        code.invokestatic(CD_VALUES, "isEqual", MethodTypeDesc.of(CD_boolean, CD_Object, CD_Object));
+                        code.branch(jumpIfEqual ? Opcode.IFNE : Opcode.IFEQ, target);
+                    }
+                    return;
+                }
+                default -> {
+                }
+            }
+        }
+        truth(emit(expr));
+        code.branch(when ? Opcode.IFNE : Opcode.IFEQ, target);
+    }
+
+    /**
+     * Compares the two doubles on the stack. As in Java, NaN makes every
+     * comparison false: {@code dcmpl} pushes -1 for it ahead of a greater-than
+     * test and {@code dcmpg} pushes 1 ahead of a less-than test.
+     */
+    private void compare(TokenType type, boolean when, Label target) {
+        switch (type) {
+            case GREATER -> {
+                code.dcmpl();
+                code.branch(when ? Opcode.IFGT : Opcode.IFLE, target);
+            }
+            case GREATER_EQUAL -> {
+                code.dcmpl();
+                code.branch(when ? Opcode.IFGE : Opcode.IFLT, target);
+            }
+            case LESS -> {
+                code.dcmpg();
+                code.branch(when ? Opcode.IFLT : Opcode.IFGE, target);
+            }
+            case LESS_EQUAL -> {
+                code.dcmpg();
+                code.branch(when ? Opcode.IFLE : Opcode.IFGT, target);
+            }
+            default -> throw new IllegalArgumentException(type.toString());
+        }
+    }
+
+    /** Turns the value on the stack into 0 or 1 by {@link Values#isTruthy}. */
+    private void truth(Kind kind) {
+        switch (kind) {
+            case BOOLEAN -> {
+            }
+            case DOUBLE -> {
+                code.pop2();
+                code.iconst_1();
+            }
+            case OBJECT -> code.invokestatic(CD_VALUES, "isTruthy", MethodTypeDesc.of(CD_boolean, CD_Object));
+        }
+    }
+
+    @Override
+    public Kind visitVarExpr(Expr.VarExpr expr) {
+        return load(expr, expr.name);
+    }
+
+    @Override
+    public Kind visitThisExpr(Expr.ThisExpr thisExpr) {
+        return load(thisExpr, thisExpr.keyword);
+    }
+
+    private Kind load(Expr.Resolvable expr, Token name) {
+        Local local = resolved.get(expr);
+        if (local != null) {
+            if (local.isDouble) {
+                code.dload(local.index);
+                return Kind.DOUBLE;
+            }
+            code.aload(local.index);
+            return Kind.OBJECT;
+        }
+        if (expr.isLocal()) {
+            code.aload(FRAME);
+            code.loadConstant(frameDistance(expr));
+            code.loadConstant(expr.slot);
+            code.invokevirtual(CD_ENVIRONMENT, expr.isBoxed ? "getBoxedAt" : "getAt",
+                    MethodTypeDesc.of(CD_Object, CD_int, CD_int));
+            return Kind.OBJECT;
+        }
+        constant(globals.global(expr, name), CD_GLOBAL);
+        constant(name, CD_TOKEN);
+        code.invokevirtual(CD_GLOBAL, "get", MethodTypeDesc.of(CD_Object, CD_TOKEN));
+        return Kind.OBJECT;
+    }
+
+    /** Distance from the function's own frame to the frame a captured variable lives in. */
+    private int frameDistance(Expr.Resolvable expr) {
+        return expr.depth - (scopes.size() - 1);
+    }
+
+    @Override
+    public Kind visitAssignExpr(Expr.AssignExpr expr) {
+        Local local = resolved.get(expr);
+        if (local != null) {
+            Kind kind = emit(expr.value);
+            if (local.isDouble) {
+                code.dup2();
+                code.dstore(local.index);
+                return Kind.DOUBLE;
+            }
+            box(kind);
+            code.dup();
+            code.astore(local.index);
+            return Kind.OBJECT;
+        }
+        if (expr.isLocal()) {
+            code.aload(FRAME);
+            code.loadConstant(frameDistance(expr));
+            code.loadConstant(expr.slot);
+            box(emit(expr.value));
+            code.invokestatic(CD_RUNTIME, expr.isBoxed ? "assignBoxedAt" : "assignAt",
+                    MethodTypeDesc.of(CD_Object, CD_ENVIRONMENT, CD_int, CD_int, CD_Object));
+            return Kind.OBJECT;
+        }
+        constant(globals.global(expr, expr.name), CD_GLOBAL);
+        constant(expr.name, CD_TOKEN);
+        box(emit(expr.value));
+        code.invokestatic(CD_RUNTIME, "assignGlobal", MethodTypeDesc.of(CD_Object, CD_GLOBAL, CD_TOKEN, CD_Object));
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Kind visitCallExpr(Expr.CallExpr expr) {
+        if (expr.callee instanceof Expr.GetExpr get) {
+            // Look the method up before evaluating the arguments, as the
+            // interpreter does, and invoke it without binding it.
+            int object = nextLocal++;
+            int method = nextLocal++;
+            int callee = nextLocal++;
+            box(emit(get.object));
+            code.astore(object);
+            code.aload(object);
+            constant(propertyCaches.get(get), CD_PROPERTY_CACHE);
+            code.invokestatic(CD_RUNTIME, "method", MethodTypeDesc.of(CD_FUNCTION, CD_Object, CD_PROPERTY_CACHE));
+            code.astore(method);
+            code.aconst_null();
+            code.astore(callee);
+            Label found = code.newLabel();
+            code.aload(method);
+            code.branch(Opcode.IFNONNULL, found);
+            code.aload(object);
+            constant(propertyCaches.get(get), CD_PROPERTY_CACHE);
+            constant(get.name, CD_TOKEN);
+            code.invokestatic(CD_RUNTIME, "getProperty",
+                    MethodTypeDesc.of(CD_Object, CD_Object, CD_PROPERTY_CACHE, CD_TOKEN));
+            code.astore(callee);
+            code.labelBinding(found);
+            code.aload(INTERPRETER);
+            code.aload(method);
+            code.aload(object);
+            code.aload(callee);
+            arguments(expr.arguments);
+            constant(expr.paren, CD_TOKEN);
+            code.invokestatic(CD_RUNTIME, expr.isTailCall ? "tailInvokeMethod" : "invokeMethod",
+                    MethodTypeDesc.of(CD_Object, CD_INTERPRETER, CD_FUNCTION,
+                    CD_Object, CD_Object, CD_OBJECT_ARRAY, CD_TOKEN));
+            return Kind.OBJECT;
+        }
+        code.aload(INTERPRETER);
+        box(emit(expr.callee));
+        if (!expr.isTailCall && expr.arguments.size() <= MAX_FIXED_ARITY) {
+            // Pass the arguments one by one, so that no array is built for them.
+            List<ClassDesc> parameters = new ArrayList<>(List.of(CD_INTERPRETER, CD_Object));
+            for (Expr argument : expr.arguments) {
+                box(emit(argument));
+                parameters.add(CD_Object);
+            }
+            parameters.add(CD_TOKEN);
+            constant(expr.paren, CD_TOKEN);
+            code.invokestatic(CD_RUNTIME, "call", MethodTypeDesc.of(CD_Object, parameters));
+            return Kind.OBJECT;
+        }
+        arguments(expr.arguments);
+        constant(expr.paren, CD_TOKEN);
+        code.invokestatic(CD_RUNTIME, expr.isTailCall ? "tailCall" : "call",
+                MethodTypeDesc.of(CD_Object, CD_INTERPRETER, CD_Object, CD_OBJECT_ARRAY, CD_TOKEN));
+        return Kind.OBJECT;
+    }
+
+    private void arguments(List<Expr> arguments) {
+        code.loadConstant(arguments.size());
+        code.anewarray(CD_Object);
+        for (int i = 0; i < arguments.size(); i++) {
+            code.dup();
+            code.loadConstant(i);
+            box(emit(arguments.get(i)));
+            code.aastore();
+        }
+    }
+
+    @Override
+    public Kind visitGroupingExpr(Expr.GroupingExpr expr) {
+        return emit(expr.expression);
+    }
+
+    @Override
+    public Kind visitFunctionExpr(Expr.Function expr) {
+        throw new IllegalStateException("Anonymous functions are not compiled.");
+    }
+
+    @Override
+    public Kind visitLiteralExpr(Expr.LiteralExpr expr) {
+        Object value = expr.value;
+        if (value == null) {
+            code.aconst_null();
+            return Kind.OBJECT;
+        }
+        if (value instanceof Double number) {
+            code.loadConstant(number);
+            return Kind.DOUBLE;
+        }
+        if (value instanceof Boolean bool) {
+            code.loadConstant(bool ? 1 : 0);
+            return Kind.BOOLEAN;
+        }
+        if (value instanceof String string) {
+            code.loadConstant(string);
+            return Kind.OBJECT;
+        }
+        constant(value, CD_Object);
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Kind visitLogicalExpr(Expr.Logical logical) {
+        Label end = code.newLabel();
+        box(emit(logical.left));
+        code.dup();
+        code.invokestatic(CD_VALUES, "isTruthy", MethodTypeDesc.of(CD_boolean, CD_Object));
+        code.branch(logical.operator.type() == TokenType.OR ? Opcode.IFNE : Opcode.IFEQ, end);
+        code.pop();
+        box(emit(logical.right));
+        code.labelBinding(end);
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Kind visitGetExpr(Expr.GetExpr expr) {
+        box(emit(expr.object));
+        constant(propertyCaches.get(expr), CD_PROPERTY_CACHE);
+        constant(expr.name, CD_TOKEN);
+        code.invokestatic(CD_RUNTIME, "getProperty", MethodTypeDesc.of(CD_Object, CD_Object, CD_PROPERTY_CACHE, CD_TOKEN));
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Kind visitSetExpr(Expr.SetExpr setExpr) {
+        box(emit(setExpr.object));
+        constant(setExpr.name, CD_TOKEN);
+        code.invokestatic(CD_RUNTIME, "instance", MethodTypeDesc.of(CD_INSTANCE, CD_Object, CD_TOKEN));
+        box(emit(setExpr.value));
+        constant(propertyCaches.set(setExpr), CD_PROPERTY_CACHE);
+        code.invokestatic(CD_RUNTIME, "setProperty",
+                MethodTypeDesc.of(CD_Object, CD_INSTANCE, CD_Object, CD_PROPERTY_CACHE));
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Kind visitSuperExpr(Expr.Super superExpr) {
+        throw new IllegalStateException("'super' is not compiled.");
+    }
+
+    /** Makes the call; the callee is compiled on its own once it is hot. */
+    @Override
+    public Kind visitInlineExpr(Expr.Inline expr) {
+        return visitCallExpr(expr.call);
+    }
+
+    @Override
+    public Void visitLetStmt(Stmt.Let stmt) {
+        Local local = scopes.get(scopes.size() - 1)[stmt.slot];
+        if (stmt.initializer == null) {
+            code.aconst_null();
+            code.astore(local.index);
+        } else {
+            store(local, emit(stmt.initializer));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        pop(emit(stmt.expression));
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        Label otherwise = code.newLabel();
+        branch(stmt.condition, false, otherwise);
+        stmt.thenBranch.accept(this);
+        if (stmt.elseBranch == null) {
+            code.labelBinding(otherwise);
+            return null;
+        }
+        Label end = code.newLabel();
+        code.goto_(end);
+        code.labelBinding(otherwise);
+        stmt.elseBranch.accept(this);
+        code.labelBinding(end);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        Label loop = code.newLabel();
+        Label exit = code.newLabel();
+        code.labelBinding(loop);
+        branch(stmt.condition, false, exit);
+        stmt.body.accept(this);
+        code.goto_(loop);
+        code.labelBinding(exit);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (isInitializer) {
+            if (stmt.value != null) {
+                pop(emit(stmt.value));
+            }
+            code.aload(functionLocals[function.thisSlot].index);
+        } else if (stmt.value != null) {
+            box(emit(stmt.value));
+        } else {
+            code.aconst_null();
+        }
+        code.areturn();
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if (!stmt.hasFrame()) {
+            for (Stmt statement : stmt.statements) {
+                statement.accept(this);
+            }
+            return null;
+        }
+        Local[] locals = blockLocals.get(stmt);
+        for (Local local : locals) {
+            initialize(local);
+        }
+        scopes.add(locals);
+        for (Stmt statement : stmt.statements) {
+            statement.accept(this);
+        }
+        scopes.remove(scopes.size() - 1);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        throw new IllegalStateException("Class declarations are not compiled.");
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        throw new IllegalStateException("Nested functions are not compiled.");
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        box(emit(stmt.expression));
+        code.invokestatic(CD_VALUES, "stringify", MethodTypeDesc.of(CD_String, CD_Object));
+        code.getstatic(CD_SYSTEM, "out", CD_PRINT_STREAM);
+        code.swap();
+        code.invokevirtual(CD_PRINT_STREAM, "println", MethodTypeDesc.of(ConstantDescs.CD_void, CD_String));
+        return null;
+    }
+
+    private Kind emit(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private void initialize(Local local) {
+        if (local.isDouble) {
+            code.dconst_0();
+            code.dstore(local.index);
+        } else {
+            code.aconst_null();
+            code.astore(local.index);
+        }
+    }
+
+    private void store(Local local, Kind kind) {
+        if (local.isDouble) {
+            code.dstore(local.index);
+        } else {
+            box(kind);
+            code.astore(local.index);
+        }
+    }
+
+    private void box(Kind kind) {
+        switch (kind) {
+            case DOUBLE -> code.invokestatic(CD_Double, "valueOf", MethodTypeDesc.of(CD_Double, CD_double));
+            case BOOLEAN -> code.invokestatic(CD_Boolean, "valueOf", MethodTypeDesc.of(CD_Boolean, CD_boolean));
+            case OBJECT -> {
+            }
+        }
+    }
+
+    private void pop(Kind kind) {
+        if (kind == Kind.DOUBLE) {
+            code.pop2();
+        } else {
+            code.pop();
+        }
+    }
+
+    private void constant(Object value, ClassDesc type) {
+        int index = constants.computeIfAbsent(value, key -> {
+            classData.add(key);
+            return classData.size() - 1;
+        });
+        code.ldc(DynamicConstantDesc.ofNamed(ConstantDescs.BSM_CLASS_DATA_AT, ConstantDescs.DEFAULT_NAME, type, index));
+    }
+
+    private static ClassDesc desc(Class<?> type) {
+        return type.describeConstable().orElseThrow();
+    }
+
+    /**
+     * Maps every variable the function declares to a {@link Local}, records
+     * what is assigned to it and rejects what the compiler does not handle.
+     * Walks scopes exactly as the code generator later does.
+     */
+    private final class Analyzer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+        private final List<Local[]> scopes = new ArrayList<>();
+
+        void analyze() {
+            scopes.add(functionLocals);
+            for (Stmt statement : function.body) {
+                statement.accept(this);
+            }
+        }
+
+        private Local resolve(Expr.Resolvable expr) {
+            if (!expr.isLocal() || expr.depth >= scopes.size()) {
+                return null;
+            }
+            Local local = scopes.get(scopes.size() - 1 - expr.depth)[expr.slot];
+            resolved.put(expr, local);
+            // Read in its own initializer: the interpreter sees nil there.
+            if (!local.declared) {
+                local.isDouble = false;
+            }
+            return local;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.BinaryExpr expr) {
+            expr.left.accept(this);
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.UnaryExpr expr) {
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitVarExpr(Expr.VarExpr expr) {
+            resolve(expr);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.AssignExpr expr) {
+            expr.value.accept(this);
+            Local local = resolve(expr);
+            if (local != null) {
+                local.values.add(expr.value);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.CallExpr expr) {
+            expr.callee.accept(this);
+            for (Expr argument : expr.arguments) {
+                argument.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.GroupingExpr expr) {
+            expr.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionExpr(Expr.Function expr) {
+            throw new Bailout("creates an anonymous function");
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.LiteralExpr expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical logical) {
+            logical.left.accept(this);
+            logical.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.GetExpr getExpr) {
+            getExpr.object.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.SetExpr setExpr) {
+            setExpr.object.accept(this);
+            setExpr.value.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.ThisExpr thisExpr) {
+            resolve(thisExpr);
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super superExpr) {
+            throw new Bailout("uses 'super'");
+        }
+
+        @Override
+        public Void visitInlineExpr(Expr.Inline expr) {
+            return visitCallExpr(expr.call);
+        }
+
+        @Override
+        public Void visitLetStmt(Stmt.Let stmt) {
+            Local local = scopes.get(scopes.size() - 1)[stmt.slot];
+            if (stmt.initializer == null) {
+                local.isDouble = false;
+            } else {
+                stmt.initializer.accept(this);
+                local.values.add(stmt.initializer);
+            }
+            local.declared = true;
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            stmt.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            stmt.condition.accept(this);
+            stmt.thenBranch.accept(this);
+            if (stmt.elseBranch != null) {
+                stmt.elseBranch.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            stmt.condition.accept(this);
+            stmt.body.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            if (stmt.value != null) {
+                stmt.value.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            if (!stmt.hasFrame()) {
+                for (Stmt statement : stmt.statements) {
+                    statement.accept(this);
+                }
+                return null;
+            }
+            Local[] locals = newLocals(stmt.slotCount);
+            blockLocals.put(stmt, locals);
+            scopes.add(locals);
+            for (Stmt statement : stmt.statements) {
+                statement.accept(this);
+            }
+            scopes.remove(scopes.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            throw new Bailout("declares a class");
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            throw new Bailout("declares a function");
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            stmt.expression.accept(this);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.tinylang.jit;
+
+import com.tinylang.Environment;
+import com.tinylang.PropertyCache;
+import com.tinylang.ast.Stmt;
+
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Second tier of the tree-walking interpreter. A function called
+ * {@link #threshold()} times is compiled to a JVM class by
+ * {@link FunctionCompiler} and loaded as a hidden class, after which its calls
+ * run the bytecode and HotSpot optimizes it like any Java method. Functions
+ * below the threshold, and those the compiler turns down, stay interpreted.
+ */
+public final class Jit {
+
+    public static final int DEFAULT_THRESHOLD = 1000;
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private final int threshold;
+    private final List<String> compiled = new ArrayList<>();
+    private final List<String> rejected = new ArrayList<>();
+
+    public Jit(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /** Number of interpreted calls after which a function is compiled. */
+    public int threshold() {
+        return threshold;
+    }
+
+    /**
+     * Compiles a function's body, linking the globals it uses to their cells
+     * in {@code globals} and its property sites to their caches, or returns
+     * null if it has to stay interpreted.
+     */
+    public CompiledCode compile(Stmt.Function function, boolean isInitializer, Environment globals,
+                                PropertyCache.Sites propertyCaches) {
+        String name = function.name.replaceAll("[^A-Za-z0-9_]", "_");
+        try {
+            FunctionCompiler compiler = new FunctionCompiler(function, isInitializer, globals, propertyCaches);
+            byte[] bytes = compiler.compile(Jit.class.getPackageName() + ".Compiled$" + name);
+            MethodHandles.Lookup lookup = LOOKUP.defineHiddenClassWithClassData(bytes, compiler.classData(), true);
+            CompiledCode code = (CompiledCode) lookup
+                    .findConstructor(lookup.lookupClass(), MethodType.methodType(void.class))
+                    .invoke();
+            compiled.add(function.name);
+            return code;
+        } catch (FunctionCompiler.Bailout e) {
+            rejected.add(function.name + ": " + e.getMessage());
+        } catch (Throwable e) {
+            // A method too large for the class file format, or a bug in the
+            // compiler the verifier caught; the interpreter still runs it.
+            rejected.add(function.name + ": " + e);
+        }
+        return null;
+    }
+
+    /** Prints which functions were compiled and why the others were not. */
+    public void printStats(PrintStream out) {
+        for (String name : compiled) {
+            out.printf("jit: compiled %s%n", name);
+        }
+        for (String reason : rejected) {
+            out.printf("jit: interpreting %s%n", reason);
+        }
+        out.printf("jit: %d function(s) compiled, %d rejected, threshold %d call(s)%n",
+                compiled.size(), rejected.size(), threshold);
+    }
+}
@@ -0,0 +1,206 @@
+package com.tinylang.jit;
+
+import com.tinylang.Environment;
+import com.tinylang.Global;
+import com.tinylang.Interpreter;
+import com.tinylang.PropertyCache;
+import com.tinylang.TinyLangCallable;
+import com.tinylang.TinyLangClass;
+import com.tinylang.TinyLangFunction;
+import com.tinylang.TinyLangInstance;
+import com.tinylang.error.RuntimeError;
+import com.tinylang.token.Token;
+
+
+/**
+ * Operations compiled code calls into instead of spelling them out in
+ * bytecode. They behave exactly like the corresponding parts of
+ * {@link Interpreter}, errors included.
+ */
+final class JitRuntime {
+
+    private JitRuntime() {
+    }
+
+    static double number(Object value, Token operator) {
+        if (value instanceof Double number) {
+            return number;
+        }
+        throw new RuntimeError(operator, "Operands of '" + operator + "' must be numbers.");
+    }
+
+    static double negate(Object value, Token operator) {
+        if (value instanceof Double number) {
+            return -number;
+        }
+        throw new RuntimeError(operator, "Operand of '" + operator + "' must be a number.");
+    }
+
+    static Object add(Object left, Object right, Token operator) {
+        if (left instanceof String || right instanceof String) {
+            return String.valueOf(left) + String.valueOf(right);
+        }
+        return number(left, operator) + number(right, operator);
+    }
+
+    static double divide(double left, double right, Token operator) {
+        if (right == 0) {
+            throw new RuntimeError(operator, "Division by zero.");
+        }
+        return left / right;
+    }
+
+    static Object assignGlobal(Global global, Token name, Object value) {
+        global.assign(name, value);
+        return value;
+    }
+
+    static Object assignAt(Environment frame, int distance, int slot, Object value) {
+        frame.assignAt(distance, slot, value);
+        return value;
+    }
+
+    static Object assignBoxedAt(Environment frame, int distance, int slot, Object value) {
+        frame.assignBoxedAt(distance, slot, value);
+        return value;
+    }
+
+    static Object getProperty(Object object, PropertyCache cache, Token name) {
+        if (object instanceof TinyLangInstance instance) {
+            return cache.get(instance);
+        }
+        if (object instanceof TinyLangClass klass) {
+            return klass.findMethod(name.lexeme());
+        }
+        throw new RuntimeError(name, "Only instances have properties.");
+    }
+
+    static TinyLangInstance instance(Object object, Token name) {
+        if (object instanceof TinyLangInstance instance) {
+            return instance;
+        }
+        throw new RuntimeError(name, "Only instances have fields.");
+    }
+
+    static Object setProperty(TinyLangInstance instance, Object value, PropertyCache cache) {
+        cache.set(instance, value);
+        return value;
+    }
+
+    /** The method a call site on {@code object} invokes directly, or null if it has to go through {@link #getProperty}. */
+    static TinyLangFunction method(Object object, PropertyCache cache) {
+        if (object instanceof TinyLangInstance instance) {
+            return cache.method(instance);
+        }
+        return null;
+    }
+
+    static Object invokeMethod(Interpreter interpreter, TinyLangFunction method, Object object, Object callee,
+                               Object[] arguments, Token paren) {
+        if (method != null) {
+            return invoke(interpreter, method, (TinyLangInstance) object, arguments, paren, false);
+        }
+        return call(interpreter, callee, arguments, paren, false);
+    }
+
+    /** {@link #invokeMethod} for a call in tail position. */
+    static Object tailInvokeMethod(Interpreter interpreter, TinyLangFunction method, Object object, Object callee,
+                                   Object[] arguments, Token paren) {
+        if (method != null) {
+            return invoke(interpreter, method, (TinyLangInstance) object, arguments, paren, true);
+        }
+        return call(interpreter, callee, arguments, paren, true);
+    }
+
+    static Object call(Interpreter interpreter, Object callee, Object[] arguments, Token paren) {
+        return call(interpreter, callee, arguments, paren, false);
+    }
+
+    /**
+     * {@link #call} for up to four arguments passed one by one, which go
+     * straight to the callee's entry point for that many. Anything else,
+     * errors included, takes the array path.
+     */
+    static Object call(Interpreter interpreter, Object callee, Token paren) {
+        if (callee instanceof TinyLangCallable function && function.arity() == 0) {
+            return function.call(interpreter);
+        }
+        return call(interpreter, callee, new Object[0], paren, false);
+    }
+
+    static Object call(Interpreter interpreter, Object callee, Object a, Token paren) {
+        if (callee instanceof TinyLangCallable function && function.arity() == 1) {
+            return function.call(interpreter, a);
+        }
+        return call(interpreter, callee, new Object[] {a}, paren, false);
+    }
+
+    static Object call(Interpreter interpreter, Object callee, Object a, Object b, Token paren) {
+        if (callee instanceof TinyLangCallable function && function.arity() == 2) {
+            return function.call(interpreter, a, b);
+        }
+        return call(interpreter, callee, new Object[] {a, b}, paren, false);
+    }
+
+    static Object call(Interpreter interpreter, Object callee, Object a, Object b, Object c, Token paren) {
+        if (callee instanceof TinyLangCallable function && function.arity() == 3) {
+            return function.call(interpreter, a, b, c);
+        }
+        return call(interpreter, callee, new Object[] {a, b, c}, paren, false);
+    }
+
+    static Object call(Interpreter interpreter, Object callee, Object a, Object b, Object c, Object d, Token paren) {
+        if (callee instanceof TinyLangCallable function && function.arity() == 4) {
+            return function.call(interpreter, a, b, c, d);
+        }
+        return call(interpreter, callee, new Object[] {a, b, c, d}, paren, false);
+    }
+
+    /**
+     * {@link #call} for a call in tail position. A TinyLang function is left
+     * to the trampoline of the function being compiled, which returns right
+     * after this; anything else is called as usual.
+     */
+    static Object tailCall(Interpreter interpreter, Object callee, Object[] arguments, Token paren) {
+        return call(interpreter, callee, arguments, paren, true);
+    }
+
+    private static Object call(Interpreter interpreter, Object callee, Object[] arguments, Token paren, boolean tail) {
+        if (callee instanceof TinyLangFunction function) {
+            return invoke(interpreter, function, function.receiver(), arguments, paren, tail);
+        }
+        if (callee instanceof TinyLangClass klass) {
+            TinyLangInstance instance = new TinyLangInstance(klass);
+            TinyLangFunction initializer = klass.initializer();
+            if (initializer != null) {
+                invoke(interpreter, initializer, instance, arguments, paren, false);
+            } else if (arguments.length != 0) {
+                throw new RuntimeError(paren, "Expected 0 arguments but got " + arguments.length + ".");
+            }
+            return instance;
+        }
+        if (!(callee instanceof TinyLangCallable function)) {
+            throw new RuntimeError(paren, "Can only call functions and classes.");
+        }
+        if (arguments.length != function.arity()) {
+            throw new RuntimeError(paren, "Expected " + function.arity() + " arguments but got " + arguments.length + ".");
+        }
+        return function.call(interpreter, arguments);
+    }
+
+    private static Object invoke(Interpreter interpreter, TinyLangFunction function, TinyLangInstance receiver,
+                                 Object[] arguments, Token paren, boolean tail) {
+        if (arguments.length != function.arity()) {
+            throw new RuntimeError(paren, "Expected " + function.arity() + " arguments but got " + arguments.length + ".");
+        }
+        Environment frame = function.newFrame(receiver);
+        for (int i = 0; i < arguments.length; i++) {
+            frame.define(i, arguments[i]);
+        }
+        if (tail) {
+            interpreter.tailCall(function, frame);
+            return null;
+        }
+        return function.execute(interpreter, frame);
+    }
+}
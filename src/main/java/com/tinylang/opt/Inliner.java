@@ -0,0 +1,202 @@
+package com.tinylang.opt;
+
+import com.tinylang.ast.Expr;
+import com.tinylang.ast.Stmt;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replaces calls to small global functions with the functions' bodies,
+ * saving the frame each call creates. A function is inlined if the resolver
+ * found that the program never assigns or declares it again, and its body is
+ * a single {@code return} of an expression of at most {@link #MAX_SIZE}
+ * nodes that creates no closure, uses neither {@code this} nor {@code super}
+ * and does not call the function itself. The arguments go into new slots of
+ * the caller's frame, which the inlined body reads in place of the
+ * parameters. Bodies are inlined as they were written, one level deep, and
+ * calls directly at top level have no frame to put the arguments in and are
+ * left alone.
+ * <p>
+ * Every {@link Expr.Inline} checks that the global still holds the function
+ * before it evaluates the body, and makes the call otherwise, so that code
+ * keeps working when the REPL later declares the function again.
+ */
+final class Inliner extends Rewriter {
+
+    private static final int MAX_SIZE = 16;
+
+    private final Map<String, Stmt.Function> functions = new HashMap<>();
+    // The blocks and functions whose frames the statements being rewritten run in.
+    private final Deque<Object> frames = new ArrayDeque<>();
+
+    void inline(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Function function && function.isConstant && isSmall(function)) {
+                functions.put(function.name, function);
+            }
+        }
+        if (!functions.isEmpty()) {
+            rewriteInPlace(statements);
+        }
+    }
+
+    private static boolean isSmall(Stmt.Function function) {
+        if (function.body.size() != 1 || !(function.body.getFirst() instanceof Stmt.Return ret) || ret.value == null) {
+            return false;
+        }
+        int size = size(ret.value, function.name);
+        return size >= 0 && size <= MAX_SIZE;
+    }
+
+    /** The number of nodes of a function's returned expression, or -1 if it cannot be inlined. */
+    private static int size(Expr expr, String function) {
+        List<Expr> children;
+        if (expr instanceof Expr.LiteralExpr || expr instanceof Expr.VarExpr) {
+            return 1;
+        } else if (expr instanceof Expr.AssignExpr assign) {
+            children = List.of(assign.value);
+        } else if (expr instanceof Expr.GroupingExpr grouping) {
+            children = List.of(grouping.expression);
+        } else if (expr instanceof Expr.UnaryExpr unary) {
+            children = List.of(unary.right);
+        } else if (expr instanceof Expr.BinaryExpr binary) {
+            children = List.of(binary.left, binary.right);
+        } else if (expr instanceof Expr.Logical logical) {
+            children = List.of(logical.left, logical.right);
+        } else if (expr instanceof Expr.GetExpr get) {
+            children = List.of(get.object);
+        } else if (expr instanceof Expr.SetExpr set) {
+            children = List.of(set.object, set.value);
+        } else if (expr instanceof Expr.CallExpr call) {
+            if (call.callee instanceof Expr.VarExpr var && !var.isLocal() && var.name.lexeme().equals(function)) {
+                return -1;
+            }
+            children = new ArrayList<>(call.arguments);
+            children.add(call.callee);
+        } else {
+            return -1;
+        }
+        int size = 1;
+        for (Expr child : children) {
+            int childSize = size(child, function);
+            if (childSize < 0) return -1;
+            size += childSize;
+        }
+        return size;
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.CallExpr expr) {
+        Expr result = super.visitCallExpr(expr);
+        if (frames.isEmpty() || !(result instanceof Expr.CallExpr call)
+                || !(call.callee instanceof Expr.VarExpr var) || var.isLocal()) {
+            return result;
+        }
+        Stmt.Function function = functions.get(var.name.lexeme());
+        if (function == null || function.params.size() != call.arguments.size()) {
+            return result;
+        }
+        int[] slots = new int[call.arguments.size()];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = allocateSlot();
+        }
+        Expr value = ((Stmt.Return) function.body.getFirst()).value;
+        return new Expr.Inline(call, function, slots, new Substitution(slots, call.isTailCall).rewrite(value));
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        if (!stmt.hasFrame()) return super.visitBlockStmt(stmt);
+        frames.push(stmt);
+        Stmt result = super.visitBlockStmt(stmt);
+        frames.pop();
+        return result;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        for (Stmt.Function method : stmt.methods) {
+            rewriteFunction(method, method.body);
+        }
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        rewriteFunction(stmt, stmt.body);
+        return stmt;
+    }
+
+    @Override
+    public Expr visitFunctionExpr(Expr.Function expr) {
+        rewriteFunction(expr, expr.body);
+        return expr;
+    }
+
+    private void rewriteFunction(Object declaration, List<Stmt> body) {
+        frames.push(declaration);
+        rewriteInPlace(body);
+        frames.pop();
+    }
+
+    /** Adds a slot to the frame the current statements run in. */
+    private int allocateSlot() {
+        Object frame = frames.peek();
+        if (frame instanceof Stmt.Block block) return block.slotCount++;
+        if (frame instanceof Stmt.Function declaration) return declaration.frameSize++;
+        return ((Expr.Function) frame).frameSize++;
+    }
+
+    /** Copies an inlined body, with the caller's slots in place of the parameters. */
+    private static final class Substitution extends Rewriter {
+        private final int[] slots;
+        private final boolean isTailCall;
+
+        Substitution(int[] slots, boolean isTailCall) {
+            this.slots = slots;
+            this.isTailCall = isTailCall;
+        }
+
+        @Override
+        public Expr visitVarExpr(Expr.VarExpr expr) {
+            if (!expr.isLocal()) return expr;
+            Expr.VarExpr parameter = new Expr.VarExpr(expr.name);
+            parameter.depth = 0;
+            parameter.slot = slots[expr.slot];
+            return parameter;
+        }
+
+        @Override
+        public Expr visitAssignExpr(Expr.AssignExpr expr) {
+            if (!expr.isLocal()) return super.visitAssignExpr(expr);
+            Expr.AssignExpr parameter = new Expr.AssignExpr(expr.name, rewrite(expr.value));
+            parameter.depth = 0;
+            parameter.slot = slots[expr.slot];
+            return parameter;
+        }
+
+        /**
+         * Copies a call with arguments of its own, as later passes rewrite
+         * them in place. The call the body returns is only a tail call if
+         * the inlined one is.
+         */
+        @Override
+        public Expr visitCallExpr(Expr.CallExpr expr) {
+            Expr.CallExpr call = new Expr.CallExpr(rewrite(expr.callee), expr.paren, new ArrayList<>(expr.arguments));
+            call.arguments.replaceAll(this::rewrite);
+            call.isTailCall = expr.isTailCall && isTailCall;
+            return call;
+        }
+
+        /** Goes back to the call, as calls are only inlined one level deep. */
+        @Override
+        public Expr visitInlineExpr(Expr.Inline expr) {
+            return visitCallExpr(expr.call);
+        }
+    }
+}
@@ -0,0 +1,717 @@
+package com.tinylang.opt;
+
+import com.tinylang.ast.Expr;
+import com.tinylang.ast.Stmt;
+import com.tinylang.token.Token;
+import com.tinylang.token.TokenType;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Moves the work that stays the same on every iteration of a while loop (and
+ * of a for loop, which the parser turns into one) out of the loop, and
+ * replaces {@code x ** 2} on a number with {@code x * x}.
+ * <p>
+ * An expression is invariant if it only combines literals with variables the
+ * loop does not assign. A local that closures capture, or a global in a
+ * loop that calls anything, may change behind the loop's back and does not
+ * count. Invariant expressions go into a new slot of the frame the loop
+ * runs in, computed right before the loop if that cannot fail, and otherwise
+ * on first use, as {@code t or (t = ...)}, so that an error is still raised
+ * where and when it was before. The latter is only worth it for two or more
+ * operators, and only works for arithmetic, whose results are never falsy.
+ * Loops directly at top level have no frame to put them in and are left alone.
+ */
+final class LoopOptimizer extends Rewriter {
+
+    private static final Expr NIL = new Expr.LiteralExpr(null);
+    private static final String TEMPORARY = "<invariant>";
+
+    /** A local variable: a slot of a block's or a function's frame. */
+    private static final class Variable {
+        final int id;
+        final Object function;
+        final List<Expr> values = new ArrayList<>();
+        boolean isNumber = true;
+        // Boxed, so a closure may assign it behind the function's back.
+        boolean isCaptured;
+
+        Variable(int id, Object function) {
+            this.id = id;
+            this.function = function;
+        }
+    }
+
+    /** A scope of the resolver, with the variables of its slots. */
+    private final class Scope {
+        final Object function;
+        final List<Variable> variables = new ArrayList<>();
+
+        Scope(Object function) {
+            this.function = function;
+        }
+
+        Variable variable(int slot) {
+            while (variables.size() <= slot) {
+                variables.add(newVariable(function));
+            }
+            return variables.get(slot);
+        }
+    }
+
+    /** What a while loop changes while it runs. */
+    private static final class Loop {
+        final Set<Variable> assigned = Collections.newSetFromMap(new IdentityHashMap<>());
+        final Set<String> assignedGlobals = new HashSet<>();
+        boolean hasCall;
+    }
+
+    private final List<Variable> allVariables = new ArrayList<>();
+    private final Map<Expr, Variable> variables = new IdentityHashMap<>();
+    private final Map<Stmt.While, Loop> loops = new IdentityHashMap<>();
+    // The blocks and functions whose frames the statements being rewritten run in.
+    private final Deque<Object> frames = new ArrayDeque<>();
+    private Object function = null;
+
+    void optimize(List<Stmt> statements) {
+        new Analyzer().analyze(statements);
+        inferNumbers();
+        rewriteInPlace(statements);
+    }
+
+    private Variable newVariable(Object function) {
+        Variable variable = new Variable(allVariables.size(), function);
+        allVariables.add(variable);
+        return variable;
+    }
+
+    /**
+     * Keeps a variable a number only if every value assigned to it is one,
+     * repeating until no more variables drop out.
+     */
+    private void inferNumbers() {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Variable variable : allVariables) {
+                if (!variable.isNumber) continue;
+                for (Expr value : variable.values) {
+                    if (!isNumeric(value)) {
+                        variable.isNumber = false;
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /** Whether the expression evaluates to a number whenever it does not fail. */
+    private boolean isNumeric(Expr expr) {
+        if (expr instanceof Expr.LiteralExpr literal) {
+            return literal.value instanceof Double;
+        }
+        if (expr instanceof Expr.VarExpr var) {
+            Variable variable = variables.get(var);
+            return variable != null && variable.isNumber;
+        }
+        if (expr instanceof Expr.AssignExpr assign) {
+            return isNumeric(assign.value);
+        }
+        if (expr instanceof Expr.GroupingExpr grouping) {
+            return isNumeric(grouping.expression);
+        }
+        if (expr instanceof Expr.UnaryExpr unary) {
+            return unary.operator.type() == TokenType.MINUS;
+        }
+        if (expr instanceof Expr.BinaryExpr binary) {
+            return switch (binary.operator.type()) {
+                case MINUS, STAR, SLASH, STAR_STAR -> true;
+                case PLUS -> isNumeric(binary.left) && isNumeric(binary.right);
+                default -> false;
+            };
+        }
+        return false;
+    }
+
+    /** Whether evaluating the expression can never fail. */
+    private boolean isSafe(Expr expr) {
+        if (expr instanceof Expr.LiteralExpr) {
+            return true;
+        }
+        if (expr instanceof Expr.VarExpr var) {
+            return var.isLocal();
+        }
+        if (expr instanceof Expr.GroupingExpr grouping) {
+            return isSafe(grouping.expression);
+        }
+        if (expr instanceof Expr.Logical logical) {
+            return isSafe(logical.left) && isSafe(logical.right);
+        }
+        if (expr instanceof Expr.UnaryExpr unary) {
+            return isSafe(unary.right) && (unary.operator.type() == TokenType.BANG || isNumeric(unary.right));
+        }
+        if (expr instanceof Expr.BinaryExpr binary) {
+            if (!isSafe(binary.left) || !isSafe(binary.right)) return false;
+            return switch (binary.operator.type()) {
+                case EQUAL_EQUAL, BANG_EQUAL -> true;
+                case SLASH -> isNumeric(binary.left) && binary.right instanceof Expr.LiteralExpr literal
+                        && literal.value instanceof Double divisor && divisor != 0;
+                default -> isNumeric(binary.left) && isNumeric(binary.right);
+            };
+        }
+        return false;
+    }
+
+    @Override
+    List<Stmt> rewriteAll(List<Stmt> statements) {
+        List<Stmt> rewritten = new ArrayList<>(statements.size());
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.While loop && !frames.isEmpty() && loops.containsKey(loop)) {
+                statement = new Hoister(loops.get(loop), rewritten).hoist(loop);
+            }
+            Stmt result = rewrite(statement);
+            if (result != null) rewritten.add(result);
+        }
+        return rewritten;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        if (!stmt.hasFrame()) return super.visitBlockStmt(stmt);
+        frames.push(stmt);
+        Stmt result = super.visitBlockStmt(stmt);
+        frames.pop();
+        return result;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        for (Stmt.Function method : stmt.methods) {
+            rewriteFunction(method, method.body);
+        }
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        rewriteFunction(stmt, stmt.body);
+        return stmt;
+    }
+
+    @Override
+    public Expr visitFunctionExpr(Expr.Function expr) {
+        rewriteFunction(expr, expr.body);
+        return expr;
+    }
+
+    private void rewriteFunction(Object declaration, List<Stmt> body) {
+        Object enclosing = function;
+        function = declaration;
+        frames.push(declaration);
+        rewriteInPlace(body);
+        frames.pop();
+        function = enclosing;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.BinaryExpr expr) {
+        Expr result = super.visitBinaryExpr(expr);
+        if (result instanceof Expr.BinaryExpr binary && binary.operator.type() == TokenType.STAR_STAR
+                && binary.left instanceof Expr.VarExpr var && isNumeric(var)
+                && binary.right instanceof Expr.LiteralExpr literal && literal.value instanceof Double exponent
+                && exponent == 2) {
+            Token times = new Token(TokenType.STAR, "*", null, binary.operator.line());
+            return new Expr.BinaryExpr(var, times, copy(var, var.depth));
+        }
+        return result;
+    }
+
+    private Expr.VarExpr copy(Expr.VarExpr var, int depth) {
+        Expr.VarExpr copy = new Expr.VarExpr(var.name);
+        copy.depth = depth;
+        copy.slot = var.slot;
+        copy.isBoxed = var.isBoxed;
+        variables.put(copy, variables.get(var));
+        return copy;
+    }
+
+    /** Adds a slot to the frame the current statements run in. */
+    private int allocateSlot() {
+        Object frame = frames.peek();
+        if (frame instanceof Stmt.Block block) return block.slotCount++;
+        if (frame instanceof Stmt.Function declaration) return declaration.frameSize++;
+        return ((Expr.Function) frame).frameSize++;
+    }
+
+    /** A slot holding an invariant expression. */
+    private record Temporary(Token name, int slot, Variable variable, boolean isComputedBefore) {
+    }
+
+    /**
+     * Replaces the invariant expressions of one loop and adds the statements
+     * that declare their slots to the statements before it.
+     */
+    private final class Hoister extends Rewriter {
+        private final Loop loop;
+        private final List<Stmt> preheader;
+        private final Map<String, Temporary> temporaries = new HashMap<>();
+        // Frames entered between the loop and the expression being rewritten.
+        private int nesting = 0;
+
+        Hoister(Loop loop, List<Stmt> preheader) {
+            this.loop = loop;
+            this.preheader = preheader;
+        }
+
+        Stmt.While hoist(Stmt.While stmt) {
+            Expr condition = rewrite(stmt.condition);
+            Stmt body = rewriteNested(stmt.body);
+            if (condition == stmt.condition && body == stmt.body) return stmt;
+            return loop(condition, body);
+        }
+
+        @Override
+        Expr rewrite(Expr expr) {
+            if (expr == null || operators(expr) == 0 || !isInvariant(expr)) {
+                return super.rewrite(expr);
+            }
+            boolean isSafe = isSafe(expr);
+            if (!isSafe && (operators(expr) < 2 || !isTruthyIfComputed(expr))) {
+                return super.rewrite(expr);
+            }
+            String key = key(expr);
+            Temporary temporary = temporaries.get(key);
+            if (temporary == null) {
+                temporary = declare(expr, isSafe);
+                temporaries.put(key, temporary);
+            }
+            Expr.VarExpr read = new Expr.VarExpr(temporary.name());
+            read.depth = nesting;
+            read.slot = temporary.slot();
+            variables.put(read, temporary.variable());
+            if (temporary.isComputedBefore()) return read;
+            Expr.AssignExpr compute = new Expr.AssignExpr(temporary.name(), expr);
+            compute.depth = nesting;
+            compute.slot = temporary.slot();
+            return new Expr.Logical(read, new Token(TokenType.OR, "or", null, 0), compute);
+        }
+
+        private Temporary declare(Expr expr, boolean isComputedBefore) {
+            Token name = new Token(TokenType.IDENTIFIER, TEMPORARY, null, 0);
+            int slot = allocateSlot();
+            Variable variable = newVariable(function);
+            Stmt.Let let;
+            if (isComputedBefore) {
+                let = new Stmt.Let(TEMPORARY, new Relocator(nesting).rewrite(expr));
+                variable.values.add(expr);
+                variable.isNumber = isNumeric(expr);
+            } else {
+                let = new Stmt.Let(TEMPORARY, null);
+                variable.values.add(NIL);
+                variable.isNumber = false;
+            }
+            let.slot = slot;
+            preheader.add(let);
+            return new Temporary(name, slot, variable, isComputedBefore);
+        }
+
+        private boolean isInvariant(Expr expr) {
+            if (expr instanceof Expr.LiteralExpr) {
+                return true;
+            }
+            if (expr instanceof Expr.VarExpr var) {
+                if (!var.isLocal()) {
+                    return !loop.hasCall && !loop.assignedGlobals.contains(var.name.lexeme());
+                }
+                Variable variable = variables.get(var);
+                return variable != null && variable.function == function && !variable.isCaptured
+                        && !loop.assigned.contains(variable) && var.depth >= nesting;
+            }
+            if (expr instanceof Expr.GroupingExpr grouping) {
+                return isInvariant(grouping.expression);
+            }
+            if (expr instanceof Expr.UnaryExpr unary) {
+                return isInvariant(unary.right);
+            }
+            if (expr instanceof Expr.BinaryExpr binary) {
+                return isInvariant(binary.left) && isInvariant(binary.right);
+            }
+            if (expr instanceof Expr.Logical logical) {
+                return isInvariant(logical.left) && isInvariant(logical.right);
+            }
+            return false;
+        }
+
+        @Override
+        public Stmt visitWhileStmt(Stmt.While stmt) {
+            Stmt result = super.visitWhileStmt(stmt);
+            if (result != stmt && loops.containsKey(stmt)) {
+                loops.put((Stmt.While) result, loops.get(stmt));
+            }
+            return result;
+        }
+
+        @Override
+        public Stmt visitBlockStmt(Stmt.Block stmt) {
+            if (!stmt.hasFrame()) return super.visitBlockStmt(stmt);
+            nesting++;
+            Stmt result = super.visitBlockStmt(stmt);
+            nesting--;
+            return result;
+        }
+
+        // Nested functions run in frames of their own and are not part of the loop.
+
+        @Override
+        public Stmt visitClassStmt(Stmt.Class stmt) {
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitFunctionStmt(Stmt.Function stmt) {
+            return stmt;
+        }
+
+        @Override
+        public Expr visitFunctionExpr(Expr.Function expr) {
+            return expr;
+        }
+    }
+
+    private static int operators(Expr expr) {
+        if (expr instanceof Expr.GroupingExpr grouping) {
+            return operators(grouping.expression);
+        }
+        if (expr instanceof Expr.UnaryExpr unary) {
+            return 1 + operators(unary.right);
+        }
+        if (expr instanceof Expr.BinaryExpr binary) {
+            return 1 + operators(binary.left) + operators(binary.right);
+        }
+        if (expr instanceof Expr.Logical logical) {
+            return 1 + operators(logical.left) + operators(logical.right);
+        }
+        return 0;
+    }
+
+    /** Whether the expression's value is truthy whenever it does not fail. */
+    private static boolean isTruthyIfComputed(Expr expr) {
+        if (expr instanceof Expr.GroupingExpr grouping) {
+            return isTruthyIfComputed(grouping.expression);
+        }
+        if (expr instanceof Expr.UnaryExpr unary) {
+            return unary.operator.type() == TokenType.MINUS;
+        }
+        if (expr instanceof Expr.BinaryExpr binary) {
+            return switch (binary.operator.type()) {
+                case PLUS, MINUS, STAR, SLASH, STAR_STAR -> true;
+                default -> false;
+            };
+        }
+        return false;
+    }
+
+    /** Identifies an invariant expression, so that each is only computed once per loop. */
+    private String key(Expr expr) {
+        if (expr instanceof Expr.LiteralExpr literal) {
+            return literal.value == null ? "nil" : literal.value.getClass().getSimpleName() + ":" + literal.value;
+        }
+        if (expr instanceof Expr.VarExpr var) {
+            return var.isLocal() ? "local:" + variables.get(var).id : "global:" + var.name.lexeme();
+        }
+        if (expr instanceof Expr.GroupingExpr grouping) {
+            return key(grouping.expression);
+        }
+        if (expr instanceof Expr.UnaryExpr unary) {
+            return "(" + unary.operator.type() + " " + key(unary.right) + ")";
+        }
+        if (expr instanceof Expr.BinaryExpr binary) {
+            return "(" + key(binary.left) + " " + binary.operator.type() + " " + key(binary.right) + ")";
+        }
+        Expr.Logical logical = (Expr.Logical) expr;
+        return "(" + key(logical.left) + " " + logical.operator.type() + " " + key(logical.right) + ")";
+    }
+
+    /** Copies an expression out of the {@code nesting} frames between it and the loop. */
+    private final class Relocator extends Rewriter {
+        private final int nesting;
+
+        Relocator(int nesting) {
+            this.nesting = nesting;
+        }
+
+        @Override
+        public Expr visitVarExpr(Expr.VarExpr expr) {
+            return expr.isLocal() ? copy(expr, expr.depth - nesting) : expr;
+        }
+    }
+
+    /**
+     * Records the variables every local expression refers to, the values
+     * assigned to each, and what every loop assigns and whether it calls
+     * anything.
+     */
+    private final class Analyzer implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
+        private final List<Scope> scopes = new ArrayList<>();
+        private Object function = null;
+        // The loops of the current function the code being analyzed runs in.
+        private List<Loop> active = new ArrayList<>();
+
+        void analyze(List<Stmt> statements) {
+            for (Stmt statement : statements) {
+                statement.accept(this);
+            }
+        }
+
+        private void analyze(Expr expr) {
+            if (expr != null) expr.accept(this);
+        }
+
+        private Variable variable(Expr.Resolvable expr) {
+            Scope scope = scopes.get(scopes.size() - 1 - expr.depth);
+            if (scope.function != function) {
+                // Read from the closure's own frame, which holds a copy or a cell.
+                Variable captured = newVariable(null);
+                capture(captured);
+                return captured;
+            }
+            return scope.variable(expr.slot);
+        }
+
+        private void capture(Variable variable) {
+            variable.isCaptured = true;
+            variable.isNumber = false;
+        }
+
+        private void assign(Variable variable, Expr value) {
+            variable.values.add(value);
+            for (Loop loop : active) {
+                loop.assigned.add(variable);
+            }
+        }
+
+        private void declareOpaque(int slot, boolean isBoxed) {
+            if (slot < 0) return;
+            Variable variable = scopes.get(scopes.size() - 1).variable(slot);
+            variable.isNumber = false;
+            if (isBoxed) capture(variable);
+            assign(variable, NIL);
+        }
+
+        private void function(Object declaration, int params, int thisSlot, int[] boxedParams, List<Stmt> body) {
+            Object enclosingFunction = function;
+            List<Loop> enclosingLoops = active;
+            function = declaration;
+            active = new ArrayList<>();
+            scopes.add(new Scope(declaration));
+            for (int i = 0; i < params; i++) {
+                scopes.get(scopes.size() - 1).variable(i).isNumber = false;
+            }
+            if (thisSlot >= 0) {
+                scopes.get(scopes.size() - 1).variable(thisSlot).isNumber = false;
+            }
+            for (int slot : boxedParams) {
+                capture(scopes.get(scopes.size() - 1).variable(slot));
+            }
+            analyze(body);
+            scopes.remove(scopes.size() - 1);
+            function = enclosingFunction;
+            active = enclosingLoops;
+        }
+
+        @Override
+        public Void visitLetStmt(Stmt.Let stmt) {
+            analyze(stmt.initializer);
+            if (stmt.slot >= 0) {
+                Variable variable = scopes.get(scopes.size() - 1).variable(stmt.slot);
+                if (stmt.isBoxed) capture(variable);
+                assign(variable, stmt.initializer != null ? stmt.initializer : NIL);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            analyze(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            analyze(stmt.condition);
+            stmt.thenBranch.accept(this);
+            if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            Loop loop = new Loop();
+            loops.put(stmt, loop);
+            active.add(loop);
+            analyze(stmt.condition);
+            stmt.body.accept(this);
+            active.remove(active.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            analyze(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            if (!stmt.hasFrame()) {
+                analyze(stmt.statements);
+                return null;
+            }
+            scopes.add(new Scope(function));
+            analyze(stmt.statements);
+            scopes.remove(scopes.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            declareOpaque(stmt.slot, stmt.isBoxed);
+            if (stmt.superclass != null) {
+                analyze(stmt.superclass);
+                scopes.add(new Scope(function));
+            }
+            for (Stmt.Function method : stmt.methods) {
+                function(method, method.params.size(), method.thisSlot, method.boxedParams, method.body);
+            }
+            if (stmt.superclass != null) scopes.remove(scopes.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            declareOpaque(stmt.slot, stmt.isBoxed);
+            function(stmt, stmt.params.size(), stmt.thisSlot, stmt.boxedParams, stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            analyze(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.BinaryExpr expr) {
+            analyze(expr.left);
+            analyze(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.UnaryExpr expr) {
+            analyze(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVarExpr(Expr.VarExpr expr) {
+            if (expr.isLocal()) variables.put(expr, variable(expr));
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.AssignExpr expr) {
+            analyze(expr.value);
+            if (expr.isLocal()) {
+                Variable variable = variable(expr);
+                variables.put(expr, variable);
+                assign(variable, expr.value);
+            } else {
+                for (Loop loop : active) {
+                    loop.assignedGlobals.add(expr.name.lexeme());
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.CallExpr expr) {
+            analyze(expr.callee);
+            for (Expr argument : expr.arguments) {
+                analyze(argument);
+            }
+            for (Loop loop : active) {
+                loop.hasCall = true;
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.GroupingExpr expr) {
+            analyze(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionExpr(Expr.Function expr) {
+            function(expr, expr.params.size(), -1, expr.boxedParams, expr.body);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.LiteralExpr expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical logical) {
+            analyze(logical.left);
+            analyze(logical.right);
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.GetExpr getExpr) {
+            analyze(getExpr.object);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.SetExpr setExpr) {
+            analyze(setExpr.object);
+            analyze(setExpr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.ThisExpr thisExpr) {
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super superExpr) {
+            return null;
+        }
+
+        @Override
+        public Void visitInlineExpr(Expr.Inline expr) {
+            visitCallExpr(expr.call);
+            Scope scope = scopes.get(scopes.size() - 1);
+            for (int i = 0; i < expr.slots.length; i++) {
+                assign(scope.variable(expr.slots[i]), expr.call.arguments.get(i));
+            }
+            analyze(expr.body);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.tinylang.opt;
+
+import com.tinylang.Interpreter;
+import com.tinylang.ast.Expr;
+import com.tinylang.ast.Stmt;
+import com.tinylang.error.RuntimeError;
+import com.tinylang.token.TokenType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.tinylang.util.Values.isTruthy;
+
+/**
+ * Simplifies the resolved syntax tree before any backend sees it. Operators
+ * on literals are folded, arithmetic identities on numbers are dropped,
+ * branches and loops with a constant condition are pruned, statements
+ * after a {@code return} are removed and loops that step a counter become
+ * {@link Stmt.CountedLoop}s. {@link Inliner} then replaces calls
+ * to small global functions with their bodies, {@link LoopOptimizer} works
+ * on the loops that are left, and {@link TypeInference} finally works out
+ * the types of the expressions, so that backends can skip checking the
+ * operands of operators it proved to be numbers.
+ * <p>
+ * The program behaves exactly as before: an operation that would fail at
+ * runtime, such as a division by zero, is left in place to fail there.
+ */
+public class Optimizer extends Rewriter {
+
+    private final boolean memoize;
+
+    public Optimizer() {
+        this(false);
+    }
+
+    /** With {@code memoize}, {@link PurityAnalysis} also memoizes the pure global functions. */
+    public Optimizer(boolean memoize) {
+        this.memoize = memoize;
+    }
+
+    public void optimize(List<Stmt> statements) {
+        rewriteInPlace(statements);
+        new Inliner().inline(statements);
+        new LoopOptimizer().optimize(statements);
+        new TypeInference().infer(statements);
+        if (memoize) new PurityAnalysis().memoize(statements);
+    }
+
+    @Override
+    List<Stmt> rewriteAll(List<Stmt> statements) {
+        List<Stmt> optimized = new ArrayList<>(statements.size());
+        for (Stmt statement : statements) {
+            Stmt result = rewrite(statement);
+            if (result == null) continue;
+            optimized.add(result);
+            if (result instanceof Stmt.Return) break;
+        }
+        return optimized;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = rewrite(stmt.condition);
+        if (condition instanceof Expr.LiteralExpr literal) {
+            Stmt branch = isTruthy(literal.value) ? stmt.thenBranch : stmt.elseBranch;
+            return branch == null ? null : rewrite(branch);
+        }
+        Stmt thenBranch = rewriteNested(stmt.thenBranch);
+        Stmt elseBranch = stmt.elseBranch == null ? null : rewrite(stmt.elseBranch);
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch) {
+            return stmt;
+        }
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = rewrite(stmt.condition);
+        if (condition instanceof Expr.LiteralExpr literal && !isTruthy(literal.value)) {
+            return null;
+        }
+        Stmt body = rewriteNested(stmt.body);
+        if (stmt instanceof Stmt.CountedLoop && condition == stmt.condition && body == stmt.body) return stmt;
+        return loop(condition, body);
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.BinaryExpr expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        if (left instanceof Expr.LiteralExpr l && right instanceof Expr.LiteralExpr r) {
+            try {
+                return new Expr.LiteralExpr(Interpreter.binary(expr.operator, l.value, r.value));
+            } catch (RuntimeError e) {
+                // Leave it to fail at runtime.
+            }
+        }
+        Expr simplified = simplify(expr.operator.type(), left, right);
+        if (simplified != null) return simplified;
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.BinaryExpr(left, expr.operator, right);
+    }
+
+    /**
+     * Drops an operand that leaves a number unchanged, if the other operand
+     * is known to be a number. {@code x + 0} is not among them, as it turns
+     * {@code -0} into {@code 0}.
+     */
+    private static Expr simplify(TokenType operator, Expr left, Expr right) {
+        switch (operator) {
+            case STAR -> {
+                if (isNumber(right, 1) && isNumeric(left)) return left;
+                if (isNumber(left, 1) && isNumeric(right)) return right;
+            }
+            case SLASH -> {
+                if (isNumber(right, 1) && isNumeric(left)) return left;
+            }
+            case MINUS -> {
+                if (isNumber(right, 0) && isNumeric(left)) return left;
+            }
+            case PLUS -> {
+                if (isNegativeZero(right) && isNumeric(left)) return left;
+                if (isNegativeZero(left) && isNumeric(right)) return right;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isNumber(Expr expr, double value) {
+        return expr instanceof Expr.LiteralExpr literal && literal.value instanceof Double number && number == value;
+    }
+
+    private static boolean isNegativeZero(Expr expr) {
+        return expr instanceof Expr.LiteralExpr literal && literal.value instanceof Double number
+                && Double.doubleToRawLongBits(number) == Double.doubleToRawLongBits(-0.0);
+    }
+
+    /** Whether the expression evaluates to a number whenever it does not fail. */
+    private static boolean isNumeric(Expr expr) {
+        if (expr instanceof Expr.LiteralExpr literal) {
+            return literal.value instanceof Double;
+        }
+        if (expr instanceof Expr.UnaryExpr unary) {
+            return unary.operator.type() == TokenType.MINUS;
+        }
+        if (expr instanceof Expr.BinaryExpr binary) {
+            return switch (binary.operator.type()) {
+                case MINUS, STAR, SLASH, STAR_STAR -> true;
+                case PLUS -> isNumeric(binary.left) && isNumeric(binary.right);
+                default -> false;
+            };
+        }
+        return false;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.UnaryExpr expr) {
+        Expr right = rewrite(expr.right);
+        if (right instanceof Expr.LiteralExpr literal) {
+            try {
+                return new Expr.LiteralExpr(Interpreter.unary(expr.operator, literal.value));
+            } catch (RuntimeError e) {
+                // Leave it to fail at runtime.
+            }
+        }
+        return right == expr.right ? expr : new Expr.UnaryExpr(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.GroupingExpr expr) {
+        return rewrite(expr.expression);
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical logical) {
+        Expr left = rewrite(logical.left);
+        Expr right = rewrite(logical.right);
+        if (left instanceof Expr.LiteralExpr literal) {
+            boolean decided = logical.operator.type() == TokenType.OR ? isTruthy(literal.value) : !isTruthy(literal.value);
+            return decided ? left : right;
+        }
+        if (left == logical.left && right == logical.right) return logical;
+        return new Expr.Logical(left, logical.operator, right);
+    }
+}
@@ -0,0 +1,171 @@
+package com.tinylang.opt;
+
+import com.tinylang.CallCounts;
+import com.tinylang.ast.Expr;
+import com.tinylang.ast.Stmt;
+import com.tinylang.ast.Type;
+import com.tinylang.jit.Jit;
+import com.tinylang.token.TokenType;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * What one run of a program learned about it, saved to a file so that the
+ * next run of the same source starts where it left off. The profile holds
+ * how many times each function declaration and method ran, and the operand
+ * types each {@code +} specialized on in the closure backend. A function
+ * called at least the JIT threshold times is compiled on its first call,
+ * and an addition starts out specialized to what it saw.
+ * <p>
+ * Sites are numbered in the order they appear in the optimized syntax tree,
+ * which only depends on the source; a file saved for a different source,
+ * as told by its hash, is ignored.
+ */
+public final class Profile {
+
+    private static final String HEADER = "tinylang-profile";
+
+    private final Path file;
+    private final String hash;
+    private final List<Long> calls = new ArrayList<>();
+    private final List<Type> additions = new ArrayList<>();
+    // The sites of the program, once applied, the call counts given to its functions, and where they are counted.
+    private final List<Stmt.Function> functions = new ArrayList<>();
+    private final List<Expr.BinaryExpr> sums = new ArrayList<>();
+    private final List<Integer> seeds = new ArrayList<>();
+    private CallCounts callCounts;
+
+    private Profile(Path file, String hash) {
+        this.file = file;
+        this.hash = hash;
+    }
+
+    /**
+     * Reads the profile of {@code source} from the file, or starts an empty
+     * one if the file is missing or belongs to another source.
+     */
+    public static Profile load(Path file, CharSequence source) throws IOException {
+        Profile profile = new Profile(file, hash(source));
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(file);
+        } catch (NoSuchFileException e) {
+            return profile;
+        }
+        if (lines.isEmpty() || !lines.getFirst().equals(HEADER + " " + profile.hash)) {
+            return profile;
+        }
+        for (String line : lines.subList(1, lines.size())) {
+            String[] fields = line.split(" ");
+            if (fields.length != 3) continue;
+            try {
+                int site = Integer.parseInt(fields[1]);
+                switch (fields[0]) {
+                    case "calls" -> set(profile.calls, site, Long.parseLong(fields[2]), 0L);
+                    case "add" -> set(profile.additions, site, Type.valueOf(fields[2]), Type.UNKNOWN);
+                }
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                // A damaged line; the site starts cold.
+            }
+        }
+        return profile;
+    }
+
+    private static <T> void set(List<T> values, int index, T value, T absent) {
+        if (index < 0) throw new IndexOutOfBoundsException(index);
+        while (values.size() <= index) {
+            values.add(absent);
+        }
+        values.set(index, value);
+    }
+
+    private static <T> T get(List<T> values, int index, T absent) {
+        return index < values.size() ? values.get(index) : absent;
+    }
+
+    /** Hashes the characters of the source, without copying it whole. */
+    private static String hash(CharSequence source) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] chunk = new byte[8192];
+        int length = 0;
+        for (int i = 0; i < source.length(); i++) {
+            char c = source.charAt(i);
+            chunk[length++] = (byte) (c >> 8);
+            chunk[length++] = (byte) c;
+            if (length == chunk.length) {
+                digest.update(chunk);
+                length = 0;
+            }
+        }
+        digest.update(chunk, 0, length);
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Hands what earlier runs learned to the sites of the optimized program,
+     * seeding the interpreter's call counts. Call counts only matter to the
+     * JIT, which may be null.
+     */
+    public void apply(List<Stmt> statements, Jit jit, CallCounts callCounts) {
+        this.callCounts = callCounts;
+        new Sites().rewriteInPlace(statements);
+        for (int i = 0; i < functions.size(); i++) {
+            int seed = jit != null && get(calls, i, 0L) >= jit.threshold() ? jit.threshold() - 1 : 0;
+            callCounts.add(functions.get(i), seed);
+            seeds.add(seed);
+        }
+        for (int i = 0; i < sums.size(); i++) {
+            sums.get(i).observed = get(additions, i, Type.UNKNOWN);
+        }
+    }
+
+    /** Writes what this run learned to the file, replacing what was there. */
+    public void save() throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add(HEADER + " " + hash);
+        for (int i = 0; i < functions.size(); i++) {
+            long count = Integer.toUnsignedLong(callCounts.calls(functions.get(i)) - seeds.get(i));
+            if (count > 0) lines.add("calls " + i + " " + count);
+        }
+        for (int i = 0; i < sums.size(); i++) {
+            Type type = sums.get(i).observed;
+            if (type != Type.UNKNOWN) lines.add("add " + i + " " + type);
+        }
+        Files.write(file, lines);
+    }
+
+    /** Collects the sites of the program in the order they appear, leaving it as it is. */
+    private final class Sites extends Rewriter {
+
+        @Override
+        public Stmt visitClassStmt(Stmt.Class stmt) {
+            functions.addAll(stmt.methods);
+            return super.visitClassStmt(stmt);
+        }
+
+        @Override
+        public Stmt visitFunctionStmt(Stmt.Function stmt) {
+            functions.add(stmt);
+            return super.visitFunctionStmt(stmt);
+        }
+
+        @Override
+        public Expr visitBinaryExpr(Expr.BinaryExpr expr) {
+            if (expr.operator.type() == TokenType.PLUS) sums.add(expr);
+            return super.visitBinaryExpr(expr);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.tinylang.opt;
+
+import com.tinylang.ast.Expr;
+import com.tinylang.ast.Stmt;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the global functions whose result depends on nothing but their
+ * arguments, and memoizes them. Such a function is constant, as the
+ * {@link Inliner} requires, and its body only reads and assigns its own
+ * locals, calls such functions, itself included, and reads no other
+ * global. It prints nothing, touches no field, and creates no closure or
+ * class, so it uses neither {@code this} nor {@code super}.
+ * <p>
+ * Every candidate starts out pure, and those that break a rule, or call a
+ * function that does, are dropped until none is left to drop, so that
+ * functions calling each other recursively stay pure.
+ */
+final class PurityAnalysis implements Stmt.Visitor<Boolean>, Expr.Visitor<Boolean> {
+
+    private final Map<String, Stmt.Function> pure = new HashMap<>();
+
+    void memoize(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Function function && function.isConstant) {
+                pure.put(function.name, function);
+            }
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = pure.values().removeIf(function -> !isPure(function.body));
+        }
+        for (Stmt.Function function : pure.values()) {
+            function.isMemoized = true;
+        }
+    }
+
+    private boolean isPure(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (!statement.accept(this)) return false;
+        }
+        return true;
+    }
+
+    private boolean isPure(Expr expr) {
+        return expr == null || expr.accept(this);
+    }
+
+    @Override
+    public Boolean visitLetStmt(Stmt.Let stmt) {
+        return isPure(stmt.initializer);
+    }
+
+    @Override
+    public Boolean visitExpressionStmt(Stmt.Expression stmt) {
+        return isPure(stmt.expression);
+    }
+
+    @Override
+    public Boolean visitIfStmt(Stmt.If stmt) {
+        return isPure(stmt.condition) && stmt.thenBranch.accept(this)
+                && (stmt.elseBranch == null || stmt.elseBranch.accept(this));
+    }
+
+    @Override
+    public Boolean visitWhileStmt(Stmt.While stmt) {
+        return isPure(stmt.condition) && stmt.body.accept(this);
+    }
+
+    @Override
+    public Boolean visitReturnStmt(Stmt.Return stmt) {
+        return isPure(stmt.value);
+    }
+
+    @Override
+    public Boolean visitBlockStmt(Stmt.Block stmt) {
+        return isPure(stmt.statements);
+    }
+
+    @Override
+    public Boolean visitClassStmt(Stmt.Class stmt) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitFunctionStmt(Stmt.Function stmt) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitPrintStmt(Stmt.Print stmt) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitBinaryExpr(Expr.BinaryExpr expr) {
+        return isPure(expr.left) && isPure(expr.right);
+    }
+
+    @Override
+    public Boolean visitUnaryExpr(Expr.UnaryExpr expr) {
+        return isPure(expr.right);
+    }
+
+    @Override
+    public Boolean visitVarExpr(Expr.VarExpr expr) {
+        return expr.isLocal() || pure.containsKey(expr.name.lexeme());
+    }
+
+    @Override
+    public Boolean visitAssignExpr(Expr.AssignExpr expr) {
+        return expr.isLocal() && isPure(expr.value);
+    }
+
+    @Override
+    public Boolean visitCallExpr(Expr.CallExpr expr) {
+        if (!(expr.callee instanceof Expr.VarExpr var) || var.isLocal() || !pure.containsKey(var.name.lexeme())) {
+            return false;
+        }
+        for (Expr argument : expr.arguments) {
+            if (!isPure(argument)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public Boolean visitGroupingExpr(Expr.GroupingExpr expr) {
+        return isPure(expr.expression);
+    }
+
+    @Override
+    public Boolean visitFunctionExpr(Expr.Function expr) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitLiteralExpr(Expr.LiteralExpr expr) {
+        return true;
+    }
+
+    @Override
+    public Boolean visitLogicalExpr(Expr.Logical logical) {
+        return isPure(logical.left) && isPure(logical.right);
+    }
+
+    @Override
+    public Boolean visitGetExpr(Expr.GetExpr getExpr) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitSetExpr(Expr.SetExpr setExpr) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitThisExpr(Expr.ThisExpr thisExpr) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitSuperExpr(Expr.Super superExpr) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitInlineExpr(Expr.Inline expr) {
+        return visitCallExpr(expr.call) && isPure(expr.body);
+    }
+}
@@ -0,0 +1,263 @@
+package com.tinylang.opt;
+
+import com.tinylang.ast.Expr;
+import com.tinylang.ast.Stmt;
+import com.tinylang.token.TokenType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A pass over the resolved syntax tree that returns a rewritten copy of every
+ * node it changes and the node itself otherwise. Rebuilt nodes carry over
+ * whatever the resolver wrote on the originals. Function declarations are
+ * rewritten in place, since runtime function objects and the JIT keep a
+ * reference to them.
+ * <p>
+ * A statement rewritten to null does nothing and is dropped.
+ */
+abstract class Rewriter implements Stmt.Visitor<Stmt>, Expr.Visitor<Expr> {
+
+    /** Rewrites a function body or the whole program in place. */
+    void rewriteInPlace(List<Stmt> statements) {
+        List<Stmt> rewritten = rewriteAll(statements);
+        if (!rewritten.equals(statements)) {
+            statements.clear();
+            statements.addAll(rewritten);
+        }
+    }
+
+    List<Stmt> rewriteAll(List<Stmt> statements) {
+        List<Stmt> rewritten = new ArrayList<>(statements.size());
+        for (Stmt statement : statements) {
+            Stmt result = rewrite(statement);
+            if (result != null) rewritten.add(result);
+        }
+        return rewritten;
+    }
+
+    Stmt rewrite(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    /** Rewrites a statement that has to stay a statement, like the body of a loop. */
+    Stmt rewriteNested(Stmt stmt) {
+        Stmt result = rewrite(stmt);
+        if (result == null) {
+            Stmt.Block empty = new Stmt.Block(new ArrayList<>());
+            empty.slotCount = 0;
+            return empty;
+        }
+        return result;
+    }
+
+    Expr rewrite(Expr expr) {
+        return expr == null ? null : expr.accept(this);
+    }
+
+    @Override
+    public Stmt visitLetStmt(Stmt.Let stmt) {
+        Expr initializer = rewrite(stmt.initializer);
+        if (initializer == stmt.initializer) return stmt;
+        Stmt.Let let = new Stmt.Let(stmt.name, initializer);
+        let.slot = stmt.slot;
+        let.isBoxed = stmt.isBoxed;
+        return let;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = rewrite(stmt.expression);
+        return expression == stmt.expression ? stmt : new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = rewrite(stmt.condition);
+        Stmt thenBranch = rewriteNested(stmt.thenBranch);
+        Stmt elseBranch = stmt.elseBranch == null ? null : rewrite(stmt.elseBranch);
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch) {
+            return stmt;
+        }
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = rewrite(stmt.condition);
+        Stmt body = rewriteNested(stmt.body);
+        if (condition == stmt.condition && body == stmt.body) return stmt;
+        return loop(condition, body);
+    }
+
+    /**
+     * A loop running {@code body} while {@code condition} holds, as a
+     * {@link Stmt.CountedLoop} if it has that shape. The parser only builds
+     * plain loops; passes that rebuild a loop recognize it again, since the
+     * rewritten condition or body may have gained or lost the shape.
+     */
+    static Stmt.While loop(Expr condition, Stmt body) {
+        if (!(condition instanceof Expr.BinaryExpr test) || !(test.left instanceof Expr.VarExpr counter)) {
+            return new Stmt.While(condition, body);
+        }
+        TokenType operator = test.operator.type();
+        boolean isComparison = operator == TokenType.LESS || operator == TokenType.LESS_EQUAL
+                || operator == TokenType.GREATER || operator == TokenType.GREATER_EQUAL;
+        if (!isComparison || !(body instanceof Stmt.Block block) || block.statements.isEmpty()) {
+            return new Stmt.While(condition, body);
+        }
+        String name = counter.name.lexeme();
+        List<Stmt> statements = List.copyOf(block.statements.subList(0, block.statements.size() - 1));
+        if (!(block.statements.getLast() instanceof Stmt.Expression last)
+                || !(last.expression instanceof Expr.AssignExpr increment)
+                || !increment.name.lexeme().equals(name)
+                || !(increment.value instanceof Expr.BinaryExpr sum)
+                || !(sum.left instanceof Expr.VarExpr var) || !var.name.lexeme().equals(name)
+                || !(sum.right instanceof Expr.LiteralExpr literal) || !(literal.value instanceof Double step)) {
+            return new Stmt.While(condition, body);
+        }
+        TokenType direction = sum.operator.type();
+        if (direction != TokenType.PLUS && direction != TokenType.MINUS) {
+            return new Stmt.While(condition, body);
+        }
+        // The step has to see the counter the condition tests, so the body must not declare another.
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Let || statement instanceof Stmt.Function || statement instanceof Stmt.Class) {
+                return new Stmt.While(condition, body);
+            }
+        }
+        return new Stmt.CountedLoop(test, block, statements, increment, direction == TokenType.PLUS ? step : -step);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        Expr value = rewrite(stmt.value);
+        return value == stmt.value ? stmt : new Stmt.Return(value);
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        List<Stmt> statements = rewriteAll(stmt.statements);
+        if (statements.equals(stmt.statements)) return stmt;
+        Stmt.Block block = new Stmt.Block(statements);
+        block.slotCount = stmt.slotCount;
+        return block;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        for (Stmt.Function method : stmt.methods) {
+            rewriteInPlace(method.body);
+        }
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        rewriteInPlace(stmt.body);
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = rewrite(stmt.expression);
+        return expression == stmt.expression ? stmt : new Stmt.Print(expression);
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.BinaryExpr expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.BinaryExpr(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.UnaryExpr expr) {
+        Expr right = rewrite(expr.right);
+        return right == expr.right ? expr : new Expr.UnaryExpr(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVarExpr(Expr.VarExpr expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.AssignExpr expr) {
+        Expr value = rewrite(expr.value);
+        if (value == expr.value) return expr;
+        Expr.AssignExpr assign = new Expr.AssignExpr(expr.name, value);
+        assign.depth = expr.depth;
+        assign.slot = expr.slot;
+        assign.isBoxed = expr.isBoxed;
+        return assign;
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.CallExpr expr) {
+        Expr callee = rewrite(expr.callee);
+        expr.arguments.replaceAll(this::rewrite);
+        if (callee == expr.callee) return expr;
+        Expr.CallExpr call = new Expr.CallExpr(callee, expr.paren, expr.arguments);
+        call.isTailCall = expr.isTailCall;
+        return call;
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.GroupingExpr expr) {
+        Expr expression = rewrite(expr.expression);
+        return expression == expr.expression ? expr : new Expr.GroupingExpr(expression);
+    }
+
+    @Override
+    public Expr visitFunctionExpr(Expr.Function expr) {
+        rewriteInPlace(expr.body);
+        return expr;
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.LiteralExpr expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical logical) {
+        Expr left = rewrite(logical.left);
+        Expr right = rewrite(logical.right);
+        if (left == logical.left && right == logical.right) return logical;
+        return new Expr.Logical(left, logical.operator, right);
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.GetExpr getExpr) {
+        Expr object = rewrite(getExpr.object);
+        return object == getExpr.object ? getExpr : new Expr.GetExpr(object, getExpr.name);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.SetExpr setExpr) {
+        Expr object = rewrite(setExpr.object);
+        Expr value = rewrite(setExpr.value);
+        if (object == setExpr.object && value == setExpr.value) return setExpr;
+        return new Expr.SetExpr(object, setExpr.name, value);
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.ThisExpr thisExpr) {
+        return thisExpr;
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super superExpr) {
+        return superExpr;
+    }
+
+    @Override
+    public Expr visitInlineExpr(Expr.Inline expr) {
+        // The callee is a global variable, which stays as it is.
+        expr.call.arguments.replaceAll(this::rewrite);
+        Expr body = rewrite(expr.body);
+        return body == expr.body ? expr : new Expr.Inline(expr.call, expr.function, expr.slots, body);
+    }
+}
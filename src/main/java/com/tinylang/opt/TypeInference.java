@@ -0,0 +1,284 @@
+package com.tinylang.opt;
+
+import com.tinylang.ast.Expr;
+import com.tinylang.ast.Stmt;
+import com.tinylang.ast.Type;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes onto every expression the type of the values it evaluates to. The
+ * pass follows the code in the order it runs, keeping the type of each
+ * unboxed local of the frame the code runs in, which only that code can
+ * assign: closures box the variables they assign. Globals, parameters,
+ * captured variables, fields and the results of calls are unknown. Where
+ * control flow joins, after an {@code if} or at the top of a loop, a local
+ * keeps its type only if it has it on every path there, and a loop is
+ * analyzed again until the types at its top stay the same.
+ * <p>
+ * A failed operation stops the program, so only the values of expressions
+ * that succeed count: {@code a - b} is a number whatever {@code a} and
+ * {@code b} are.
+ */
+final class TypeInference implements Stmt.Visitor<Void>, Expr.Visitor<Type> {
+
+    // The types of the slots of the current frame, or null after a return.
+    private Type[] frame = new Type[0];
+    // What 'this' holds in the current function.
+    private Type receiver = Type.UNKNOWN;
+
+    void infer(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            execute(statement);
+        }
+    }
+
+    private void execute(Stmt stmt) {
+        if (frame != null) stmt.accept(this);
+    }
+
+    private Type infer(Expr expr) {
+        Type type = expr.accept(this);
+        expr.type = type;
+        return type;
+    }
+
+    private Type get(Expr.Resolvable expr) {
+        return isTracked(expr) && expr.slot < frame.length ? frame[expr.slot] : Type.UNKNOWN;
+    }
+
+    private void set(int slot, Type type) {
+        if (slot < frame.length) frame[slot] = type;
+    }
+
+    /** Whether the variable is an unboxed local of the current frame. */
+    private static boolean isTracked(Expr.Resolvable expr) {
+        return expr.isLocal() && expr.depth == 0 && !expr.isBoxed;
+    }
+
+    private static Type[] copy(Type[] frame) {
+        return frame == null ? null : frame.clone();
+    }
+
+    private static Type[] join(Type[] a, Type[] b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        Type[] joined = new Type[a.length];
+        for (int i = 0; i < joined.length; i++) {
+            joined[i] = a[i].join(b[i]);
+        }
+        return joined;
+    }
+
+    private static Type[] newFrame(int size) {
+        Type[] frame = new Type[size];
+        Arrays.fill(frame, Type.UNKNOWN);
+        return frame;
+    }
+
+    private void function(List<Stmt> body, int frameSize, Type receiver) {
+        Type[] enclosingFrame = frame;
+        Type enclosingReceiver = this.receiver;
+        frame = newFrame(frameSize);
+        this.receiver = receiver;
+        infer(body);
+        frame = enclosingFrame;
+        this.receiver = enclosingReceiver;
+    }
+
+    @Override
+    public Void visitLetStmt(Stmt.Let stmt) {
+        Type type = stmt.initializer != null ? infer(stmt.initializer) : Type.UNKNOWN;
+        if (stmt.slot >= 0) set(stmt.slot, stmt.isBoxed ? Type.UNKNOWN : type);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        infer(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        infer(stmt.condition);
+        Type[] otherwise = copy(frame);
+        execute(stmt.thenBranch);
+        Type[] then = frame;
+        frame = otherwise;
+        if (stmt.elseBranch != null) execute(stmt.elseBranch);
+        frame = join(then, frame);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        while (true) {
+            Type[] top = copy(frame);
+            infer(stmt.condition);
+            Type[] exit = copy(frame);
+            execute(stmt.body);
+            Type[] next = join(top, frame);
+            if (Arrays.equals(next, top)) {
+                frame = exit;
+                return null;
+            }
+            frame = next;
+        }
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) infer(stmt.value);
+        frame = null;
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if (!stmt.hasFrame()) {
+            infer(stmt.statements);
+            return null;
+        }
+        Type[] enclosing = frame;
+        frame = newFrame(stmt.slotCount);
+        infer(stmt.statements);
+        frame = enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        if (stmt.superclass != null) infer(stmt.superclass);
+        if (stmt.slot >= 0) set(stmt.slot, Type.UNKNOWN);
+        for (Stmt.Function method : stmt.methods) {
+            function(method.body, method.frameSize, method.isStatic() ? Type.UNKNOWN : Type.INSTANCE);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        if (stmt.slot >= 0) set(stmt.slot, Type.UNKNOWN);
+        function(stmt.body, stmt.frameSize, receiver);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        infer(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Type visitBinaryExpr(Expr.BinaryExpr expr) {
+        Type left = infer(expr.left);
+        Type right = infer(expr.right);
+        return switch (expr.operator.type()) {
+            case PLUS -> {
+                if (left == Type.NUMBER && right == Type.NUMBER) yield Type.NUMBER;
+                yield left == Type.STRING || right == Type.STRING ? Type.STRING : Type.UNKNOWN;
+            }
+            case MINUS, STAR, SLASH, STAR_STAR -> Type.NUMBER;
+            case GREATER, GREATER_EQUAL, LESS, LESS_EQUAL, EQUAL_EQUAL, BANG_EQUAL -> Type.BOOLEAN;
+            default -> Type.UNKNOWN;
+        };
+    }
+
+    @Override
+    public Type visitUnaryExpr(Expr.UnaryExpr expr) {
+        infer(expr.right);
+        return switch (expr.operator.type()) {
+            case MINUS -> Type.NUMBER;
+            case BANG -> Type.BOOLEAN;
+            default -> Type.UNKNOWN;
+        };
+    }
+
+    @Override
+    public Type visitVarExpr(Expr.VarExpr expr) {
+        return get(expr);
+    }
+
+    @Override
+    public Type visitAssignExpr(Expr.AssignExpr expr) {
+        Type type = infer(expr.value);
+        if (isTracked(expr)) set(expr.slot, type);
+        return type;
+    }
+
+    @Override
+    public Type visitCallExpr(Expr.CallExpr expr) {
+        infer(expr.callee);
+        for (Expr argument : expr.arguments) {
+            infer(argument);
+        }
+        return Type.UNKNOWN;
+    }
+
+    @Override
+    public Type visitGroupingExpr(Expr.GroupingExpr expr) {
+        return infer(expr.expression);
+    }
+
+    @Override
+    public Type visitFunctionExpr(Expr.Function expr) {
+        function(expr.body, expr.frameSize, receiver);
+        return Type.UNKNOWN;
+    }
+
+    @Override
+    public Type visitLiteralExpr(Expr.LiteralExpr expr) {
+        return Type.of(expr.value);
+    }
+
+    @Override
+    public Type visitLogicalExpr(Expr.Logical logical) {
+        Type left = infer(logical.left);
+        Type[] shortCircuited = copy(frame);
+        Type right = infer(logical.right);
+        frame = join(shortCircuited, frame);
+        return left.join(right);
+    }
+
+    @Override
+    public Type visitGetExpr(Expr.GetExpr getExpr) {
+        infer(getExpr.object);
+        return Type.UNKNOWN;
+    }
+
+    @Override
+    public Type visitSetExpr(Expr.SetExpr setExpr) {
+        infer(setExpr.object);
+        return infer(setExpr.value);
+    }
+
+    @Override
+    public Type visitThisExpr(Expr.ThisExpr thisExpr) {
+        return receiver;
+    }
+
+    @Override
+    public Type visitSuperExpr(Expr.Super superExpr) {
+        return Type.UNKNOWN;
+    }
+
+    @Override
+    public Type visitInlineExpr(Expr.Inline expr) {
+        infer(expr.call.callee);
+        List<Expr> arguments = expr.call.arguments;
+        Type[] types = new Type[arguments.size()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = infer(arguments.get(i));
+        }
+        // If the callee has changed, the call is made and the slots keep what they held.
+        Type[] called = copy(frame);
+        for (int i = 0; i < types.length; i++) {
+            set(expr.slots[i], types[i]);
+        }
+        infer(expr.body);
+        frame = join(called, frame);
+        return Type.UNKNOWN;
+    }
+}
@@ -184,4 +184,9 @@ public class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
     public String visitSuperExpr(Expr.Super superExpr) {
         return "(super " + superExpr.method + ")";
     }
+
+    @Override
+    public String visitInlineExpr(Expr.Inline expr) {
+        return "(inline " + print(expr.call) + " " + print(expr.body) + ")";
+    }
 }
@@ -0,0 +1,171 @@
+package com.tinylang.token;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tokens stored column by column instead of one object each: the type, where
+ * the text starts and ends in the source, the line and the literal value.
+ * A {@link Token} is only created for a token someone asks for, and its text
+ * is only cut from the source then. Identifiers, keywords and symbols share
+ * one string per distinct text; numbers and strings get their own.
+ * <p>
+ * Indices count every token added. Tokens before the one passed to
+ * {@link #retainFrom} may be dropped to make room for new ones, so a buffer
+ * that a parser reads as a lexer fills it only holds the stretch of tokens
+ * the parser still needs.
+ */
+public final class TokenBuffer {
+
+    private static final TokenType[] TYPES = TokenType.values();
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final CharSequence source;
+    private byte[] types = new byte[INITIAL_CAPACITY];
+    private int[] starts = new int[INITIAL_CAPACITY];
+    private int[] ends = new int[INITIAL_CAPACITY];
+    private int[] lines = new int[INITIAL_CAPACITY];
+    private Object[] literals = new Object[INITIAL_CAPACITY];
+    // The index of the token in the first slot, how many tokens are held, and the first one still needed.
+    private int base;
+    private int count;
+    private int retained;
+    // An open-addressing hash set of the texts handed out by intern.
+    private String[] names = new String[INITIAL_CAPACITY];
+    private int nameCount;
+
+    public TokenBuffer(CharSequence source) {
+        this.source = source;
+    }
+
+    /** A buffer holding tokens that were already created, with their lexemes as its source. */
+    public static TokenBuffer of(List<Token> tokens) {
+        StringBuilder source = new StringBuilder();
+        for (Token token : tokens) {
+            source.append(token.lexeme());
+        }
+        TokenBuffer buffer = new TokenBuffer(source);
+        int start = 0;
+        for (Token token : tokens) {
+            int end = start + token.lexeme().length();
+            buffer.add(token.type(), start, end, token.line(), token.literal());
+            start = end;
+        }
+        return buffer;
+    }
+
+    /** Appends a token whose text runs from {@code start} to {@code end}, and returns its index. */
+    public int add(TokenType type, int start, int end, int line, Object literal) {
+        if (count == types.length) makeRoom();
+        types[count] = (byte) type.ordinal();
+        starts[count] = start;
+        ends[count] = end;
+        lines[count] = line;
+        literals[count] = literal;
+        return base + count++;
+    }
+
+    /** Drops the tokens no longer needed if that frees half the buffer, and grows it otherwise. */
+    private void makeRoom() {
+        int dropped = retained - base;
+        if (dropped >= count / 2) {
+            count -= dropped;
+            System.arraycopy(types, dropped, types, 0, count);
+            System.arraycopy(starts, dropped, starts, 0, count);
+            System.arraycopy(ends, dropped, ends, 0, count);
+            System.arraycopy(lines, dropped, lines, 0, count);
+            System.arraycopy(literals, dropped, literals, 0, count);
+            Arrays.fill(literals, count, count + dropped, null);
+            base = retained;
+            return;
+        }
+        int capacity = types.length * 2;
+        types = Arrays.copyOf(types, capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        ends = Arrays.copyOf(ends, capacity);
+        lines = Arrays.copyOf(lines, capacity);
+        literals = Arrays.copyOf(literals, capacity);
+    }
+
+    /** Lets the tokens before {@code index} be dropped. */
+    public void retainFrom(int index) {
+        if (index > retained) retained = Math.min(index, base + count);
+    }
+
+    /** The index the next token added gets. */
+    public int size() {
+        return base + count;
+    }
+
+    public TokenType type(int index) {
+        return TYPES[types[index - base]];
+    }
+
+    public int line(int index) {
+        return lines[index - base];
+    }
+
+    public Object literal(int index) {
+        return literals[index - base];
+    }
+
+    public String lexeme(int index) {
+        int slot = index - base;
+        TokenType type = TYPES[types[slot]];
+        if (type == TokenType.NUMBER || type == TokenType.STRING) {
+            return source.subSequence(starts[slot], ends[slot]).toString();
+        }
+        return intern(starts[slot], ends[slot]);
+    }
+
+    public Token token(int index) {
+        return new Token(type(index), lexeme(index), literal(index), line(index));
+    }
+
+    /**
+     * The text of the source between two offsets, as the same string every
+     * time it comes up; only the first occurrence copies it.
+     */
+    public String intern(int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + source.charAt(i);
+        }
+        int mask = names.length - 1;
+        for (int slot = (hash ^ (hash >>> 16)) & mask; ; slot = (slot + 1) & mask) {
+            String name = names[slot];
+            if (name == null) {
+                name = source.subSequence(start, end).toString();
+                names[slot] = name;
+                if (++nameCount * 2 > names.length) rehash();
+                return name;
+            }
+            if (name.hashCode() == hash && matches(name, start, end)) {
+                return name;
+            }
+        }
+    }
+
+    private boolean matches(String name, int start, int end) {
+        if (name.length() != end - start) return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != source.charAt(start + i)) return false;
+        }
+        return true;
+    }
+
+    private void rehash() {
+        String[] old = names;
+        names = new String[old.length * 2];
+        int mask = names.length - 1;
+        for (String name : old) {
+            if (name == null) continue;
+            int hash = name.hashCode();
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (names[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            names[slot] = name;
+        }
+    }
+}
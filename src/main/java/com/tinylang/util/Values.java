@@ -0,0 +1,28 @@
+package com.tinylang.util;
+
+public class Values {
+
+    public static boolean isTruthy(Object value) {
+        if (value == null) return false;
+        if (value instanceof Boolean b) return b;
+        return true;
+    }
+
+    public static boolean isEqual(Object left, Object right) {
+        if (left == null && right == null) return true;
+        if (left == null) return false;
+        return left.equals(right);
+    }
+
+    public static String stringify(Object object) {
+        if (object == null) return "nil";
+        if (object instanceof Double d) {
+            String text = d.toString();
+            if (text.endsWith(".0")) {
+                text = text.substring(0, text.length() - 2);
+            }
+            return text;
+        }
+        return object.toString();
+    }
+}
@@ -0,0 +1,23 @@
+package com.tinylang.vm;
+
+import com.tinylang.Environment;
+
+/**
+ * Activation record of a running function: the instruction pointer, the
+ * innermost variable frame and where the callee sits on the operand stack.
+ */
+class CallFrame {
+
+    final VmFunction function;
+    final int base;
+    final VmInstance constructing;
+    Environment environment;
+    int ip;
+
+    CallFrame(VmFunction function, Environment environment, int base, VmInstance constructing) {
+        this.function = function;
+        this.environment = environment;
+        this.base = base;
+        this.constructing = constructing;
+    }
+}
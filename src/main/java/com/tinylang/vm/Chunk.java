@@ -0,0 +1,67 @@
+package com.tinylang.vm;
+
+import com.tinylang.token.Token;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Growable buffer the compiler writes a function's bytecode into. Every byte
+ * remembers the token it was compiled from so runtime errors can report it.
+ */
+class Chunk {
+
+    private byte[] code = new byte[64];
+    private Token[] tokens = new Token[64];
+    private int count = 0;
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+
+    void write(int value, Token token) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            tokens = Arrays.copyOf(tokens, count * 2);
+        }
+        code[count] = (byte) value;
+        tokens[count] = token;
+        count++;
+    }
+
+    void patch(int offset, int value) {
+        code[offset] = (byte) value;
+    }
+
+    int count() {
+        return count;
+    }
+
+    int addConstant(Object value) {
+        if (value instanceof VmFunction) {
+            constants.add(value);
+            return constants.size() - 1;
+        }
+        return constantIndex.computeIfAbsent(value, key -> {
+            constants.add(key);
+            return constants.size() - 1;
+        });
+    }
+
+    int constantCount() {
+        return constants.size();
+    }
+
+    byte[] code() {
+        return Arrays.copyOf(code, count);
+    }
+
+    Token[] tokens() {
+        return Arrays.copyOf(tokens, count);
+    }
+
+    Object[] constants() {
+        return constants.toArray();
+    }
+}
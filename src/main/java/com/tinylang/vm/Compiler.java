@@ -0,0 +1,514 @@
+package com.tinylang.vm;
+
+import com.tinylang.TinyLang;
+import com.tinylang.ast.Capture;
+import com.tinylang.ast.Expr;
+import com.tinylang.ast.Stmt;
+import com.tinylang.token.Token;
+import com.tinylang.token.TokenType;
+
+import java.util.List;
+
+/**
+ * Compiles a resolved syntax tree to bytecode. Variables use the slots the
+ * {@link com.tinylang.Resolver} assigned, and a resolved depth is the number
+ * of runtime frames to walk. Blocks that need no frame of their own run in
+ * the enclosing one.
+ */
+public class Compiler implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
+
+    private static final int MAX_U16 = 0xffff;
+
+    private Chunk chunk;
+    private int stackDepth;
+    private int maxStack;
+    private boolean hadError = false;
+
+    public VmFunction compile(List<Stmt> statements) {
+        return function("script", 0, 0, -1, List.of(), new int[0], statements);
+    }
+
+    public VmFunction compileExpression(Expr expression) {
+        return function("script", 0, 0, -1, List.of(), new int[0], List.of(new Stmt.Print(expression)));
+    }
+
+    public boolean hadError() {
+        return hadError;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.BinaryExpr expr) {
+        compile(expr.left);
+        compile(expr.right);
+        byte op = switch (expr.operator.type()) {
+            case PLUS -> OpCode.ADD;
+            case MINUS -> OpCode.SUBTRACT;
+            case STAR -> OpCode.MULTIPLY;
+            case SLASH -> OpCode.DIVIDE;
+            case STAR_STAR -> OpCode.POWER;
+            case GREATER -> OpCode.GREATER;
+            case GREATER_EQUAL -> OpCode.GREATER_EQUAL;
+            case LESS -> OpCode.LESS;
+            case LESS_EQUAL -> OpCode.LESS_EQUAL;
+            case EQUAL_EQUAL -> OpCode.EQUAL;
+            case BANG_EQUAL -> OpCode.NOT_EQUAL;
+            default -> throw new IllegalStateException("Unexpected binary operator " + expr.operator);
+        };
+        emit(op, expr.operator);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.UnaryExpr expr) {
+        compile(expr.right);
+        switch (expr.operator.type()) {
+            case MINUS -> emit(OpCode.NEGATE, expr.operator);
+            case BANG -> emit(OpCode.NOT, expr.operator);
+            default -> throw new IllegalStateException("Unexpected unary operator " + expr.operator);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVarExpr(Expr.VarExpr expr) {
+        emitGet(expr, expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.AssignExpr expr) {
+        compile(expr.value);
+        if (!expr.isLocal()) {
+            emit(OpCode.SET_GLOBAL, expr.name);
+            emitShort(constant(expr.name, expr.name), expr.name);
+        } else if (expr.isBoxed) {
+            emit(OpCode.SET_BOXED, expr.name);
+            emitByte(expr.depth, expr.name);
+            emitShort(expr.slot, expr.name);
+        } else if (expr.depth == 0) {
+            emit(OpCode.SET_LOCAL, expr.name);
+            emitShort(expr.slot, expr.name);
+        } else {
+            emit(OpCode.SET_UPPER, expr.name);
+            emitByte(expr.depth, expr.name);
+            emitShort(expr.slot, expr.name);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.CallExpr expr) {
+        if (expr.callee instanceof Expr.GetExpr get) {
+            compile(get.object);
+            compileArguments(expr.arguments);
+            emit(OpCode.INVOKE, expr.paren);
+            emitShort(constant(get.name, expr.paren), expr.paren);
+            emitByte(expr.arguments.size(), expr.paren);
+        } else if (expr.callee instanceof Expr.Super superExpr) {
+            emitGet(superExpr.receiver, superExpr.keyword);
+            emitGet(superExpr, superExpr.keyword);
+            emit(OpCode.GET_SUPER_METHOD, superExpr.method);
+            emitShort(constant(superExpr.method, superExpr.method), superExpr.method);
+            compileArguments(expr.arguments);
+            emit(OpCode.SUPER_INVOKE, expr.paren);
+            emitByte(expr.arguments.size(), expr.paren);
+        } else {
+            compile(expr.callee);
+            compileArguments(expr.arguments);
+            emit(OpCode.CALL, expr.paren);
+            emitByte(expr.arguments.size(), expr.paren);
+        }
+        adjustStack(-expr.arguments.size());
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.GroupingExpr expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionExpr(Expr.Function expr) {
+        VmFunction function = function("<anonymous>", expr.params.size(), expr.frameSize, -1, expr.captures,
+                expr.boxedParams, expr.body);
+        emit(OpCode.CLOSURE, null);
+        emitShort(constant(function, null), null);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.LiteralExpr expr) {
+        if (expr.value == null) {
+            emit(OpCode.NIL, null);
+        } else if (expr.value instanceof Boolean b) {
+            emit(b ? OpCode.TRUE : OpCode.FALSE, null);
+        } else {
+            emit(OpCode.CONSTANT, null);
+            emitShort(constant(expr.value, null), null);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical logical) {
+        compile(logical.left);
+        boolean isOr = logical.operator.type() == TokenType.OR;
+        int end = emitJump(isOr ? OpCode.JUMP_IF_TRUE : OpCode.JUMP_IF_FALSE, logical.operator);
+        emit(OpCode.POP, logical.operator);
+        compile(logical.right);
+        patchJump(end, logical.operator);
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.GetExpr getExpr) {
+        compile(getExpr.object);
+        emit(OpCode.GET_PROPERTY, getExpr.name);
+        emitShort(constant(getExpr.name, getExpr.name), getExpr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.SetExpr setExpr) {
+        compile(setExpr.object);
+        compile(setExpr.value);
+        emit(OpCode.SET_PROPERTY, setExpr.name);
+        emitShort(constant(setExpr.name, setExpr.name), setExpr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.ThisExpr thisExpr) {
+        emitGet(thisExpr, thisExpr.keyword);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super superExpr) {
+        emitGet(superExpr.receiver, superExpr.keyword);
+        emitGet(superExpr, superExpr.keyword);
+        emit(OpCode.GET_SUPER, superExpr.method);
+        emitShort(constant(superExpr.method, superExpr.method), superExpr.method);
+        return null;
+    }
+
+    /** Makes the call: the VM's functions are not the ones inlined bodies check for. */
+    @Override
+    public Void visitInlineExpr(Expr.Inline expr) {
+        return visitCallExpr(expr.call);
+    }
+
+    @Override
+    public Void visitLetStmt(Stmt.Let stmt) {
+        if (stmt.isBoxed) {
+            emitCell(stmt.slot, null);
+        }
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emit(OpCode.NIL, null);
+        }
+        emitDefine(stmt.slot, stmt.isBoxed, stmt.name, null);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emit(OpCode.POP, null);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+        int elseJump = emitJump(OpCode.POP_JUMP_IF_FALSE, null);
+        compile(stmt.thenBranch);
+        if (stmt.elseBranch == null) {
+            patchJump(elseJump, null);
+            return null;
+        }
+        int endJump = emitJump(OpCode.JUMP, null);
+        patchJump(elseJump, null);
+        compile(stmt.elseBranch);
+        patchJump(endJump, null);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = chunk.count();
+        compile(stmt.condition);
+        int exitJump = emitJump(OpCode.POP_JUMP_IF_FALSE, null);
+        compile(stmt.body);
+        emitLoop(loopStart);
+        patchJump(exitJump, null);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) {
+            compile(stmt.value);
+        } else {
+            emit(OpCode.NIL, null);
+        }
+        emit(OpCode.RETURN, null);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        boolean hasFrame = stmt.hasFrame();
+        if (hasFrame) {
+            emit(OpCode.PUSH_SCOPE, null);
+            emitShort(stmt.slotCount, null);
+        }
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        if (hasFrame) {
+            emit(OpCode.POP_SCOPE, null);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        if (stmt.isBoxed) {
+            emitCell(stmt.slot, stmt.name);
+        } else {
+            emit(OpCode.NIL, stmt.name);
+            emitDefine(stmt.slot, false, stmt.name.lexeme(), stmt.name);
+        }
+
+        if (stmt.superclass != null) {
+            compile(stmt.superclass);
+            emit(OpCode.PUSH_SCOPE, stmt.superclass.name);
+            emitShort(1, stmt.superclass.name);
+            emit(OpCode.SET_LOCAL, stmt.superclass.name);
+            emitShort(0, stmt.superclass.name);
+            emit(OpCode.POP, stmt.superclass.name);
+        }
+
+        emit(OpCode.CLASS, stmt.name);
+        emitShort(constant(stmt.name.lexeme(), stmt.name), stmt.name);
+        if (stmt.superclass != null) {
+            emitGet(0, 0, stmt.superclass.name);
+            emit(OpCode.INHERIT, stmt.superclass.name);
+        }
+
+        // Statics first: an instance method of the same name shadows them.
+        for (Stmt.Function method : stmt.methods) {
+            if (method.isStatic()) compileMethod(stmt, method);
+        }
+        for (Stmt.Function method : stmt.methods) {
+            if (!method.isStatic()) compileMethod(stmt, method);
+        }
+
+        if (stmt.superclass != null) {
+                emit(OpCode.POP_SCOPE, stmt.name);
+        }
+        emitDefine(stmt.slot, stmt.isBoxed, stmt.name.lexeme(), stmt.name);
+        return null;
+    }
+
+    private void compileMethod(Stmt.Class stmt, Stmt.Function method) {
+        VmFunction function = function(method.name, method.params.size(), method.frameSize, method.thisSlot,
+                method.captures, method.boxedParams, method.body);
+        emit(OpCode.CLOSURE, stmt.name);
+        emitShort(constant(function, stmt.name), stmt.name);
+        emit(OpCode.METHOD, stmt.name);
+        emitShort(constant(method.name, stmt.name), stmt.name);
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        if (stmt.isBoxed) {
+            emitCell(stmt.slot, null);
+        }
+        VmFunction function = function(stmt.name, stmt.params.size(), stmt.frameSize, -1, stmt.captures,
+                stmt.boxedParams, stmt.body);
+        emit(OpCode.CLOSURE, null);
+        emitShort(constant(function, null), null);
+        emitDefine(stmt.slot, stmt.isBoxed, stmt.name, null);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emit(OpCode.PRINT, null);
+        return null;
+    }
+
+    private VmFunction function(String name, int arity, int frameSize, int thisSlot, List<Capture> captures,
+                                int[] boxedParams, List<Stmt> body) {
+        Chunk enclosingChunk = chunk;
+        int enclosingDepth = stackDepth;
+        int enclosingMax = maxStack;
+        chunk = new Chunk();
+        stackDepth = 0;
+        maxStack = 0;
+
+        for (Stmt statement : body) {
+            compile(statement);
+        }
+        emit(OpCode.NIL, null);
+        emit(OpCode.RETURN, null);
+        VmFunction function = new VmFunction(name, arity, frameSize, thisSlot, captures, boxedParams, maxStack, chunk);
+
+        chunk = enclosingChunk;
+        stackDepth = enclosingDepth;
+        maxStack = enclosingMax;
+        return function;
+    }
+
+    private void compile(Stmt statement) {
+        statement.accept(this);
+    }
+
+    private void compile(Expr expression) {
+        expression.accept(this);
+    }
+
+    private void compileArguments(List<Expr> arguments) {
+        for (Expr argument : arguments) {
+            compile(argument);
+        }
+    }
+
+    private void emitGet(Expr.Resolvable expr, Token name) {
+        if (!expr.isLocal()) {
+            emit(OpCode.GET_GLOBAL, name);
+            emitShort(constant(name, name), name);
+            return;
+        }
+        if (expr.isBoxed) {
+            emit(OpCode.GET_BOXED, name);
+            emitByte(expr.depth, name);
+            emitShort(expr.slot, name);
+            return;
+        }
+        emitGet(expr.depth, expr.slot, name);
+    }
+
+    private void emitGet(int depth, int slot, Token token) {
+        if (depth == 0) {
+            emit(OpCode.GET_LOCAL, token);
+            emitShort(slot, token);
+        } else {
+            emit(OpCode.GET_UPPER, token);
+            emitByte(depth, token);
+            emitShort(slot, token);
+        }
+    }
+
+    /** Stores a new cell in the slot of a boxed variable before its value is computed. */
+    private void emitCell(int slot, Token token) {
+        emit(OpCode.CELL, token);
+        emitShort(slot, token);
+    }
+
+    private void emitDefine(int slot, boolean isBoxed, String name, Token token) {
+        if (isBoxed) {
+            emit(OpCode.SET_BOXED, token);
+            emitByte(0, token);
+            emitShort(slot, token);
+            emit(OpCode.POP, token);
+        } else if (slot >= 0) {
+            emit(OpCode.SET_LOCAL, token);
+            emitShort(slot, token);
+            emit(OpCode.POP, token);
+        } else {
+            emit(OpCode.DEFINE_GLOBAL, token);
+            emitShort(constant(name, token), token);
+        }
+    }
+
+    private void emit(byte op, Token token) {
+        chunk.write(op, token);
+        adjustStack(stackEffect(op));
+    }
+
+    private void emitByte(int value, Token token) {
+        if (value > 0xff) {
+            error(token, "Operand too large.");
+        }
+        chunk.write(value, token);
+    }
+
+    private void emitShort(int value, Token token) {
+        if (value > MAX_U16) {
+            error(token, "Operand too large.");
+        }
+        chunk.write((value >> 8) & 0xff, token);
+        chunk.write(value & 0xff, token);
+    }
+
+    private int emitJump(byte op, Token token) {
+        emit(op, token);
+        chunk.write(0xff, token);
+        chunk.write(0xff, token);
+        return chunk.count() - 2;
+    }
+
+    private void patchJump(int offset, Token token) {
+        int jump = chunk.count() - offset - 2;
+        if (jump > MAX_U16) {
+            error(token, "Too much code to jump over.");
+        }
+        chunk.patch(offset, (jump >> 8) & 0xff);
+        chunk.patch(offset + 1, jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart) {
+        emit(OpCode.LOOP, null);
+        int offset = chunk.count() - loopStart + 2;
+        if (offset > MAX_U16) {
+            error(null, "Loop body too large.");
+        }
+        chunk.write((offset >> 8) & 0xff, null);
+        chunk.write(offset & 0xff, null);
+    }
+
+    private int constant(Object value, Token token) {
+        int index = chunk.addConstant(value);
+        if (index > MAX_U16) {
+            error(token, "Too many constants in one function.");
+        }
+        return index;
+    }
+
+    private void adjustStack(int effect) {
+        stackDepth += effect;
+        if (stackDepth > maxStack) {
+            maxStack = stackDepth;
+        }
+    }
+
+    private void error(Token token, String message) {
+        if (token != null) {
+            TinyLang.error(token, message);
+        } else {
+            TinyLang.error(message);
+        }
+        hadError = true;
+    }
+
+    private static int stackEffect(byte op) {
+        return switch (op) {
+            case OpCode.CONSTANT, OpCode.NIL, OpCode.TRUE, OpCode.FALSE,
+                 OpCode.GET_LOCAL, OpCode.GET_UPPER, OpCode.GET_GLOBAL, OpCode.GET_BOXED,
+                 OpCode.CLOSURE, OpCode.CLASS -> 1;
+            case OpCode.POP, OpCode.DEFINE_GLOBAL, OpCode.SET_PROPERTY, OpCode.GET_SUPER,
+                 OpCode.EQUAL, OpCode.NOT_EQUAL, OpCode.GREATER, OpCode.GREATER_EQUAL,
+                 OpCode.LESS, OpCode.LESS_EQUAL, OpCode.ADD, OpCode.SUBTRACT,
+                 OpCode.MULTIPLY, OpCode.DIVIDE, OpCode.POWER, OpCode.PRINT,
+                 OpCode.POP_JUMP_IF_FALSE, OpCode.RETURN, OpCode.INHERIT,
+                 OpCode.METHOD, OpCode.SUPER_INVOKE -> -1;
+            default -> 0;
+        };
+    }
+}
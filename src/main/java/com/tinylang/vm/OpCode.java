@@ -0,0 +1,73 @@
+package com.tinylang.vm;
+
+/**
+ * Instruction set of the TinyLang virtual machine. Every instruction is one
+ * byte, followed by its operands; two-byte operands are stored big-endian.
+ */
+public final class OpCode {
+
+    // Constants and stack manipulation
+    public static final byte CONSTANT = 0;         // u16 constant
+    public static final byte NIL = 1;
+    public static final byte TRUE = 2;
+    public static final byte FALSE = 3;
+    public static final byte POP = 4;
+
+    // Variables
+    public static final byte GET_LOCAL = 5;        // u16 slot
+    public static final byte SET_LOCAL = 6;        // u16 slot
+    public static final byte GET_UPPER = 7;        // u8 depth, u16 slot
+    public static final byte SET_UPPER = 8;        // u8 depth, u16 slot
+    public static final byte GET_GLOBAL = 9;       // u16 constant (name token)
+    public static final byte SET_GLOBAL = 10;      // u16 constant (name token)
+    public static final byte DEFINE_GLOBAL = 11;   // u16 constant (name)
+
+    // Properties
+    public static final byte GET_PROPERTY = 12;    // u16 constant (name token)
+    public static final byte SET_PROPERTY = 13;    // u16 constant (name token)
+    public static final byte GET_SUPER = 14;       // u16 constant (name token)
+
+    // Operators
+    public static final byte EQUAL = 15;
+    public static final byte NOT_EQUAL = 16;
+    public static final byte GREATER = 17;
+    public static final byte GREATER_EQUAL = 18;
+    public static final byte LESS = 19;
+    public static final byte LESS_EQUAL = 20;
+    public static final byte ADD = 21;
+    public static final byte SUBTRACT = 22;
+    public static final byte MULTIPLY = 23;
+    public static final byte DIVIDE = 24;
+    public static final byte POWER = 25;
+    public static final byte NOT = 26;
+    public static final byte NEGATE = 27;
+
+    // Statements and control flow
+    public static final byte PRINT = 28;
+    public static final byte JUMP = 29;            // u16 forward offset
+    public static final byte JUMP_IF_FALSE = 30;   // u16 forward offset, keeps the condition
+    public static final byte JUMP_IF_TRUE = 31;    // u16 forward offset, keeps the condition
+    public static final byte POP_JUMP_IF_FALSE = 32; // u16 forward offset
+    public static final byte LOOP = 33;            // u16 backward offset
+    public static final byte PUSH_SCOPE = 34;      // u16 frame size
+    public static final byte POP_SCOPE = 35;
+
+    // Functions and classes
+    public static final byte CALL = 36;            // u8 argument count
+    public static final byte INVOKE = 37;          // u16 constant (name token), u8 argument count
+    public static final byte CLOSURE = 38;         // u16 constant (function)
+    public static final byte RETURN = 39;
+    public static final byte CLASS = 40;           // u16 constant (name)
+    public static final byte INHERIT = 41;
+    public static final byte METHOD = 42;          // u16 constant (name)
+    public static final byte GET_SUPER_METHOD = 43; // u16 constant (name token)
+    public static final byte SUPER_INVOKE = 44;    // u8 argument count
+
+    // Variables closures capture, whose slots hold a cell
+    public static final byte CELL = 45;            // u16 slot
+    public static final byte GET_BOXED = 46;       // u8 depth, u16 slot
+    public static final byte SET_BOXED = 47;       // u8 depth, u16 slot
+
+    private OpCode() {
+    }
+}
@@ -0,0 +1,459 @@
+package com.tinylang.vm;
+
+import com.tinylang.Cell;
+import com.tinylang.Environment;
+import com.tinylang.Global;
+import com.tinylang.TinyLang;
+import com.tinylang.ast.Expr;
+import com.tinylang.ast.Stmt;
+import com.tinylang.error.RuntimeError;
+import com.tinylang.token.Token;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static com.tinylang.util.Values.isEqual;
+import static com.tinylang.util.Values.isTruthy;
+import static com.tinylang.util.Values.stringify;
+
+/**
+ * Stack-based bytecode interpreter. Operands and temporaries live on a single
+ * value stack, variables live in the same slot-indexed {@link Environment}
+ * frames the tree-walker uses, and TinyLang calls push {@link CallFrame}s
+ * instead of recursing on the Java stack. A call whose result is returned
+ * right away replaces the frame that makes it, so tail calls take no stack.
+ */
+public class VM {
+
+    private static final int FRAMES_MAX = 4096;
+
+    private final Environment globals = new Environment();
+    private Object[] stack = new Object[256];
+    private int sp = 0;
+    private final CallFrame[] frames = new CallFrame[FRAMES_MAX];
+    private int frameCount = 0;
+
+    public void interpret(List<Stmt> statements) {
+        Compiler compiler = new Compiler();
+        VmFunction script = compiler.compile(statements);
+        if (compiler.hadError()) return;
+        execute(script);
+    }
+
+    public void interpret(Expr expression) {
+        Compiler compiler = new Compiler();
+        VmFunction script = compiler.compileExpression(expression);
+        if (compiler.hadError()) return;
+        execute(script);
+    }
+
+    private void execute(VmFunction script) {
+        try {
+            sp = 0;
+            frameCount = 0;
+            stack[sp++] = new VmClosure(script, null);
+            pushFrame(script, null, 0, null, null);
+            run();
+        } catch (RuntimeError e) {
+            TinyLang.runtimeError(e);
+        } finally {
+            Arrays.fill(stack, null);
+            sp = 0;
+            frameCount = 0;
+        }
+    }
+
+    private void run() {
+        CallFrame frame = frames[frameCount - 1];
+        byte[] code = frame.function.code;
+        Object[] constants = frame.function.constants;
+        Environment environment = frame.environment;
+        Object[] stack = this.stack;
+        int ip = frame.ip;
+        int sp = this.sp;
+
+        while (true) {
+            byte op = code[ip++];
+            switch (op) {
+                case OpCode.CONSTANT -> {
+                    stack[sp++] = constants[readShort(code, ip)];
+                    ip += 2;
+                }
+                case OpCode.NIL -> stack[sp++] = null;
+                case OpCode.TRUE -> stack[sp++] = Boolean.TRUE;
+                case OpCode.FALSE -> stack[sp++] = Boolean.FALSE;
+                case OpCode.POP -> sp--;
+                case OpCode.GET_LOCAL -> {
+                    stack[sp++] = environment.getAt(0, readShort(code, ip));
+                    ip += 2;
+                }
+                case OpCode.SET_LOCAL -> {
+                    environment.define(readShort(code, ip), stack[sp - 1]);
+                    ip += 2;
+                }
+                case OpCode.GET_UPPER -> {
+                    stack[sp++] = environment.getAt(code[ip] & 0xff, readShort(code, ip + 1));
+                    ip += 3;
+                }
+                case OpCode.SET_UPPER -> {
+                    environment.assignAt(code[ip] & 0xff, readShort(code, ip + 1), stack[sp - 1]);
+                    ip += 3;
+                }
+                case OpCode.CELL -> {
+                    environment.define(readShort(code, ip), new Cell(null));
+                    ip += 2;
+                }
+                case OpCode.GET_BOXED -> {
+                    stack[sp++] = environment.getBoxedAt(code[ip] & 0xff, readShort(code, ip + 1));
+                    ip += 3;
+                }
+                case OpCode.SET_BOXED -> {
+                    environment.assignBoxedAt(code[ip] & 0xff, readShort(code, ip + 1), stack[sp - 1]);
+                    ip += 3;
+                }
+                case OpCode.GET_GLOBAL -> {
+                    int index = readShort(code, ip);
+                    ip += 2;
+                    stack[sp++] = global(frame.function, index).get((Token) constants[index]);
+                }
+                case OpCode.SET_GLOBAL -> {
+                    int index = readShort(code, ip);
+                    ip += 2;
+                    global(frame.function, index).assign((Token) constants[index], stack[sp - 1]);
+                }
+                case OpCode.DEFINE_GLOBAL -> {
+                    globals.define((String) constants[readShort(code, ip)], stack[--sp]);
+                    ip += 2;
+                }
+                case OpCode.GET_PROPERTY -> {
+                    Token name = (Token) constants[readShort(code, ip)];
+                    ip += 2;
+                    stack[sp - 1] = getProperty(stack[sp - 1], name);
+                }
+                case OpCode.SET_PROPERTY -> {
+                    Token name = (Token) constants[readShort(code, ip)];
+                    ip += 2;
+                    if (!(stack[sp - 2] instanceof VmInstance instance)) {
+                        throw new RuntimeError(name, "Only instances have fields.");
+                    }
+                    Object value = stack[--sp];
+                    instance.set(name.lexeme(), value);
+                    stack[sp - 1] = value;
+                }
+                case OpCode.GET_SUPER -> {
+                    Token name = (Token) constants[readShort(code, ip)];
+                    ip += 2;
+                    VmClass superclass = (VmClass) stack[--sp];
+                    VmClosure method = superclass.findMethod(name.lexeme());
+                    if (method == null) {
+                        throw new RuntimeError(name, "Undefined superclass method '" + name.lexeme() + "'.");
+                    }
+                    stack[sp - 1] = new VmBoundMethod((VmInstance) stack[sp - 1], method);
+                }
+                case OpCode.GET_SUPER_METHOD -> {
+                    Token name = (Token) constants[readShort(code, ip)];
+                    ip += 2;
+                    VmClosure method = ((VmClass) stack[sp - 1]).findMethod(name.lexeme());
+                    if (method == null) {
+                        throw new RuntimeError(name, "Undefined superclass method '" + name.lexeme() + "'.");
+                    }
+                    stack[sp - 1] = method;
+                }
+                case OpCode.EQUAL -> {
+                    Object right = stack[--sp];
+                    stack[sp - 1] = isEqual(stack[sp - 1], right);
+                }
+                case OpCode.NOT_EQUAL -> {
+                    Object right = stack[--sp];
+                    stack[sp - 1] = !isEqual(stack[sp - 1], right);
+                }
+                case OpCode.GREATER -> {
+                    if (stack[sp - 2] instanceof Double a && stack[sp - 1] instanceof Double b) {
+                        sp--;
+                        stack[sp - 1] = a > b;
+                    } else throw operandsError(frame.function, ip);
+                }
+                case OpCode.GREATER_EQUAL -> {
+                    if (stack[sp - 2] instanceof Double a && stack[sp - 1] instanceof Double b) {
+                        sp--;
+                        stack[sp - 1] = a >= b;
+                    } else throw operandsError(frame.function, ip);
+                }
+                case OpCode.LESS -> {
+                    if (stack[sp - 2] instanceof Double a && stack[sp - 1] instanceof Double b) {
+                        sp--;
+                        stack[sp - 1] = a < b;
+                    } else throw operandsError(frame.function, ip);
+                }
+                case OpCode.LESS_EQUAL -> {
+                    if (stack[sp - 2] instanceof Double a && stack[sp - 1] instanceof Double b) {
+                        sp--;
+                        stack[sp - 1] = a <= b;
+                    } else throw operandsError(frame.function, ip);
+                }
+                case OpCode.ADD -> {
+                    Object left = stack[sp - 2];
+                    Object right = stack[sp - 1];
+                    if (left instanceof String || right instanceof String) {
+                        sp--;
+                        stack[sp - 1] = String.valueOf(left) + String.valueOf(right);
+                    } else if (left instanceof Double a && right instanceof Double b) {
+                        sp--;
+                        stack[sp - 1] = a + b;
+                    } else throw operandsError(frame.function, ip);
+                }
+                case OpCode.SUBTRACT -> {
+                    if (stack[sp - 2] instanceof Double a && stack[sp - 1] instanceof Double b) {
+                        sp--;
+                        stack[sp - 1] = a - b;
+                    } else throw operandsError(frame.function, ip);
+                }
+                case OpCode.MULTIPLY -> {
+                    if (stack[sp - 2] instanceof Double a && stack[sp - 1] instanceof Double b) {
+                        sp--;
+                        stack[sp - 1] = a * b;
+                    } else throw operandsError(frame.function, ip);
+                }
+                case OpCode.DIVIDE -> {
+                    if (stack[sp - 2] instanceof Double a && stack[sp - 1] instanceof Double b) {
+                        if (b == 0) {
+                            throw new RuntimeError(frame.function.tokens[ip - 1], "Division by zero.");
+                        }
+                        sp--;
+                        stack[sp - 1] = a / b;
+                    } else throw operandsError(frame.function, ip);
+                }
+                case OpCode.POWER -> {
+                    if (stack[sp - 2] instanceof Double a && stack[sp - 1] instanceof Double b) {
+                        sp--;
+                        stack[sp - 1] = Math.pow(a, b);
+                    } else throw operandsError(frame.function, ip);
+                }
+                case OpCode.NOT -> stack[sp - 1] = !isTruthy(stack[sp - 1]);
+                case OpCode.NEGATE -> {
+                    if (!(stack[sp - 1] instanceof Double a)) {
+                        Token operator = frame.function.tokens[ip - 1];
+                        throw new RuntimeError(operator, "Operand of '" + operator + "' must be a number.");
+                    }
+                    stack[sp - 1] = -a;
+                }
+                case OpCode.PRINT -> {
+                    System.out.println(stringify(stack[--sp]));
+                }
+                case OpCode.JUMP -> ip += readShort(code, ip) + 2;
+                case OpCode.JUMP_IF_FALSE -> {
+                    if (isTruthy(stack[sp - 1])) ip += 2;
+                    else ip += readShort(code, ip) + 2;
+                }
+                case OpCode.JUMP_IF_TRUE -> {
+                    if (isTruthy(stack[sp - 1])) ip += readShort(code, ip) + 2;
+                    else ip += 2;
+                }
+                case OpCode.POP_JUMP_IF_FALSE -> {
+                    Object condition = stack[--sp];
+                    if (isTruthy(condition)) ip += 2;
+                    else ip += readShort(code, ip) + 2;
+                }
+                case OpCode.LOOP -> ip -= readShort(code, ip) - 2;
+                case OpCode.PUSH_SCOPE -> {
+                    environment = new Environment(environment, readShort(code, ip));
+                    ip += 2;
+                }
+                case OpCode.POP_SCOPE -> environment = environment.enclosing();
+                case OpCode.CALL, OpCode.INVOKE, OpCode.SUPER_INVOKE -> {
+                    Token paren = frame.function.tokens[ip - 1];
+                    frame.environment = environment;
+                    if (code[op == OpCode.INVOKE ? ip + 3 : ip + 1] == OpCode.RETURN && frame.constructing == null) {
+                        // A tail call: the callee takes the caller's place and returns to its caller.
+                        int count = (code[op == OpCode.INVOKE ? ip + 2 : ip] & 0xff) + (op == OpCode.SUPER_INVOKE ? 2 : 1);
+                        System.arraycopy(stack, sp - count, stack, frame.base, count);
+                        sp = frame.base + count;
+                        frameCount--;
+                    }
+                    this.sp = sp;
+                    if (op == OpCode.CALL) {
+                        int argCount = code[ip] & 0xff;
+                        frame.ip = ip + 1;
+                        callValue(stack[sp - argCount - 1], argCount, paren);
+                    } else if (op == OpCode.SUPER_INVOKE) {
+                        int argCount = code[ip] & 0xff;
+                        frame.ip = ip + 1;
+                        superInvoke(argCount, paren);
+                    } else {
+                        Token name = (Token) constants[readShort(code, ip)];
+                        frame.ip = ip + 3;
+                        invoke(name, code[ip + 2] & 0xff, paren);
+                    }
+                    frame = frames[frameCount - 1];
+                    code = frame.function.code;
+                    constants = frame.function.constants;
+                    environment = frame.environment;
+                    stack = this.stack;
+                    ip = frame.ip;
+                    sp = this.sp;
+                }
+                case OpCode.CLOSURE -> {
+                    VmFunction function = (VmFunction) constants[readShort(code, ip)];
+                    stack[sp++] = new VmClosure(function, Environment.capture(environment, function.captures));
+                    ip += 2;
+                }
+                case OpCode.RETURN -> {
+                    Object result = stack[sp - 1];
+                    frameCount--;
+                    sp = frame.base;
+                    if (frameCount == 0) {
+                        this.sp = sp;
+                        return;
+                    }
+                    stack[sp++] = frame.constructing != null ? frame.constructing : result;
+                    frame = frames[frameCount - 1];
+                    code = frame.function.code;
+                    constants = frame.function.constants;
+                    environment = frame.environment;
+                    ip = frame.ip;
+                }
+                case OpCode.CLASS -> {
+                    stack[sp++] = new VmClass((String) constants[readShort(code, ip)]);
+                    ip += 2;
+                }
+                case OpCode.INHERIT -> {
+                    Object superclass = stack[--sp];
+                    if (!(superclass instanceof VmClass parent)) {
+                        throw new RuntimeError(frame.function.tokens[ip - 1], "Superclass must be a class.");
+                    }
+                    ((VmClass) stack[sp - 1]).inherit(parent);
+                }
+                case OpCode.METHOD -> {
+                    String name = (String) constants[readShort(code, ip)];
+                    ip += 2;
+                    VmClosure method = (VmClosure) stack[--sp];
+                    ((VmClass) stack[sp - 1]).addMethod(name, method);
+                }
+                default -> throw new IllegalStateException("Unknown opcode " + op);
+            }
+        }
+    }
+
+    private Object getProperty(Object object, Token name) {
+        if (object instanceof VmInstance instance) {
+            int slot = instance.slot(name.lexeme());
+            if (slot >= 0) {
+                return instance.get(slot);
+            }
+            VmClosure method = instance.klass.findMethod(name.lexeme());
+            if (method != null) {
+                return new VmBoundMethod(instance, method);
+            }
+            throw new RuntimeError(name, "Undefined property '" + name.lexeme() + "'.");
+        }
+        if (object instanceof VmClass klass) {
+            return klass.findMethod(name.lexeme());
+        }
+        throw new RuntimeError(name, "Only instances have properties.");
+    }
+
+    /**
+     * Calls {@code receiver.name(...)} without materializing a bound method
+     * when the name refers to a method of an instance's class.
+     */
+    private void invoke(Token name, int argCount, Token paren) {
+        int slot = sp - argCount - 1;
+        if (stack[slot] instanceof VmInstance instance && instance.slot(name.lexeme()) < 0) {
+            VmClosure method = instance.klass.findMethod(name.lexeme());
+            if (method == null) {
+                throw new RuntimeError(name, "Undefined property '" + name.lexeme() + "'.");
+            }
+            call(method, instance, argCount, paren, null);
+            return;
+        }
+        stack[slot] = getProperty(stack[slot], name);
+        callValue(stack[slot], argCount, paren);
+    }
+
+    /**
+     * Calls the superclass method below the arguments with the receiver below
+     * it as {@code this}. The arguments move down one slot so the result
+     * lands where the receiver was.
+     */
+    private void superInvoke(int argCount, Token paren) {
+        int slot = sp - argCount - 2;
+        VmInstance receiver = (VmInstance) stack[slot];
+        VmClosure method = (VmClosure) stack[slot + 1];
+        System.arraycopy(stack, slot + 2, stack, slot + 1, argCount);
+        sp--;
+        call(method, receiver, argCount, paren, null);
+    }
+
+    private void callValue(Object callee, int argCount, Token paren) {
+        if (callee instanceof VmClosure closure) {
+            call(closure, null, argCount, paren, null);
+        } else if (callee instanceof VmBoundMethod bound) {
+            call(bound.method, bound.receiver, argCount, paren, null);
+        } else if (callee instanceof VmClass klass) {
+            VmInstance instance = new VmInstance(klass);
+            VmClosure initializer = klass.initializer();
+            if (initializer != null) {
+                call(initializer, instance, argCount, paren, instance);
+            } else if (argCount != 0) {
+                throw new RuntimeError(paren, "Expected 0 arguments but got " + argCount + ".");
+            } else {
+                stack[sp - 1] = instance;
+            }
+        } else {
+            throw new RuntimeError(paren, "Can only call functions and classes.");
+        }
+    }
+
+    /** The cell of the global a constant of the function names, linked the first time it is used. */
+    private Global global(VmFunction function, int index) {
+        Global global = function.globals[index];
+        if (global == null) {
+            global = globals.global(((Token) function.constants[index]).lexeme());
+            function.globals[index] = global;
+        }
+        return global;
+    }
+
+    /**
+     * Calls {@code closure} with the arguments on top of the stack; a method
+     * gets {@code receiver} stored into its frame as {@code this}.
+     */
+    private void call(VmClosure closure, VmInstance receiver, int argCount, Token paren, VmInstance constructing) {
+        VmFunction function = closure.function;
+        if (argCount != function.arity) {
+            throw new RuntimeError(paren, "Expected " + function.arity + " arguments but got " + argCount + ".");
+        }
+        Environment environment = new Environment(closure.environment, function.frameSize);
+        int base = sp - argCount - 1;
+        for (int i = 0; i < argCount; i++) {
+            environment.define(i, stack[base + 1 + i]);
+        }
+        for (int slot : function.boxedParams) {
+            environment.box(slot);
+        }
+        if (function.thisSlot >= 0) {
+            environment.define(function.thisSlot, receiver);
+        }
+        sp = base;
+        pushFrame(function, environment, base, constructing, paren);
+    }
+
+    private void pushFrame(VmFunction function, Environment environment, int base, VmInstance constructing, Token paren) {
+        if (frameCount == FRAMES_MAX) {
+            throw new RuntimeError(paren, "Stack overflow.");
+        }
+        if (sp + function.maxStack + 1 > stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(stack.length * 2, sp + function.maxStack + 1));
+        }
+        frames[frameCount++] = new CallFrame(function, environment, base, constructing);
+    }
+
+    private static RuntimeError operandsError(VmFunction function, int ip) {
+        Token operator = function.tokens[ip - 1];
+        return new RuntimeError(operator, "Operands of '" + operator + "' must be numbers.");
+    }
+
+    private static int readShort(byte[] code, int offset) {
+        return ((code[offset] & 0xff) << 8) | (code[offset + 1] & 0xff);
+    }
+}
@@ -0,0 +1,17 @@
+package com.tinylang.vm;
+
+public class VmBoundMethod {
+
+    final VmInstance receiver;
+    final VmClosure method;
+
+    VmBoundMethod(VmInstance receiver, VmClosure method) {
+        this.receiver = receiver;
+        this.method = method;
+    }
+
+    @Override
+    public String toString() {
+        return method.toString();
+    }
+}
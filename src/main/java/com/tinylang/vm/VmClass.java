@@ -0,0 +1,46 @@
+package com.tinylang.vm;
+
+import com.tinylang.Shape;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class VmClass {
+
+    final String name;
+    final Shape instanceShape = new Shape();
+    // Inherited methods are copied in before the class's own are added, and
+    // the compiler adds static methods before instance ones, so later entries
+    // take precedence exactly as a walk up the hierarchy would give.
+    private final Map<String, VmClosure> methods = new HashMap<>();
+    private VmClosure initializer;
+
+    VmClass(String name) {
+        this.name = name;
+    }
+
+    void inherit(VmClass superclass) {
+        methods.putAll(superclass.methods);
+        initializer = superclass.initializer;
+    }
+
+    void addMethod(String name, VmClosure method) {
+        methods.put(name, method);
+        if (name.equals("init")) {
+            initializer = method;
+        }
+    }
+
+    VmClosure findMethod(String name) {
+        return methods.get(name);
+    }
+
+    VmClosure initializer() {
+        return initializer;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,19 @@
+package com.tinylang.vm;
+
+import com.tinylang.Environment;
+
+public class VmClosure {
+
+    final VmFunction function;
+    final Environment environment;
+
+    VmClosure(VmFunction function, Environment environment) {
+        this.function = function;
+        this.environment = environment;
+    }
+
+    @Override
+    public String toString() {
+        return function.toString();
+    }
+}
@@ -0,0 +1,51 @@
+package com.tinylang.vm;
+
+import com.tinylang.Global;
+import com.tinylang.ast.Capture;
+import com.tinylang.token.Token;
+
+import java.util.List;
+
+/**
+ * A compiled function body. Parameters occupy the first slots of the frame
+ * created for each call, followed by the receiver for methods
+ * ({@code thisSlot} is -1 otherwise); {@code maxStack} is the deepest the
+ * operand stack can grow while the body runs. A closure of the function
+ * holds the {@code captures} of the frame it is created in, and a call
+ * boxes the {@code boxedParams} before the body runs.
+ */
+public class VmFunction {
+
+    final String name;
+    final int arity;
+    final int frameSize;
+    final int thisSlot;
+    final List<Capture> captures;
+    final int[] boxedParams;
+    final int maxStack;
+    final byte[] code;
+    final Token[] tokens;
+    final Object[] constants;
+    // The cells of the globals GET_GLOBAL and SET_GLOBAL name, by constant index, linked on first use.
+    final Global[] globals;
+
+    VmFunction(String name, int arity, int frameSize, int thisSlot, List<Capture> captures, int[] boxedParams,
+               int maxStack, Chunk chunk) {
+        this.name = name;
+        this.arity = arity;
+        this.frameSize = frameSize;
+        this.thisSlot = thisSlot;
+        this.captures = captures;
+        this.boxedParams = boxedParams;
+        this.maxStack = maxStack;
+        this.code = chunk.code();
+        this.tokens = chunk.tokens();
+        this.constants = chunk.constants();
+        this.globals = new Global[constants.length];
+    }
+
+    @Override
+    public String toString() {
+        return "<fn " + name + ">";
+    }
+}
@@ -0,0 +1,40 @@
+package com.tinylang.vm;
+
+import com.tinylang.Shape;
+
+public class VmInstance {
+
+    final VmClass klass;
+    private Shape shape;
+    private Object[] values;
+
+    VmInstance(VmClass klass) {
+        this.klass = klass;
+        this.shape = klass.instanceShape;
+        this.values = shape.newValues();
+    }
+
+    /** Index of the field in this instance, or -1 if it has no such field. */
+    int slot(String name) {
+        return shape.slot(name);
+    }
+
+    Object get(int slot) {
+        return values[slot];
+    }
+
+    void set(String name, Object value) {
+        int slot = shape.slot(name);
+        if (slot < 0) {
+            shape = shape.withField(name);
+            values = shape.fit(values);
+            slot = shape.size() - 1;
+        }
+        values[slot] = value;
+    }
+
+    @Override
+    public String toString() {
+        return klass.name + " instance";
+    }
+}
@@ -0,0 +1,116 @@
+import com.tinylang.ast.Stmt;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClosureTest {
+
+    @Test
+    void testEachRunOfABlockCapturesItsOwnVariables() {
+        String source = """
+                let a = nil;
+                let b = nil;
+                for (let i = 0; i < 2; i = i + 1) {
+                  let j = i * 10;
+                  if (i == 0) a = fn() { return j; };
+                  else b = fn() { j = j + 1; return j; };
+                }
+                print a();
+                print b();
+                print b();
+                print a();
+                """;
+        assertEquals("0\n11\n12\n0\n", Programs.runEverywhere(source));
+    }
+
+    @Test
+    void testClosuresShareTheVariablesTheyCapture() {
+        String source = """
+                fn f() {
+                  let x = 1;
+                  let get = fn() { return x; };
+                  x = 2;
+                  let set = fn(v) { x = v; };
+                  print get();
+                  set(3);
+                  print get();
+                  print x;
+                }
+                f();
+                """;
+        assertEquals("2\n3\n3\n", Programs.runEverywhere(source));
+    }
+
+    @Test
+    void testCapturedParametersCanChange() {
+        String source = """
+                fn adder(n) {
+                  let add = fn(k) { n = n + k; return n; };
+                  add(1);
+                  return add(2) + n;
+                }
+                for (let i = 0; i < 3; i = i + 1) print adder(10);
+                """;
+        assertEquals("26\n26\n26\n", Programs.runEverywhere(source));
+    }
+
+    @Test
+    void testCountersAreIndependent() {
+        String source = """
+                fn counter() {
+                  let count = 0;
+                  return fn() { count = count + 1; return count; };
+                }
+                let c1 = counter();
+                let c2 = counter();
+                c1();
+                c1();
+                print c1();
+                print c2();
+                """;
+        assertEquals("3\n1\n", Programs.runEverywhere(source));
+    }
+
+    @Test
+    void testCapturesThroughAFunctionThatDoesNotUseTheVariable() {
+        String source = """
+                fn outer() {
+                  let unused = "u";
+                  let x = "x";
+                  fn middle() {
+                    fn inner() { return x; }
+                    return inner;
+                  }
+                  x = "y";
+                  return middle();
+                }
+                print outer()();
+                """;
+        assertEquals("y\n", Programs.runEverywhere(source));
+
+        List<Stmt> statements = Programs.parse(source);
+        Stmt.Function outer = (Stmt.Function) statements.getFirst();
+        Stmt.Function middle = (Stmt.Function) outer.body.get(2);
+        Stmt.Function inner = (Stmt.Function) middle.body.getFirst();
+        assertEquals(0, outer.captures.size());
+        assertEquals(1, middle.captures.size());
+        assertEquals(1, inner.captures.size());
+    }
+
+    @Test
+    void testClosuresInMethodsSeeTheInstance() {
+        String source = """
+                class Box {
+                  init(value) { this.value = value; }
+                  getter() { return fn() { return this.value; }; }
+                }
+                let box = Box(1);
+                let get = box.getter();
+                box.value = 2;
+                print get();
+                """;
+        assertEquals("2\n", Programs.runEverywhere(source));
+    }
+}
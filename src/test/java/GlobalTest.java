@@ -0,0 +1,103 @@
+import com.tinylang.Interpreter;
+import com.tinylang.ast.Stmt;
+import com.tinylang.jit.Jit;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GlobalTest {
+
+    @Test
+    void testFunctionsCanUseGlobalsDefinedLater() {
+        String source = """
+                fn f() { return g() + x; }
+                fn g() { return 1; }
+                let x = 2;
+                print f();
+                """;
+        assertEquals("3\n", Programs.runEverywhere(source));
+    }
+
+    @Test
+    void testUsingAGlobalBeforeItIsDefinedFails() {
+        assertEquals("Undefined variable 'x'.\n[line 1]\n",
+                Programs.runEverywhere("fn f() { return x; } print f(); let x = 1;"));
+        assertEquals("Undefined variable 'x'.\n[line 1]\n",
+                Programs.runEverywhere("fn f() { x = 2; } f(); let x = 1;"));
+        assertEquals("Undefined variable 'y'.\n[line 1]\n", Programs.runEverywhere("print y;"));
+    }
+
+    @Test
+    void testLinkedUsesSeeAssignments() {
+        String source = """
+                let x = 1;
+                fn get() { return x; }
+                fn set(v) { x = v; }
+                for (let i = 0; i < 5; i = i + 1) get();
+                x = 5;
+                print get();
+                set(7);
+                print x;
+                print get();
+                """;
+        assertEquals("5\n7\n7\n", Programs.runEverywhere(source));
+    }
+
+    @Test
+    void testRedefiningAGlobalReusesItsCell() {
+        String output = Programs.runEverywhere(
+                "let x = 1; fn f() { return x; } for (let i = 0; i < 5; i = i + 1) f();",
+                "print f();",
+                "let x = \"two\";",
+                "print f();",
+                "fn f() { return -x; }",
+                "x = 3;",
+                "print f();");
+        assertEquals("1\ntwo\n-3\n", output);
+    }
+
+    @Test
+    void testFailedReadsLinkOnceTheGlobalIsDefined() {
+        String output = Programs.runEverywhere(
+                "fn f() { return later; }",
+                "print f();",
+                "let later = \"now\";",
+                "print f();");
+        assertEquals("Undefined variable 'later'.\n[line 1]\nnow\n", output);
+    }
+
+    @Test
+    void testInlinedCallsSeeTheCalleeReassigned() {
+        String definitions = """
+                fn square(x) { return x * x; }
+                fn f(n) { return square(n) + 1; }
+                print f(3);
+                """;
+        assertEquals("10\n104\n",
+                Programs.runEverywhere(definitions, "square = fn(x) { return x + 100; };", "print f(3);"));
+        assertEquals("10\n0\n", Programs.runEverywhere(definitions, "fn square(x) { return -1; }", "print f(3);"));
+        assertEquals("10\nCan only call functions and classes.\n[line 2]\n",
+                Programs.runEverywhere(definitions, "square = \"s\";", "print f(3);"));
+        assertEquals("10\n10\n", Programs.runEverywhere(definitions, "let g = square;", "square = fn(x) { return 0; };",
+                "square = g;", "print f(3);"));
+    }
+
+    @Test
+    void testRunsOfTheSameTreeHaveTheirOwnGlobals() {
+        List<Stmt> statements = Programs.optimize("""
+                let x = 0;
+                fn bump() { x = x + 1; return x; }
+                for (let i = 0; i < 3; i = i + 1) bump();
+                print x;
+                """);
+        for (int run = 0; run < 2; run++) {
+            Interpreter interpreter = new Interpreter();
+            assertEquals("3\n", Programs.capture(() -> interpreter.interpret(statements)));
+            Interpreter jit = new Interpreter();
+            jit.setJit(new Jit(2));
+            assertEquals("3\n", Programs.capture(() -> jit.interpret(statements)));
+        }
+    }
+}
@@ -0,0 +1,195 @@
+import com.tinylang.Interpreter;
+import com.tinylang.ast.Stmt;
+import com.tinylang.jit.Jit;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JitTest {
+
+    private static final int THRESHOLD = 10;
+
+    /** Runs the program in the interpreter, with the JIT if one is given, and returns what it printed. */
+    private String run(String source, Jit jit) {
+        List<Stmt> statements = Programs.optimize(source);
+        Interpreter interpreter = new Interpreter();
+        interpreter.setJit(jit);
+        return Programs.capture(() -> interpreter.interpret(statements));
+    }
+
+    /**
+     * Runs the program with the JIT, checks that it printed what the
+     * interpreter alone prints, and returns that with the JIT's report.
+     */
+    private String compare(String source) {
+        Jit jit = new Jit(THRESHOLD);
+        String compiled = run(source, jit);
+        assertEquals(run(source, null), compiled);
+        ByteArrayOutputStream stats = new ByteArrayOutputStream();
+        jit.printStats(new PrintStream(stats));
+        return compiled + stats.toString().replace("\r\n", "\n");
+    }
+
+    @Test
+    void testLocalReadInItsOwnInitializerStaysBoxed() {
+        String source = """
+                fn f(n) {
+                  let x = x;
+                  if (x == nil) return n;
+                  return -1;
+                }
+                let sum = 0;
+                for (let i = 0; i < 30; i = i + 1) sum = sum + f(i);
+                print sum;
+                """;
+        String output = compare(source);
+        assertTrue(output.startsWith("435\n"), output);
+        assertTrue(output.contains("jit: compiled f\n"), output);
+    }
+
+    @Test
+    void testUnboxedLocalsFallBackWhenAssignedOtherValues() {
+        String source = """
+                fn f(n) {
+                  let a = n * 2;
+                  let b = a;
+                  if (n > 25) a = "big";
+                  return b + a;
+                }
+                for (let i = 20; i < 30; i = i + 1) f(i);
+                for (let i = 20; i < 30; i = i + 1) print f(i);
+                """;
+        String output = compare(source);
+        assertTrue(output.contains("\n100\n52.0big\n"), output);
+        assertTrue(output.contains("jit: compiled f\n"), output);
+    }
+
+    @Test
+    void testComparisonsWithNaNAndNegativeZero() {
+        String source = """
+                fn cmp(a, b) {
+                  let x = a * 1;
+                  let y = b * 1;
+                  let s = "";
+                  if (x < y) s = s + "<";
+                  if (x <= y) s = s + "l";
+                  if (x > y) s = s + ">";
+                  if (x >= y) s = s + "g";
+                  if (x == y) s = s + "=";
+                  if (x != y) s = s + "!";
+                  if (!(x < y)) s = s + "n";
+                  if (!(x > y)) s = s + "m";
+                  return s;
+                }
+                let inf = 10 ** 400;
+                let nan = inf - inf;
+                for (let i = 0; i < 20; i = i + 1) cmp(i, 10);
+                print cmp(nan, 1);
+                print cmp(1, nan);
+                print cmp(nan, nan);
+                print cmp(0, -0);
+                print cmp(-0, -0);
+                print cmp(1, 2);
+                """;
+        String output = compare(source);
+        assertTrue(output.startsWith("!nm\n!nm\n=nm\n"), output);
+        assertTrue(output.contains("jit: compiled cmp\n"), output);
+    }
+
+    @Test
+    void testOperandsAreCheckedAfterBothAreEvaluated() {
+        String source = """
+                fn side(n) { print "side " + n; return n; }
+                fn sub(a, b) { let d = a - side(b); return d; }
+                fn lt(a, b) { let c = side(a) < b; return c; }
+                for (let i = 0; i < 20; i = i + 1) { sub(i, 1); lt(i, 1); }
+                print "left";
+                sub(nil, 1);
+                """;
+        String output = compare(source);
+        assertTrue(output.contains("left\nside 1.0\nOperands of '"), output);
+        assertTrue(output.contains("jit: compiled sub\n"), output);
+
+        String right = """
+                fn side(n) { print "side"; return n; }
+                fn lt(a, b) { let c = side(a) < b; return c; }
+                for (let i = 0; i < 20; i = i + 1) lt(i, 1);
+                print "right";
+                lt(1, "s");
+                """;
+        output = compare(right);
+        assertTrue(output.contains("right\nside\nOperands of '"), output);
+        assertTrue(output.contains("jit: compiled lt\n"), output);
+    }
+
+    @Test
+    void testInitializerReturnsTheInstance() {
+        String source = """
+                class Point {
+                  init(x) {
+                    this.x = x;
+                    this.mark(x);
+                  }
+                  mark(x) {
+                    if (x > 15) return;
+                    this.small = true;
+                  }
+                }
+                let p = nil;
+                for (let i = 0; i < 20; i = i + 1) p = Point(i);
+                print p.x;
+                p.init(16);
+                print p.x;
+                print Point(2).small;
+                """;
+        String output = compare(source);
+        assertTrue(output.startsWith("19\n16\ntrue\n"), output);
+        assertTrue(output.contains("jit: compiled init\n"), output);
+    }
+
+    @Test
+    void testTailCallsOutOfCompiledCode() {
+        String source = """
+                fn count(n, acc) {
+                  if (n == 0) return acc;
+                  return count(n - 1, acc + 1);
+                }
+                fn isEven(n) { if (n == 0) return true; return isOdd(n - 1); }
+                fn isOdd(n) { if (n == 0) return false; return isEven(n - 1); }
+                print count(200000, 0);
+                print isEven(200001);
+                """;
+        String output = compare(source);
+        assertTrue(output.startsWith("200000\nfalse\n"), output);
+        assertTrue(output.contains("jit: compiled count\n"), output);
+        assertTrue(output.contains("jit: compiled isEven\n"), output);
+    }
+
+    @Test
+    void testBailouts() {
+        String source = """
+                fn closure(n) { let f = fn() { return n; }; return f(); }
+                fn named(n) { fn g() { return n; } return g(); }
+                fn local(n) { class C {} return n; }
+                class A { get() { return 1; } }
+                class B extends A { get() { return super.get() + 1; } }
+                let b = B();
+                let sum = 0;
+                for (let i = 0; i < 20; i = i + 1) {
+                  sum = sum + closure(i) + named(i) + local(i) + b.get();
+                }
+                print sum;
+                """;
+        String output = compare(source);
+        assertTrue(output.startsWith("610\n"), output);
+        assertTrue(output.contains("jit: interpreting closure: creates an anonymous function\n"), output);
+        assertTrue(output.contains("jit: interpreting named: declares a function\n"), output);
+        assertTrue(output.contains("jit: interpreting local: declares a class\n"), output);
+        assertTrue(output.contains("jit: interpreting get: uses 'super'\n"), output);
+        assertTrue(output.contains(", 4 rejected"), output);
+    }
+}
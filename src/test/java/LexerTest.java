@@ -4,6 +4,7 @@ import com.tinylang.token.TokenType;
 import org.junit.jupiter.api.Test;
 
 import java.util.List;
+import java.util.NoSuchElementException;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -121,4 +122,73 @@ class LexerTest {
         }
     }
 
-}
\ No newline at end of file
+    /** A source that remembers how far the lexer has read into it. */
+    private static final class WatchedSource implements CharSequence {
+        private final String text;
+        int furthest = -1;
+
+        WatchedSource(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public int length() {
+            return text.length();
+        }
+
+        @Override
+        public char charAt(int index) {
+            furthest = Math.max(furthest, index);
+            return text.charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return text.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    @Test
+    void testScansOnlyAsFarAsTheTokensAskedFor() {
+        WatchedSource source = new WatchedSource("let x = 1;\nprint x;\nprint \"end\";");
+        Lexer lexer = new Lexer(source);
+        assertTrue(lexer.hasNext());
+        assertEquals(TokenType.LET, lexer.next().type());
+        assertTrue(source.furthest < "let x".length(), "read up to " + source.furthest);
+        assertEquals("x", lexer.next().lexeme());
+        lexer.next();
+        assertEquals(1.0, lexer.next().literal());
+        assertTrue(source.furthest < "let x = 1;\n".length(), "read up to " + source.furthest);
+    }
+
+    @Test
+    void testIteratesTheSameTokensAsTheList() {
+        String source = "fn f(a) {\n  // note\n  return a ** 2 >= \"s\";\n}\nf(1.5);";
+        List<Token> listed = new Lexer(source).scanTokens();
+        Lexer lexer = new Lexer(source);
+        for (Token expected : listed) {
+            assertTrue(lexer.hasNext());
+            Token token = lexer.next();
+            assertEquals(expected, token);
+        }
+        assertEquals(TokenType.EOF, listed.getLast().type());
+        assertEquals(5, listed.getLast().line());
+        assertFalse(lexer.hasNext());
+        assertThrows(NoSuchElementException.class, lexer::next);
+    }
+
+    @Test
+    void testScanKeepsReturningEndOfFile() {
+        Lexer lexer = new Lexer("x");
+        int x = lexer.scan();
+        int eof = lexer.scan();
+        assertEquals(x + 1, eof);
+        assertEquals(eof, lexer.scan());
+        assertEquals(TokenType.EOF, lexer.tokens().type(eof));
+    }
+}
@@ -0,0 +1,356 @@
+import com.tinylang.Interpreter;
+import com.tinylang.ast.Expr;
+import com.tinylang.ast.Stmt;
+import com.tinylang.ast.Type;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OptimizerTest {
+
+    /** The expression {@code print} is left with after optimizing {@code print expression;}. */
+    private Expr printed(String expression) {
+        List<Stmt> statements = Programs.optimize("print " + expression + ";");
+        assertEquals(1, statements.size());
+        return assertInstanceOf(Stmt.Print.class, statements.getFirst()).expression;
+    }
+
+    /** The value {@code fn f(x) { return expression; }} is left returning after optimizing. */
+    private Expr returned(String expression) {
+        List<Stmt> statements = Programs.optimize("fn f(x) { let y = x; return " + expression + "; }");
+        Stmt.Function function = assertInstanceOf(Stmt.Function.class, statements.getFirst());
+        return assertInstanceOf(Stmt.Return.class, function.body.getLast()).value;
+    }
+
+    /** Runs the program, optimized or not, and returns what it printed. */
+    private String run(String source, boolean optimize) {
+        List<Stmt> statements = optimize ? Programs.optimize(source) : Programs.parse(source);
+        return Programs.capture(() -> new Interpreter().interpret(statements));
+    }
+
+    /** Runs the program optimized, checks that it printed what it prints unoptimized, and returns that. */
+    private String compare(String source) {
+        String optimized = run(source, true);
+        assertEquals(run(source, false), optimized);
+        return optimized;
+    }
+
+    @Test
+    void testFoldsConstantOperators() {
+        assertEquals(7.0, assertInstanceOf(Expr.LiteralExpr.class, printed("1 + 2 * 3")).value);
+        assertEquals("ab", assertInstanceOf(Expr.LiteralExpr.class, printed("\"a\" + \"b\"")).value);
+        assertEquals(false, assertInstanceOf(Expr.LiteralExpr.class, printed("!(1 < 2)")).value);
+        assertEquals(-4.0, assertInstanceOf(Expr.LiteralExpr.class, printed("-(2 * 2)")).value);
+        assertEquals(3.0, assertInstanceOf(Expr.LiteralExpr.class, printed("nil or 3")).value);
+    }
+
+    @Test
+    void testLeavesFailingOperationsToFailAtRuntime() {
+        assertInstanceOf(Expr.BinaryExpr.class, printed("\"s\" * 1"));
+        assertInstanceOf(Expr.BinaryExpr.class, printed("1 + nil"));
+        assertInstanceOf(Expr.UnaryExpr.class, printed("-\"s\""));
+        assertTrue(compare("print 1; print \"s\" * 1; print 2;").startsWith("1\nOperands of '"));
+        assertTrue(compare("fn f(x) { return x * 1; } print f(2); print f(\"s\");").startsWith("2\nOperands of '"));
+    }
+
+    @Test
+    void testNegativeZero() {
+        Expr sum = printed("-0 + 0");
+        Object value = assertInstanceOf(Expr.LiteralExpr.class, sum).value;
+        assertEquals(Double.doubleToRawLongBits(0.0), Double.doubleToRawLongBits((Double) value));
+        // x + 0 turns -0 into 0, so only x + -0 leaves x as it is.
+        assertInstanceOf(Expr.BinaryExpr.class, returned("(x * 2) + 0"));
+        assertInstanceOf(Expr.BinaryExpr.class, returned("-0 + (x * 2)"));
+        Expr.BinaryExpr product = assertInstanceOf(Expr.BinaryExpr.class, returned("(x * 2) + -0"));
+        assertEquals("*", product.operator.lexeme());
+        String signs = compare("""
+                fn f(x) { return x * 2 + 0; }
+                fn g(x) { return x * 2 + -0; }
+                print f(-0);
+                print g(-0);
+                """);
+        assertEquals("0\n-0\n", signs);
+    }
+
+    @Test
+    void testDropsIdentitiesOnlyForNumbers() {
+        Expr.BinaryExpr difference = assertInstanceOf(Expr.BinaryExpr.class, returned("(x - 1) * 1"));
+        assertEquals("-", difference.operator.lexeme());
+        assertEquals("-", assertInstanceOf(Expr.BinaryExpr.class, returned("1 * (x - 1)")).operator.lexeme());
+        assertEquals("*", assertInstanceOf(Expr.BinaryExpr.class, returned("(x * 3) / 1")).operator.lexeme());
+        assertEquals("*", assertInstanceOf(Expr.BinaryExpr.class, returned("(x * 3) - 0")).operator.lexeme());
+        // Nothing is known about x, which might be a string.
+        assertEquals("*", assertInstanceOf(Expr.BinaryExpr.class, returned("x * 1")).operator.lexeme());
+        assertEquals("-", assertInstanceOf(Expr.BinaryExpr.class, returned("y - 0")).operator.lexeme());
+    }
+
+    @Test
+    void testPrunesDeadCode() {
+        List<Stmt> statements = Programs.optimize("if (1 < 2) print 1; else print 2; while (nil) print 3;");
+        assertEquals(1, statements.size());
+        assertEquals(1.0, ((Expr.LiteralExpr) assertInstanceOf(Stmt.Print.class, statements.getFirst()).expression).value);
+        List<Stmt> body = assertInstanceOf(Stmt.Function.class,
+                Programs.optimize("fn f() { return 1; print 2; }").getFirst()).body;
+        assertEquals(1, body.size());
+        assertEquals("1\n", compare("fn f() { if (false) return 2; return 1; print 2; } print f();"));
+    }
+
+    /** The statements of the first function in the program after optimizing. */
+    private List<Stmt> body(String source) {
+        return assertInstanceOf(Stmt.Function.class, Programs.optimize(source).getFirst()).body;
+    }
+
+    @Test
+    void testHoistsLoopInvariantExpressions() {
+        String source = """
+                fn f(n) {
+                  let a = 2;
+                  let b = 3;
+                  let s = 0;
+                  for (let i = 0; i < n; i = i + 1) s = s + a * b + i * 2;
+                  return s;
+                }
+                print f(4);
+                """;
+        List<Stmt> loop = assertInstanceOf(Stmt.Block.class, body(source).get(3)).statements;
+        assertEquals(3, loop.size());
+        Stmt.Let hoisted = assertInstanceOf(Stmt.Let.class, loop.get(1));
+        Expr.BinaryExpr product = assertInstanceOf(Expr.BinaryExpr.class, hoisted.initializer);
+        assertEquals("a", assertInstanceOf(Expr.VarExpr.class, product.left).name.lexeme());
+        assertInstanceOf(Stmt.While.class, loop.get(2));
+        assertEquals("36\n", compare(source));
+    }
+
+    @Test
+    void testHoistedExpressionsThatCanFailAreComputedInTheLoop() {
+        String source = """
+                fn f(n, d) {
+                  let a = 1;
+                  let s = 0;
+                  for (let i = 0; i < n; i = i + 1) s = s + a / d * 2;
+                  return s;
+                }
+                print f(0, 0);
+                print f(3, 2);
+                print f(3, 0);
+                """;
+        List<Stmt> loop = assertInstanceOf(Stmt.Block.class, body(source).get(2)).statements;
+        assertNull(assertInstanceOf(Stmt.Let.class, loop.get(1)).initializer);
+        assertEquals("0\n3\nDivision by zero.\n", compare(source).substring(0, "0\n3\nDivision by zero.\n".length()));
+    }
+
+    @Test
+    void testKeepsExpressionsTheLoopChanges() {
+        String source = """
+                fn f(n) {
+                  let a = 2;
+                  let s = 0;
+                  let i = 0;
+                  while (i < n) {
+                    s = s + a * 3;
+                    a = a + 1;
+                    i = i + 1;
+                  }
+                  return s;
+                }
+                print f(3);
+                """;
+        assertEquals(5, body(source).size());
+        assertEquals("27\n", compare(source));
+    }
+
+    @Test
+    void testSquaresByMultiplying() {
+        Expr square = body("fn f(x) { let y = x * 1; let z = y ** 2; return z; }").get(1) instanceof Stmt.Let let
+                ? let.initializer : null;
+        Expr.BinaryExpr product = assertInstanceOf(Expr.BinaryExpr.class, square);
+        assertEquals("*", product.operator.lexeme());
+        assertInstanceOf(Expr.VarExpr.class, product.left);
+        assertInstanceOf(Expr.VarExpr.class, product.right);
+        Expr unknown = ((Stmt.Let) body("fn f(x) { let z = x ** 2; return z; }").getFirst()).initializer;
+        assertEquals("**", assertInstanceOf(Expr.BinaryExpr.class, unknown).operator.lexeme());
+        assertEquals("9\nOperands of '", compare("fn f(x) { let y = x * 1; let z = y ** 2; return z; } print f(3); print f(\"s\");")
+                .substring(0, "9\nOperands of '".length()));
+    }
+
+    @Test
+    void testRecognizesCountedLoops() {
+        List<Stmt> parsed = Programs.parse("fn f(n) { let s = 0; for (let i = 0; i < n; i = i + 1) s = s + i; return s; }");
+        Stmt.Block plain = assertInstanceOf(Stmt.Block.class, ((Stmt.Function) parsed.getFirst()).body.get(1));
+        assertEquals(Stmt.While.class, plain.statements.get(1).getClass());
+
+        List<Stmt> body = body("fn f(n) { let s = 0; for (let i = 0; i < n; i = i + 1) s = s + i; return s; }");
+        Stmt.Block block = assertInstanceOf(Stmt.Block.class, body.get(1));
+        Stmt.CountedLoop loop = assertInstanceOf(Stmt.CountedLoop.class, block.statements.get(1));
+        assertEquals("i", loop.counter.name.lexeme());
+        assertEquals(1.0, loop.step);
+        Stmt.CountedLoop down = assertInstanceOf(Stmt.CountedLoop.class,
+                body("fn f(n) { let i = n; while (i >= 0) { print i; i = i - 2; } }").get(1));
+        assertEquals(-2.0, down.step);
+        // The step is found after folding.
+        assertInstanceOf(Stmt.CountedLoop.class,
+                body("fn f(n) { let i = 0; while (i < n) { print i; i = i + (1 + 1); } }").get(1));
+    }
+
+    @Test
+    void testLeavesOtherLoopsPlain() {
+        assertEquals(Stmt.While.class,
+                body("fn f(n) { let i = 0; while (i < n) { print i; i = i * 2; } }").get(1).getClass());
+        assertEquals(Stmt.While.class,
+                body("fn f(n) { let i = 0; while (i < n) { print i; i = i + n; } }").get(1).getClass());
+        assertEquals(Stmt.While.class,
+                body("fn f(n) { let i = 0; while (i < n) { let i = 5; i = i + 1; } }").get(1).getClass());
+        assertEquals(Stmt.While.class,
+                body("fn f(n) { let i = 0; while (i != n) { print i; i = i + 1; } }").get(1).getClass());
+    }
+
+    @Test
+    void testCountedLoopsBehaveLikeTheLoopsTheyReplace() {
+        assertEquals("0\n2\n4\n6\n", compare("""
+                fn f(n) {
+                  let s = 0;
+                  for (let i = 0; i < n; i = i + 2) { print i; s = s + i; }
+                  return s;
+                }
+                print f(5);
+                """));
+        // A body that moves the counter or the limit still runs as written.
+        assertEquals("0\n3\n6\n9\n", compare("""
+                fn f(n) {
+                  let i = 0;
+                  while (i < n) { print i; i = i + 2; i = i + 1; }
+                  return i;
+                }
+                print f(7);
+                """));
+        assertEquals("0\n1\n2\n3\n", compare("""
+                fn f(n) {
+                  let i = 0;
+                  while (i < n) { print i; n = n - 1; i = i + 1; }
+                  return i;
+                }
+                print f(6);
+                """));
+        assertEquals("0\n1\nOperands of '", compare("""
+                fn f(n) {
+                  let i = 0;
+                  while (i < n) { print i; if (i == 1) i = "s"; i = i + 1; }
+                }
+                f(3);
+                """).substring(0, "0\n1\nOperands of '".length()));
+    }
+
+    @Test
+    void testInlinesSmallGlobalFunctions() {
+        String source = """
+                fn square(x) { return x * x; }
+                fn f(n) { return square(n + 1) + 1; }
+                print f(3);
+                """;
+        Stmt.Function f = (Stmt.Function) Programs.optimize(source).get(1);
+        Expr.BinaryExpr sum = assertInstanceOf(Expr.BinaryExpr.class, ((Stmt.Return) f.body.getFirst()).value);
+        Expr.Inline inline = assertInstanceOf(Expr.Inline.class, sum.left);
+        assertEquals("square", inline.function.name);
+        assertEquals(1, inline.slots.length);
+        assertEquals("17\n", compare(source));
+    }
+
+    @Test
+    void testDoesNotInlineFunctionsTheProgramChanges() {
+        String assigned = """
+                fn square(x) { return x * x; }
+                fn f(n) { return square(n); }
+                print f(3);
+                square = fn(x) { return x; };
+                print f(3);
+                """;
+        Stmt.Function f = (Stmt.Function) Programs.optimize(assigned).get(1);
+        assertInstanceOf(Expr.CallExpr.class, ((Stmt.Return) f.body.getFirst()).value);
+        assertEquals("9\n3\n", compare(assigned));
+        String recursive = "fn f(n) { return n < 1 and 0 or f(n - 1); } fn g() { let r = f(3); return r; } print g();";
+        Stmt.Function g = (Stmt.Function) Programs.optimize(recursive).get(1);
+        assertInstanceOf(Expr.CallExpr.class, ((Stmt.Let) g.body.getFirst()).initializer);
+    }
+
+    /** The type inferred for what the last statement of the first function returns. */
+    private Type returnedType(String source) {
+        List<Stmt> body = body(source);
+        return assertInstanceOf(Stmt.Return.class, body.getLast()).value.type;
+    }
+
+    @Test
+    void testInfersTypesOfLocals() {
+        List<Stmt> body = body("fn f(p) { let a = 1; let b = a + 2; let s = \"x\" + p; let c = p + 1; let d = a < b; return b; }");
+        assertEquals(Type.NUMBER, ((Stmt.Let) body.get(0)).initializer.type);
+        assertEquals(Type.NUMBER, ((Stmt.Let) body.get(1)).initializer.type);
+        assertEquals(Type.STRING, ((Stmt.Let) body.get(2)).initializer.type);
+        assertEquals(Type.UNKNOWN, ((Stmt.Let) body.get(3)).initializer.type);
+        assertEquals(Type.BOOLEAN, ((Stmt.Let) body.get(4)).initializer.type);
+        assertEquals(Type.NUMBER, ((Stmt.Return) body.get(5)).value.type);
+        // Whatever p is, p - 1 is a number if it does not fail.
+        assertEquals(Type.NUMBER, returnedType("fn f(p) { let a = p - 1; return a; }"));
+        assertEquals(Type.UNKNOWN, returnedType("fn f(p) { return p; }"));
+        assertEquals(Type.UNKNOWN, returnedType("fn f() { return g; } let g = 1;"));
+        assertEquals(Type.INSTANCE, ((Stmt.Return) ((Stmt.Class) Programs.optimize("class A { m() { return this; } }").getFirst())
+                .methods.getFirst().body.getFirst()).value.type);
+    }
+
+    @Test
+    void testJoinsTypesWhereControlFlowMeets() {
+        assertEquals(Type.UNKNOWN, returnedType("fn f(p) { let a = 1; if (p) a = \"s\"; return a; }"));
+        assertEquals(Type.NUMBER, returnedType("fn f(p) { let a = \"s\"; if (p) a = 1; else a = 2; return a; }"));
+        assertEquals(Type.NUMBER, returnedType("fn f(p) { let a = 1; if (p) return a; a = 2; return a; }"));
+        assertEquals(Type.UNKNOWN, returnedType("fn f(p) { let a = 1; p and (a = \"s\"); return a; }"));
+        assertEquals(Type.UNKNOWN, returnedType("fn f(p) { let a = 1; let b = p or a; return b; }"));
+    }
+
+    @Test
+    void testIteratesLoopsToAFixedPoint() {
+        List<Stmt> body = body("""
+                fn f(n) {
+                  let a = 0;
+                  let i = 0;
+                  while (i < n) { print a; a = "s"; i = i + 1; }
+                  return a;
+                }
+                """);
+        Stmt.While loop = assertInstanceOf(Stmt.While.class, body.get(2));
+        assertEquals(Type.NUMBER, ((Expr.BinaryExpr) loop.condition).left.type);
+        Stmt.Print print = (Stmt.Print) ((Stmt.Block) loop.body).statements.getFirst();
+        assertEquals(Type.UNKNOWN, print.expression.type);
+        assertEquals(Type.UNKNOWN, ((Stmt.Return) body.getLast()).value.type);
+    }
+
+    @Test
+    void testCapturedVariablesAreUnknown() {
+        assertEquals(Type.UNKNOWN, returnedType("fn f() { let a = 1; let g = fn() { a = \"s\"; }; g(); return a; }"));
+        assertEquals(Type.UNKNOWN, returnedType("fn f() { let a = 1; fn g() { return a; } return a; }"));
+    }
+
+    @Test
+    void testProvenNumbersBehaveAsBefore() {
+        assertEquals("-0\n0.5\nDivision by zero.\n[line 6]\n", compare("""
+                fn f(d) {
+                  let a = 0;
+                  let b = 1;
+                  print -a;
+                  print b / (b + b);
+                  let c = b / d;
+                  return c;
+                }
+                print f(0);
+                """));
+        assertEquals("3\nab\n", compare("""
+                fn f(x) {
+                  let a = 1;
+                  let b = a + 2;
+                  print b;
+                  a = "a";
+                  return a + x;
+                }
+                print f("b");
+                """));
+    }
+}
@@ -0,0 +1,107 @@
+import com.tinylang.Interpreter;
+import com.tinylang.Lexer;
+import com.tinylang.Parser;
+import com.tinylang.Resolver;
+import com.tinylang.StacklessInterpreter;
+import com.tinylang.TinyLang;
+import com.tinylang.ast.Stmt;
+import com.tinylang.closure.ClosureInterpreter;
+import com.tinylang.error.RuntimeError;
+import com.tinylang.jit.Jit;
+import com.tinylang.opt.Optimizer;
+import com.tinylang.vm.VM;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Compiles and runs programs for the tests, as the command line does. */
+final class Programs {
+
+    private Programs() {
+    }
+
+    /** Parses and resolves the program, checking that neither reported an error. */
+    static List<Stmt> parse(String source) {
+        TinyLang.resetErrors();
+        List<Stmt> statements = new Parser(new Lexer(source)).parse();
+        new Resolver().resolve(statements);
+        assertFalse(TinyLang.hadError(), "the program does not compile:\n" + source);
+        return statements;
+    }
+
+    static List<Stmt> optimize(String source) {
+        List<Stmt> statements = parse(source);
+        new Optimizer().optimize(statements);
+        return statements;
+    }
+
+    /**
+     * Runs the code and returns what it printed to either stream. A runtime
+     * error is reported as the command line reports it, and the errors are
+     * forgotten after, so the next program starts clean.
+     */
+    static String capture(Runnable code) {
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(output, true));
+        System.setErr(System.out);
+        try {
+            code.run();
+        } catch (RuntimeError e) {
+            TinyLang.runtimeError(e);
+        } finally {
+            System.setOut(out);
+            System.setErr(err);
+            TinyLang.resetErrors();
+        }
+        return output.toString().replace("\r\n", "\n");
+    }
+
+    /** A fresh instance of every backend, by name. */
+    static Map<String, Consumer<List<Stmt>>> backends() {
+        Map<String, Consumer<List<Stmt>>> backends = new LinkedHashMap<>();
+        backends.put("interpreter", new Interpreter()::interpret);
+        backends.put("stackless", new StacklessInterpreter(StacklessInterpreter.DEFAULT_MAX_DEPTH)::interpret);
+        backends.put("closure", new ClosureInterpreter()::interpret);
+        backends.put("vm", new VM()::interpret);
+        Interpreter jit = new Interpreter();
+        jit.setJit(new Jit(2));
+        backends.put("jit", jit::interpret);
+        return backends;
+    }
+
+    /**
+     * Runs the chunks one after the other on every backend, as the REPL
+     * runs its lines, checks that they all printed the same, and returns
+     * that.
+     */
+    static String runEverywhere(String... chunks) {
+        String expected = null;
+        for (Map.Entry<String, Consumer<List<Stmt>>> backend : backends().entrySet()) {
+            List<List<Stmt>> programs = new ArrayList<>();
+            for (String chunk : chunks) {
+                programs.add(optimize(chunk));
+            }
+            String printed = capture(() -> {
+                for (List<Stmt> program : programs) {
+                    try {
+                        backend.getValue().accept(program);
+                    } catch (RuntimeError e) {
+                        TinyLang.runtimeError(e);
+                    }
+                }
+            });
+            if (expected == null) expected = printed;
+            assertEquals(expected, printed, backend.getKey());
+        }
+        return expected;
+    }
+}
@@ -0,0 +1,47 @@
+import com.tinylang.TinyLang;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReplTest {
+
+    /** Feeds the lines to a REPL session with the options and returns what it printed, without the prompts. */
+    private String repl(List<String> options, String lines) throws IOException {
+        TinyLang session = new TinyLang(options);
+        PrintStream out = System.out;
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(output));
+        try {
+            session.runPrompt(new BufferedReader(new StringReader(lines)));
+        } finally {
+            System.setOut(out);
+        }
+        return output.toString().replace("\r\n", "\n").replace("> ", "");
+    }
+
+    @Test
+    void testMemoizedResultsFollowRedefinitions() throws IOException {
+        String lines = """
+                fn g(x) { return x * 10; } fn f(x) { return g(x) + 1; } print f(1);
+                fn g(x) { return x * 100; }
+                print f(1);
+                g = fn(x) { return x; }; print "assigned";
+                print f(1);
+                """;
+        assertEquals("11\n101\nassigned\n2\n", repl(List.of("--memoize"), lines));
+        assertEquals("11\n101\nassigned\n2\n", repl(List.of("--memoize", "--closure"), lines));
+    }
+
+    @Test
+    void testSessionsStartWithoutEarlierErrors() throws IOException {
+        TinyLang.error(1, "An error reported before the session.");
+        assertEquals("1\n2\n", repl(List.of(), "print 1;\nprint 2;\n"));
+    }
+}
@@ -0,0 +1,139 @@
+import com.tinylang.Lexer;
+import com.tinylang.Parser;
+import com.tinylang.ast.Expr;
+import com.tinylang.ast.Stmt;
+import com.tinylang.token.Token;
+import com.tinylang.token.TokenBuffer;
+import com.tinylang.token.TokenType;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenBufferTest {
+
+    @Test
+    void testStoresTokensByColumn() {
+        String source = "let x = 1.5;\nprint \"hi\";";
+        TokenBuffer buffer = new TokenBuffer(source);
+        assertEquals(0, buffer.add(TokenType.LET, 0, 3, 1, null));
+        assertEquals(1, buffer.add(TokenType.IDENTIFIER, 4, 5, 1, null));
+        assertEquals(2, buffer.add(TokenType.NUMBER, 8, 11, 1, 1.5));
+        assertEquals(3, buffer.add(TokenType.STRING, 19, 23, 2, "hi"));
+        assertEquals(4, buffer.size());
+
+        assertEquals(new Token(TokenType.LET, "let", null, 1), buffer.token(0));
+        assertEquals(TokenType.IDENTIFIER, buffer.type(1));
+        assertEquals("x", buffer.lexeme(1));
+        assertEquals("1.5", buffer.lexeme(2));
+        assertEquals(1.5, buffer.literal(2));
+        assertEquals("\"hi\"", buffer.lexeme(3));
+        assertEquals("hi", buffer.literal(3));
+        assertEquals(2, buffer.line(3));
+    }
+
+    @Test
+    void testInternsNamesButNotLiterals() {
+        String source = "count count 12 12 counter";
+        TokenBuffer buffer = new TokenBuffer(source);
+        int first = buffer.add(TokenType.IDENTIFIER, 0, 5, 1, null);
+        int second = buffer.add(TokenType.IDENTIFIER, 6, 11, 1, null);
+        int number = buffer.add(TokenType.NUMBER, 12, 14, 1, 12.0);
+        int again = buffer.add(TokenType.NUMBER, 15, 17, 1, 12.0);
+        int longer = buffer.add(TokenType.IDENTIFIER, 18, 25, 1, null);
+        assertSame(buffer.lexeme(first), buffer.lexeme(second));
+        assertNotSame(buffer.lexeme(number), buffer.lexeme(again));
+        assertEquals("counter", buffer.lexeme(longer));
+        assertSame(buffer.intern(0, 5), buffer.lexeme(first));
+    }
+
+    @Test
+    void testInternsManyNames() {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            source.append("name").append(i).append(' ');
+        }
+        TokenBuffer buffer = new TokenBuffer(source);
+        String[] names = new String[1000];
+        int start = 0;
+        for (int i = 0; i < names.length; i++) {
+            int end = source.indexOf(" ", start);
+            names[i] = buffer.intern(start, end);
+            start = end + 1;
+        }
+        start = 0;
+        for (int i = 0; i < names.length; i++) {
+            int end = source.indexOf(" ", start);
+            assertEquals("name" + i, names[i]);
+            assertSame(names[i], buffer.intern(start, end));
+            start = end + 1;
+        }
+    }
+
+    @Test
+    void testKeepsRetainedTokensWhenItCompacts() {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            source.append(';');
+        }
+        int stringStart = source.length();
+        source.append("\"kept across compaction\"");
+        TokenBuffer buffer = new TokenBuffer(source);
+        for (int i = 0; i < 255; i++) {
+            buffer.add(TokenType.SEMICOLON, i, i + 1, 1, null);
+        }
+        buffer.retainFrom(200);
+        int string = buffer.add(TokenType.STRING, stringStart, source.length(), 7, "kept across compaction");
+        assertEquals(255, string);
+        // The buffer is full, so this drops the tokens before 200 to make room.
+        for (int i = 255; i < 300; i++) {
+            assertEquals(i + 1, buffer.add(TokenType.SEMICOLON, i, i + 1, 1, null));
+        }
+        assertEquals(301, buffer.size());
+        assertEquals(TokenType.SEMICOLON, buffer.type(200));
+        assertEquals(TokenType.STRING, buffer.type(string));
+        assertEquals("\"kept across compaction\"", buffer.lexeme(string));
+        assertEquals("kept across compaction", buffer.literal(string));
+        assertEquals(7, buffer.line(string));
+        assertEquals(";", buffer.lexeme(300));
+    }
+
+    @Test
+    void testGrowsWhenLittleCanBeDropped() {
+        String source = ";".repeat(1000);
+        TokenBuffer buffer = new TokenBuffer(source);
+        buffer.retainFrom(10);
+        for (int i = 0; i < 1000; i++) {
+            buffer.add(TokenType.SEMICOLON, i, i + 1, i, null);
+        }
+        buffer.retainFrom(10);
+        assertEquals(10, buffer.line(10));
+        assertEquals(999, buffer.line(999));
+    }
+
+    @Test
+    void testParsesStringsAcrossCompaction() {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            source.append("print \"line ").append(i).append("\nstill ").append(i).append("\";\n");
+        }
+        List<Stmt> statements = new Parser(new Lexer(source)).parse();
+        assertEquals(1000, statements.size());
+        for (int i = 0; i < statements.size(); i++) {
+            Stmt.Print print = assertInstanceOf(Stmt.Print.class, statements.get(i));
+            assertEquals("line " + i + "\nstill " + i, ((Expr.LiteralExpr) print.expression).value);
+        }
+    }
+
+    @Test
+    void testHoldsTokensThatWereAlreadyCreated() {
+        List<Token> tokens = new Lexer("let name = \"s\"; name;").scanTokens();
+        TokenBuffer buffer = TokenBuffer.of(tokens);
+        assertEquals(tokens.size(), buffer.size());
+        for (int i = 0; i < tokens.size(); i++) {
+            assertEquals(tokens.get(i), buffer.token(i));
+        }
+        assertSame(buffer.lexeme(1), buffer.lexeme(5));
+    }
+}
@@ -0,0 +1,85 @@
+import com.tinylang.ast.Stmt;
+import com.tinylang.vm.VM;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VMTest {
+
+    private String run(String source) {
+        List<Stmt> statements = Programs.parse(source);
+        return Programs.capture(() -> new VM().interpret(statements));
+    }
+
+    @Test
+    void testArithmeticAndStrings() {
+        assertEquals("7\n2.5\nab\n1024\n", run("print 1 + 2 * 3; print 5 / 2; print \"a\" + \"b\"; print 2 ** 10;"));
+    }
+
+    @Test
+    void testControlFlow() {
+        String source = "let s = 0; for (let i = 0; i < 5; i = i + 1) { if (i > 2) s = s + i; } print s;";
+        assertEquals("7\n", run(source));
+    }
+
+    @Test
+    void testRecursion() {
+        String source = "fn fib(n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); } print fib(15);";
+        assertEquals("610\n", run(source));
+    }
+
+    @Test
+    void testClosures() {
+        String source = """
+                let makeCounter = fn() {
+                  let count = 0;
+                  return fn() { count = count + 1; return count; };
+                };
+                let counter = makeCounter();
+                counter();
+                print counter();
+                """;
+        assertEquals("2\n", run(source));
+    }
+
+    @Test
+    void testClassesAndSuper() {
+        String source = """
+                class A {
+                  init(v) { this.v = v; }
+                  get() { return this.v; }
+                  class make(v) { return A(v); }
+                }
+                class B extends A {
+                  get() { return super.get() * 2; }
+                }
+                print B(21).get();
+                print A.make(3).get();
+                let m = B(1).get;
+                print m();
+                """;
+        assertEquals("42\n3\n2\n", run(source));
+    }
+
+    @Test
+    void testTailCallsReuseTheFrame() {
+        String source = """
+                fn count(n, acc) {
+                  if (n == 0) return acc;
+                  return count(n - 1, acc + 1);
+                }
+                fn isEven(n) { if (n == 0) return true; return isOdd(n - 1); }
+                fn isOdd(n) { if (n == 0) return false; return isEven(n - 1); }
+                class Loop {
+                  init(limit) { this.limit = limit; }
+                  run(n) { if (n == this.limit) return n; return this.run(n + 1); }
+                }
+                print count(100000, 0);
+                print isEven(100001);
+                print Loop(100000).run(0);
+                """;
+        assertEquals("100000\nfalse\n100000\n", run(source));
+    }
+}
@@ -0,0 +1,80 @@
+package com.tinylang;
+
+import com.tinylang.token.Token;
+import com.tinylang.token.TokenType;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MappedSourceTest {
+
+    /** Reads a file holding the text, as the command line reads a script. */
+    private CharSequence read(String text) throws IOException {
+        Path path = Files.createTempFile("mapped", ".tl");
+        try {
+            Files.writeString(path, text, StandardCharsets.UTF_8);
+            return MappedSource.read(path);
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    void testMapsAsciiFiles() throws IOException {
+        String text = "let s = \"ascii\";\nprint s;\n";
+        CharSequence source = read(text);
+        assertInstanceOf(MappedSource.class, source);
+        assertEquals(text.length(), source.length());
+        assertEquals('l', source.charAt(0));
+        assertEquals('\n', source.charAt(text.length() - 1));
+        assertEquals(text, source.toString());
+        assertEquals("\"ascii\"", source.subSequence(8, 15).toString());
+        assertEquals("ii", source.subSequence(8, 15).subSequence(4, 6).toString());
+    }
+
+    @Test
+    void testMapsEmptyFiles() throws IOException {
+        CharSequence source = read("");
+        assertEquals(0, source.length());
+        List<Token> tokens = new Lexer(source).scanTokens();
+        assertEquals(1, tokens.size());
+        assertEquals(TokenType.EOF, tokens.getFirst().type());
+    }
+
+    @Test
+    void testDecodesOtherFilesAsUtf8() throws IOException {
+        String text = "print \"héllo 世界\";\nprint \"😀\";\n";
+        CharSequence source = read(text);
+        assertEquals(text, source.toString());
+        assertEquals(text.length(), source.length());
+        List<Token> tokens = new Lexer(source).scanTokens();
+        assertEquals("héllo 世界", tokens.get(1).literal());
+        assertEquals("😀", tokens.get(4).literal());
+        assertEquals(2, tokens.get(4).line());
+    }
+
+    @Test
+    void testDecodesOnlyOnReachingABytePastAscii() throws IOException {
+        String text = "print 1;\n".repeat(1000) + "print \"ünïcode\";\nprint 2;\n";
+        CharSequence source = read(text);
+        assertInstanceOf(MappedSource.class, source);
+        assertEquals(text.getBytes(StandardCharsets.UTF_8).length, source.length());
+        assertEquals("print 1;", source.subSequence(8991, 8999).toString());
+        assertEquals(new Lexer(text).scanTokens(), new Lexer(source).scanTokens());
+        assertEquals(text.length(), source.length());
+        assertEquals('ü', source.charAt(9007));
+        assertEquals(text, source.toString());
+    }
+
+    @Test
+    void testLexesMappedFilesLikeStrings() throws IOException {
+        String text = "fn add(a, b) { return a + b; }\nprint add(1, 2.5) + \"!\";\n";
+        assertEquals(new Lexer(text).scanTokens(), new Lexer(read(text)).scanTokens());
+    }
+}
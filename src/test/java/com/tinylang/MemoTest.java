@@ -0,0 +1,65 @@
+package com.tinylang;
+
+import com.tinylang.ast.Stmt;
+import com.tinylang.closure.ClosureInterpreter;
+import com.tinylang.opt.Optimizer;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MemoTest {
+
+    private static final String FIB = """
+            fn fib(n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); }
+            print fib(20);
+            """;
+
+    private List<Stmt> memoized(String source) {
+        List<Stmt> statements = new Parser(new Lexer(source)).parse();
+        new Resolver().resolve(statements);
+        new Optimizer(true).optimize(statements);
+        return statements;
+    }
+
+    /** Runs the program on the interpreter with its own memos, and returns their stats. */
+    private String interpret(String source, Memo.Registry memos) {
+        Interpreter interpreter = new Interpreter();
+        interpreter.setMemos(memos);
+        return printed(() -> interpreter.interpret(memoized(source)), memos);
+    }
+
+    private String printed(Runnable run, Memo.Registry memos) {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new ByteArrayOutputStream()));
+        try {
+            run.run();
+        } finally {
+            System.setOut(out);
+        }
+        ByteArrayOutputStream stats = new ByteArrayOutputStream();
+        memos.printStats(new PrintStream(stats, true));
+        return stats.toString().replace("\r\n", "\n");
+    }
+
+    @Test
+    void testEachRunKeepsItsOwnMemos() {
+        String first = interpret(FIB, new Memo.Registry(true));
+        assertEquals("fn fib: 18/39 hits (46.2%), 21 result(s), 0 evicted\n"
+                + "memoized functions: 1, 18/39 hits\n", first);
+        assertEquals(first, interpret(FIB, new Memo.Registry(true)));
+
+        Memo.Registry memos = new Memo.Registry(true);
+        String closure = printed(() -> new ClosureInterpreter(new PropertyCache.Sites(false), memos)
+                .interpret(memoized(FIB)), memos);
+        assertEquals(first, closure);
+    }
+
+    @Test
+    void testKeepsNoMemosUnlessCounting() {
+        assertEquals("memoized functions: 0, 0/0 hits\n", interpret(FIB, new Memo.Registry(false)));
+    }
+}
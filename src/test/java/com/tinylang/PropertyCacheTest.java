@@ -0,0 +1,46 @@
+package com.tinylang;
+
+import com.tinylang.ast.Stmt;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PropertyCacheTest {
+
+    /** Runs the program with its own property caches, and returns their stats. */
+    private String run(List<Stmt> statements) {
+        PropertyCache.Sites sites = new PropertyCache.Sites(true);
+        Interpreter interpreter = new Interpreter();
+        interpreter.setPropertyCaches(sites);
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new ByteArrayOutputStream()));
+        try {
+            interpreter.interpret(statements);
+        } finally {
+            System.setOut(out);
+        }
+        ByteArrayOutputStream stats = new ByteArrayOutputStream();
+        sites.printStats(new PrintStream(stats, true));
+        return stats.toString().replace("\r\n", "\n");
+    }
+
+    @Test
+    void testEachRunKeepsItsOwnCaches() {
+        List<Stmt> statements = new Parser(new Lexer("""
+                class Point { init(x) { this.x = x; } }
+                let sum = 0;
+                for (let i = 0; i < 10; i = i + 1) sum = sum + Point(i).x;
+                print sum;
+                """)).parse();
+        new Resolver().resolve(statements);
+        String first = run(statements);
+        assertEquals("[line 1] set .x: 9/10 hits (90.0%), 1 shape(s)\n"
+                + "[line 3] get .x: 9/10 hits (90.0%), 1 shape(s)\n"
+                + "property caches: 2 site(s), 18/20 hits, 0 megamorphic\n", first);
+        assertEquals(first, run(statements));
+    }
+}